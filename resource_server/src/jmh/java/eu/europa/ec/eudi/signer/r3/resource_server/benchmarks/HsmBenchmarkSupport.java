@@ -0,0 +1,89 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
+import java.lang.reflect.Proxy;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Builds the HSM components outside of Spring, for the benchmarks.
+ * The HSM is selected with the same environment variables used by the application
+ * (JACKNJI11_PKCS11_LIB_PATH, JACKNJI11_TEST_TESTSLOT and JACKNJI11_TEST_USER_PIN), usually pointing to a SoftHSM2 token,
+ * and the PKCS#11 binding with the system property hsm.binding.
+ */
+final class HsmBenchmarkSupport {
+
+    private HsmBenchmarkSupport() {
+    }
+
+    static long slot() {
+        String testSlotEnv = System.getenv("JACKNJI11_TEST_TESTSLOT");
+        return testSlotEnv != null && !testSlotEnv.isEmpty() ? Long.parseLong(testSlotEnv) : 0;
+    }
+
+    static byte[] pin() {
+        String userPinEnv = System.getenv("JACKNJI11_TEST_USER_PIN");
+        return (userPinEnv != null && !userPinEnv.isEmpty() ? userPinEnv : "userpin").getBytes();
+    }
+
+    // the binding can be chosen with -Djmh.args="-jvmArgsAppend -Dhsm.binding=panama"
+    static String binding() {
+        return System.getProperty("hsm.binding", "jacknji11");
+    }
+
+    static HsmConfig hsmConfig(int maxSessions, int keyCacheSize) {
+        HsmConfig hsmConfig = new HsmConfig();
+        hsmConfig.setBinding(binding());
+        hsmConfig.setSlots(List.of(slot()));
+        hsmConfig.setKeyCacheSize(keyCacheSize);
+        hsmConfig.getSessionPool().setMaxSessions(maxSessions);
+        return hsmConfig;
+    }
+
+    /**
+     * Creates an HsmService with a new wrap key, which is not stored anywhere.
+     */
+    static HsmService hsmService(HsmConfig hsmConfig) throws Exception {
+        AuthConfig authConfig = new AuthConfig();
+        authConfig.setDbEncryptionPassphrase("benchmark");
+        authConfig.setDbEncryptionSalt(Base64.getEncoder().encodeToString("benchmark-salt".getBytes()));
+        HsmService hsmService = new HsmService(emptySecretKeyRepository(), authConfig, hsmConfig, event -> {});
+        // the measurements start after the HSM is initialized in the background
+        hsmService.whenReady().get();
+        return hsmService;
+    }
+
+    // a repository without secret keys, so the HsmService generates a new one
+    private static SecretKeyRepository emptySecretKeyRepository() {
+        return (SecretKeyRepository) Proxy.newProxyInstance(SecretKeyRepository.class.getClassLoader(),
+              new Class<?>[]{ SecretKeyRepository.class },
+              (proxy, method, args) -> switch (method.getName()) {
+                  case "findAll" -> List.of();
+                  case "save" -> args[0];
+                  case "hashCode" -> System.identityHashCode(proxy);
+                  case "equals" -> proxy == args[0];
+                  case "toString" -> "EmptySecretKeyRepository";
+                  default -> throw new UnsupportedOperationException(method.getName());
+              });
+    }
+}
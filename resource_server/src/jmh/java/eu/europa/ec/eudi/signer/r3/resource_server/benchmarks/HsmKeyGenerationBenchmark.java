@@ -0,0 +1,58 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Generation of a key pair in the HSM, including the wrap of the private key.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HsmKeyGenerationBenchmark {
+
+    private HsmService hsmService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.hsmService = HsmBenchmarkSupport.hsmService(HsmBenchmarkSupport.hsmConfig(16, 16));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.hsmService.closeSessions();
+        this.hsmService.getBinding().finalizeLibrary();
+    }
+
+    @Benchmark
+    public KeyOperations.WrappedKeyPair generateP256KeyPair() throws Exception {
+        return this.hsmService.generateECPrime256v1KeyPair();
+    }
+
+    @Benchmark
+    public KeyOperations.WrappedKeyPair generateRSA2048KeyPair() throws Exception {
+        return this.hsmService.generateRSAKeyPair(2048);
+    }
+}
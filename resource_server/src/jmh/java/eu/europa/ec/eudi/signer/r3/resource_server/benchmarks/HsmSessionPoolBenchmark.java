@@ -0,0 +1,91 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmInformation;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.Pkcs11Binding;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * Borrow and return of a session of the pool of a slot, with more threads than sessions in the largest cases.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HsmSessionPoolBenchmark {
+
+    private static final int MAX_SESSIONS = 16;
+
+    private Pkcs11Binding binding;
+    private HsmInformation hsmInformation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        HsmConfig hsmConfig = HsmBenchmarkSupport.hsmConfig(MAX_SESSIONS, 16);
+        this.binding = Pkcs11Binding.forName(hsmConfig.getBinding());
+        this.binding.initialize();
+        this.hsmInformation = new HsmInformation(this.binding, HsmBenchmarkSupport.slot(), HsmBenchmarkSupport.pin(),
+              hsmConfig.getSessionPool(), hsmConfig.getKeyCacheSize());
+        this.hsmInformation.warmUp();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.hsmInformation.close();
+        this.binding.finalizeLibrary();
+    }
+
+    private long borrowAndReturn() throws Exception {
+        LongRef session = this.hsmInformation.getSession();
+        try {
+            return session.value();
+        } finally {
+            this.hsmInformation.releaseSession(session);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1() throws Exception {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4() throws Exception {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long threads16() throws Exception {
+        return borrowAndReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long threads64() throws Exception {
+        return borrowAndReturn();
+    }
+}
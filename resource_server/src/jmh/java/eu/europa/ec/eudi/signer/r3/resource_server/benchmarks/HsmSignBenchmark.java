@@ -0,0 +1,112 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.SignatureEncoding;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Signature of one or several hashes with a wrapped private key.
+ * With keyCache=cached the same key is always used, so it is unwrapped once per session and then reused.
+ * With keyCache=unwrap the benchmark rotates between more keys than the session cache holds,
+ * so every call pays for the unwrap of the private key.
+ * With keyCache=resident the key is stored in the token as a persistent object and used without any unwrap.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HsmSignBenchmark {
+
+    private static final int KEY_CACHE_SIZE = 4;
+    private static final int ROTATED_KEYS = 32;
+    private static final String RESIDENT_CREDENTIAL = "benchmark-resident-key";
+
+    @Param({ "P-256", "RSA-2048" })
+    public String keyType;
+
+    @Param({ "1", "16" })
+    public int batchSize;
+
+    @Param({ "cached", "unwrap", "resident" })
+    public String keyCache;
+
+    private HsmService hsmService;
+    private String signatureAlgorithm;
+    private final List<byte[]> wrappedKeys = new ArrayList<>();
+    private final List<byte[]> dtbsrs = new ArrayList<>();
+
+    @State(Scope.Thread)
+    public static class KeyCursor {
+        int next = 0;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.hsmService = HsmBenchmarkSupport.hsmService(HsmBenchmarkSupport.hsmConfig(16, KEY_CACHE_SIZE));
+        boolean ecdsa = this.keyType.equals("P-256");
+        this.signatureAlgorithm = ecdsa ? "ECDSA" : "RSA";
+
+        int keys = this.keyCache.equals("unwrap") ? ROTATED_KEYS : 1;
+        for (int i = 0; i < keys; i++) {
+            KeyOperations.WrappedKeyPair keyPair = ecdsa ?
+                  this.hsmService.generateECPrime256v1KeyPair() : this.hsmService.generateRSAKeyPair(2048);
+            this.wrappedKeys.add(keyPair.keyPair()[0]);
+        }
+        if (this.keyCache.equals("resident")) {
+            this.hsmService.deleteResidentKey(RESIDENT_CREDENTIAL);
+            this.hsmService.storeResidentKey(RESIDENT_CREDENTIAL, this.wrappedKeys.get(0),
+                  this.hsmService.getWrapKeyVersion(), ecdsa ? "EC" : "RSA");
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < this.batchSize; i++) {
+            byte[] hash = digest.digest(("document " + i).getBytes());
+            this.dtbsrs.add(ecdsa ? hash : SignatureEncoding.digestInfo(hash, "2.16.840.1.101.3.4.2.1"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (this.keyCache.equals("resident")) {
+            this.hsmService.deleteResidentKey(RESIDENT_CREDENTIAL);
+        }
+        this.hsmService.closeSessions();
+        this.hsmService.getBinding().finalizeLibrary();
+    }
+
+    @Benchmark
+    public List<byte[]> sign(KeyCursor cursor) throws Exception {
+        if (this.keyCache.equals("resident")) {
+            return this.hsmService.signBatchWithResidentKey(RESIDENT_CREDENTIAL, this.wrappedKeys.get(0),
+                  this.hsmService.getWrapKeyVersion(), this.dtbsrs, this.signatureAlgorithm);
+        }
+        byte[] wrappedKey = this.wrappedKeys.get(cursor.next);
+        cursor.next = (cursor.next + 1) % this.wrappedKeys.size();
+        return this.hsmService.signBatch(wrappedKey, this.hsmService.getWrapKeyVersion(), this.dtbsrs,
+              this.signatureAlgorithm);
+    }
+}
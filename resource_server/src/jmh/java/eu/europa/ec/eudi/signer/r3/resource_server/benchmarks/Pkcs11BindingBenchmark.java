@@ -0,0 +1,101 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.Pkcs11Binding;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.pkcs11.jacknji11.CKA;
+import org.pkcs11.jacknji11.CKK;
+import org.pkcs11.jacknji11.CKM;
+import org.pkcs11.jacknji11.CKO;
+import org.pkcs11.jacknji11.Hex;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * Compares the PKCS#11 bindings in the calls of the signature path, in a single session.
+ * The panama binding is only available when running with Java 22 and a build with the jdk22 profile.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+@State(Scope.Benchmark)
+public class Pkcs11BindingBenchmark {
+
+    @Param({ "jacknji11", "panama" })
+    public String binding;
+
+    private Pkcs11Binding pkcs11;
+    private long session;
+    private long privateKey;
+    private CKA[] secretKeyTemplate;
+    private final CKM ecdsa = new CKM(CKM.ECDSA);
+    private byte[] hash;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.pkcs11 = Pkcs11Binding.forName(this.binding);
+        this.pkcs11.initialize();
+        this.session = this.pkcs11.openSession(HsmBenchmarkSupport.slot());
+        this.pkcs11.loginUser(this.session, HsmBenchmarkSupport.pin());
+
+        LongRef publicKey = new LongRef();
+        LongRef privateKey = new LongRef();
+        this.pkcs11.generateKeyPair(this.session, new CKM(CKM.ECDSA_KEY_PAIR_GEN),
+              new CKA[]{ new CKA(CKA.EC_PARAMS, Hex.s2b("06082a8648ce3d030107")), new CKA(CKA.TOKEN, false) },
+              new CKA[]{ new CKA(CKA.TOKEN, false), new CKA(CKA.SENSITIVE, true), new CKA(CKA.SIGN, true) },
+              publicKey, privateKey);
+        this.privateKey = privateKey.value();
+
+        this.secretKeyTemplate = new CKA[]{
+              new CKA(CKA.CLASS, CKO.SECRET_KEY),
+              new CKA(CKA.KEY_TYPE, CKK.AES),
+              new CKA(CKA.VALUE, new byte[32]),
+              new CKA(CKA.TOKEN, false),
+              new CKA(CKA.SENSITIVE, false),
+              new CKA(CKA.EXTRACTABLE, true)
+        };
+        this.hash = MessageDigest.getInstance("SHA-256").digest("document".getBytes());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pkcs11.closeSession(this.session);
+        this.pkcs11.finalizeLibrary();
+    }
+
+    @Benchmark
+    public byte[] signP256() {
+        return this.pkcs11.sign(this.session, this.ecdsa, this.privateKey, this.hash);
+    }
+
+    @Benchmark
+    public long createAndDestroyObject() {
+        long object = this.pkcs11.createObject(this.session, this.secretKeyTemplate);
+        this.pkcs11.destroyObject(this.session, object);
+        return object;
+    }
+
+    @Benchmark
+    public long getSessionSlot() {
+        return this.pkcs11.getSessionSlot(this.session);
+    }
+}
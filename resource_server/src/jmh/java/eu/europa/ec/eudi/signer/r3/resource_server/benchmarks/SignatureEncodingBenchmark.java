@@ -0,0 +1,148 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.benchmarks;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.SignatureEncoding;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSequenceGenerator;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the encodings of SignatureEncoding with the BouncyCastle encodings they replace: the DigestInfo of the
+ * RSA signatures and the DER encoding of the ECDSA signatures. The setup checks that both produce the same bytes
+ * for every value used, including the values of r and s with leading zeros or with the first bit set.
+ * Doesn't require an HSM. Run with -prof gc to compare the allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureEncodingBenchmark {
+
+    private static final int VALUES = 1024;
+
+    // SHA-256, SHA-384 and SHA-512, signed with the curves of the same size (P-521 for SHA-512)
+    @Param({ "2.16.840.1.101.3.4.2.1", "2.16.840.1.101.3.4.2.2", "2.16.840.1.101.3.4.2.3" })
+    public String hashAlgorithmOID;
+
+    private byte[][] hashes;
+    private byte[][] signatures;
+    private byte[] buffer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int hashLength = switch (this.hashAlgorithmOID) {
+            case "2.16.840.1.101.3.4.2.1" -> 32;
+            case "2.16.840.1.101.3.4.2.2" -> 48;
+            default -> 64;
+        };
+        int componentLength = hashLength == 64 ? 66 : hashLength;
+
+        Random random = new Random(42);
+        this.hashes = new byte[VALUES][hashLength];
+        this.signatures = new byte[VALUES][2 * componentLength];
+        for (int i = 0; i < VALUES; i++) {
+            random.nextBytes(this.hashes[i]);
+            random.nextBytes(this.signatures[i]);
+            // some values of r and s start with zeros, as the HSM returns them with the length of the curve order
+            if (i % 4 == 1) Arrays.fill(this.signatures[i], 0, 1 + i % 3, (byte) 0);
+            if (i % 4 == 2) Arrays.fill(this.signatures[i], componentLength, componentLength + 1 + i % 3, (byte) 0);
+            if (i % 4 == 3) this.signatures[i][0] |= (byte) 0x80;
+        }
+        // the edge cases: r and s equal to zero
+        Arrays.fill(this.signatures[0], (byte) 0);
+
+        int maxLength = 0;
+        for (int i = 0; i < VALUES; i++) {
+            maxLength = Math.max(maxLength, SignatureEncoding.ecdsaSignatureDERLength(this.signatures[i]));
+            if (!Arrays.equals(SignatureEncoding.digestInfo(this.hashes[i], this.hashAlgorithmOID),
+                  bouncyCastleDigestInfo(this.hashes[i], this.hashAlgorithmOID))) {
+                throw new IllegalStateException("The DigestInfo doesn't match the BouncyCastle encoding for the value " + i);
+            }
+            if (!Arrays.equals(SignatureEncoding.ecdsaSignatureToDER(this.signatures[i]),
+                  bouncyCastleECDSASignature(this.signatures[i]))) {
+                throw new IllegalStateException("The ECDSA signature doesn't match the BouncyCastle encoding for the value " + i);
+            }
+        }
+        this.buffer = new byte[maxLength];
+    }
+
+    private int nextValue() {
+        this.next = (this.next + 1) & (VALUES - 1);
+        return this.next;
+    }
+
+    @Benchmark
+    public byte[] digestInfo() throws Exception {
+        return SignatureEncoding.digestInfo(this.hashes[nextValue()], this.hashAlgorithmOID);
+    }
+
+    @Benchmark
+    public byte[] digestInfoBouncyCastle() throws Exception {
+        return bouncyCastleDigestInfo(this.hashes[nextValue()], this.hashAlgorithmOID);
+    }
+
+    @Benchmark
+    public byte[] ecdsaSignatureToDER() {
+        return SignatureEncoding.ecdsaSignatureToDER(this.signatures[nextValue()]);
+    }
+
+    @Benchmark
+    public void ecdsaSignatureToDERPreallocated(Blackhole blackhole) {
+        blackhole.consume(SignatureEncoding.ecdsaSignatureToDER(this.signatures[nextValue()], this.buffer, 0));
+        blackhole.consume(this.buffer);
+    }
+
+    @Benchmark
+    public byte[] ecdsaSignatureToDERBouncyCastle() throws Exception {
+        return bouncyCastleECDSASignature(this.signatures[nextValue()]);
+    }
+
+    // the encodings used before SignatureEncoding
+    private static byte[] bouncyCastleDigestInfo(byte[] hash, String hashAlgorithmOID) throws Exception {
+        ASN1ObjectIdentifier oid = new DefaultDigestAlgorithmIdentifierFinder().find(hashAlgorithmOID).getAlgorithm();
+        DERSequence oidSeq = new DERSequence(new ASN1Encodable[] { oid, DERNull.INSTANCE });
+        return new DERSequence(new ASN1Encodable[] { oidSeq, new DEROctetString(hash) }).getEncoded();
+    }
+
+    private static byte[] bouncyCastleECDSASignature(byte[] signature) throws Exception {
+        int len = signature.length / 2;
+        BigInteger rInt = new BigInteger(1, Arrays.copyOfRange(signature, 0, len));
+        BigInteger sInt = new BigInteger(1, Arrays.copyOfRange(signature, len, signature.length));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DERSequenceGenerator seq = new DERSequenceGenerator(baos);
+        seq.addObject(new ASN1Integer(rInt));
+        seq.addObject(new ASN1Integer(sInt));
+        seq.close();
+        return baos.toByteArray();
+    }
+}
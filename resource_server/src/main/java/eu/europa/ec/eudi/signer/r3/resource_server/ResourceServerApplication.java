@@ -18,14 +18,18 @@ package eu.europa.ec.eudi.signer.r3.resource_server;
 
 import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
 import eu.europa.ec.eudi.signer.r3.resource_server.config.CredentialsConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
 import eu.europa.ec.eudi.signer.r3.resource_server.config.InfoConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.KeysConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.certificates.ejbca.EjbcaProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 
 @SpringBootApplication
-@EnableConfigurationProperties({ InfoConfig.class, EjbcaProperties.class, AuthConfig.class, CredentialsConfig.class })
+@EnableConfigurationProperties({ InfoConfig.class, EjbcaProperties.class, AuthConfig.class, CredentialsConfig.class, HsmConfig.class,
+      KeysConfig.class, SignaturesConfig.class })
 public class ResourceServerApplication {
 
 	public static void main(String[] args) {
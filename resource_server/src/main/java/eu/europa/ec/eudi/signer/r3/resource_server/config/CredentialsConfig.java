@@ -21,6 +21,12 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 @ConfigurationProperties(prefix = "credentials")
 public class CredentialsConfig {
     private boolean onlyValidSupport;
+    // maximum number of decoded public keys kept to verify signatures
+    private int publicKeyCacheSize = 1000;
+    // maximum number of credentials kept in memory to sign without reading the database
+    private int signingCacheSize = 10000;
+    // time a credential is kept in memory, which bounds the time a change made by another instance takes to be seen
+    private long signingCacheTtlSeconds = 300;
 
     public boolean getOnlyValidSupport() {
         return onlyValidSupport;
@@ -29,4 +35,28 @@ public class CredentialsConfig {
     public void setOnlyValidSupport(boolean onlyValidSupport) {
         this.onlyValidSupport = onlyValidSupport;
     }
+
+    public int getPublicKeyCacheSize() {
+        return publicKeyCacheSize;
+    }
+
+    public void setPublicKeyCacheSize(int publicKeyCacheSize) {
+        this.publicKeyCacheSize = publicKeyCacheSize;
+    }
+
+    public int getSigningCacheSize() {
+        return signingCacheSize;
+    }
+
+    public void setSigningCacheSize(int signingCacheSize) {
+        this.signingCacheSize = signingCacheSize;
+    }
+
+    public long getSigningCacheTtlSeconds() {
+        return signingCacheTtlSeconds;
+    }
+
+    public void setSigningCacheTtlSeconds(long signingCacheTtlSeconds) {
+        this.signingCacheTtlSeconds = signingCacheTtlSeconds;
+    }
 }
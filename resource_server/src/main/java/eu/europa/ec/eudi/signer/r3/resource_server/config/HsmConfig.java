@@ -0,0 +1,329 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "hsm")
+public class HsmConfig {
+    // PKCS#11 binding used to call the HSM: jacknji11 or panama
+    private String binding = "jacknji11";
+    // slots of the HSM used to sign, each with its own session pool
+    private List<Long> slots = new ArrayList<>();
+    // maximum number of unwrapped private keys kept in each HSM session
+    private int keyCacheSize = 16;
+    private SessionPool sessionPool = new SessionPool();
+    private KeyPairPool keyPairPool = new KeyPairPool();
+    private Executor executor = new Executor();
+    private SessionBudget sessionBudget = new SessionBudget();
+    private Fairness fairness = new Fairness();
+    // time between the searches for key objects left in the HSM token, 0 disables the search
+    private long orphanReaperIntervalSeconds = 3600;
+
+    public static class SessionPool {
+        // sessions opened at startup and always kept open
+        private int minSessions = 2;
+        // maximum number of sessions opened in the slot
+        private int maxSessions = 16;
+        // time a request waits for a session when all the sessions are in use
+        private long borrowTimeoutMillis = 5000;
+        // idle sessions above the minimum are closed after this time
+        private long idleTimeoutSeconds = 300;
+        // idle sessions are checked before reuse when idle for longer than this time
+        private long validationIntervalSeconds = 60;
+
+        public int getMinSessions() {
+            return minSessions;
+        }
+
+        public void setMinSessions(int minSessions) {
+            this.minSessions = minSessions;
+        }
+
+        public int getMaxSessions() {
+            return maxSessions;
+        }
+
+        public void setMaxSessions(int maxSessions) {
+            this.maxSessions = maxSessions;
+        }
+
+        public long getBorrowTimeoutMillis() {
+            return borrowTimeoutMillis;
+        }
+
+        public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+            this.borrowTimeoutMillis = borrowTimeoutMillis;
+        }
+
+        public long getIdleTimeoutSeconds() {
+            return idleTimeoutSeconds;
+        }
+
+        public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+        }
+
+        public long getValidationIntervalSeconds() {
+            return validationIntervalSeconds;
+        }
+
+        public void setValidationIntervalSeconds(long validationIntervalSeconds) {
+            this.validationIntervalSeconds = validationIntervalSeconds;
+        }
+    }
+
+    public String getBinding() {
+        return binding;
+    }
+
+    public void setBinding(String binding) {
+        this.binding = binding;
+    }
+
+    public List<Long> getSlots() {
+        return slots;
+    }
+
+    public void setSlots(List<Long> slots) {
+        this.slots = slots;
+    }
+
+    public static class KeyPairPool {
+        // number of P-256 key pairs generated in advance
+        private int p256Size = 10;
+        // number of RSA 2048 key pairs generated in advance
+        private int rsa2048Size = 0;
+        // time between the checks of the size of the pool
+        private long refillIntervalSeconds = 60;
+        // the pool is only refilled while the fraction of HSM sessions in use is below this value
+        private double maxHsmLoad = 0.5;
+
+        public int getP256Size() {
+            return p256Size;
+        }
+
+        public void setP256Size(int p256Size) {
+            this.p256Size = p256Size;
+        }
+
+        public int getRsa2048Size() {
+            return rsa2048Size;
+        }
+
+        public void setRsa2048Size(int rsa2048Size) {
+            this.rsa2048Size = rsa2048Size;
+        }
+
+        public long getRefillIntervalSeconds() {
+            return refillIntervalSeconds;
+        }
+
+        public void setRefillIntervalSeconds(long refillIntervalSeconds) {
+            this.refillIntervalSeconds = refillIntervalSeconds;
+        }
+
+        public double getMaxHsmLoad() {
+            return maxHsmLoad;
+        }
+
+        public void setMaxHsmLoad(double maxHsmLoad) {
+            this.maxHsmLoad = maxHsmLoad;
+        }
+    }
+
+    public static class Executor {
+        // requests waiting for an HSM worker, further requests are rejected
+        private int queueCapacity = 64;
+        // time a request may spend waiting for and using the HSM
+        private long requestTimeoutMillis = 10000;
+        // number of hashes of a signature request signed by each HSM worker
+        private int signChunkSize = 16;
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public long getRequestTimeoutMillis() {
+            return requestTimeoutMillis;
+        }
+
+        public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        }
+
+        public int getSignChunkSize() {
+            return signChunkSize;
+        }
+
+        public void setSignChunkSize(int signChunkSize) {
+            this.signChunkSize = signChunkSize;
+        }
+    }
+
+    public static class SessionBudget {
+        // sessions of each slot the HSM allows to all the replicas together, 0 to let each replica open maxSessions
+        private int totalSessions = 0;
+        // time between the heartbeats of a replica in the replicas table
+        private long heartbeatIntervalSeconds = 10;
+        // a replica without a heartbeat for this time is no longer counted
+        private long leaseSeconds = 30;
+
+        public int getTotalSessions() {
+            return totalSessions;
+        }
+
+        public void setTotalSessions(int totalSessions) {
+            this.totalSessions = totalSessions;
+        }
+
+        public long getHeartbeatIntervalSeconds() {
+            return heartbeatIntervalSeconds;
+        }
+
+        public void setHeartbeatIntervalSeconds(long heartbeatIntervalSeconds) {
+            this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+        }
+
+        public long getLeaseSeconds() {
+            return leaseSeconds;
+        }
+
+        public void setLeaseSeconds(long leaseSeconds) {
+            this.leaseSeconds = leaseSeconds;
+        }
+    }
+
+    public static class Fairness {
+        // share of the HSM workers of the OAuth clients not listed in clients
+        private int defaultWeight = 1;
+        // maximum number of operations of each client running at the same time, 0 for no limit
+        private int defaultMaxConcurrent = 0;
+        // weight and concurrency limit by OAuth client id, for its synchronous and asynchronous requests
+        private Map<String, ClientShare> clients = new HashMap<>();
+
+        public static class ClientShare {
+            private int weight = 1;
+            private int maxConcurrent = 0;
+
+            public int getWeight() {
+                return weight;
+            }
+
+            public void setWeight(int weight) {
+                this.weight = weight;
+            }
+
+            public int getMaxConcurrent() {
+                return maxConcurrent;
+            }
+
+            public void setMaxConcurrent(int maxConcurrent) {
+                this.maxConcurrent = maxConcurrent;
+            }
+        }
+
+        public int getDefaultWeight() {
+            return defaultWeight;
+        }
+
+        public void setDefaultWeight(int defaultWeight) {
+            this.defaultWeight = defaultWeight;
+        }
+
+        public int getDefaultMaxConcurrent() {
+            return defaultMaxConcurrent;
+        }
+
+        public void setDefaultMaxConcurrent(int defaultMaxConcurrent) {
+            this.defaultMaxConcurrent = defaultMaxConcurrent;
+        }
+
+        public Map<String, ClientShare> getClients() {
+            return clients;
+        }
+
+        public void setClients(Map<String, ClientShare> clients) {
+            this.clients = clients;
+        }
+    }
+
+    public int getKeyCacheSize() {
+        return keyCacheSize;
+    }
+
+    public void setKeyCacheSize(int keyCacheSize) {
+        this.keyCacheSize = keyCacheSize;
+    }
+
+    public SessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    public void setSessionPool(SessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    public void setKeyPairPool(KeyPairPool keyPairPool) {
+        this.keyPairPool = keyPairPool;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public SessionBudget getSessionBudget() {
+        return sessionBudget;
+    }
+
+    public void setSessionBudget(SessionBudget sessionBudget) {
+        this.sessionBudget = sessionBudget;
+    }
+
+    public long getOrphanReaperIntervalSeconds() {
+        return orphanReaperIntervalSeconds;
+    }
+
+    public void setOrphanReaperIntervalSeconds(long orphanReaperIntervalSeconds) {
+        this.orphanReaperIntervalSeconds = orphanReaperIntervalSeconds;
+    }
+
+    public Fairness getFairness() {
+        return fairness;
+    }
+
+    public void setFairness(Fairness fairness) {
+        this.fairness = fairness;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.config;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Positive;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "keys")
+@Validated
+public class KeysConfig {
+    // provider of the key operations: hsm or software
+    private String provider = "hsm";
+    // storage of the private keys of the new credentials: wrapped or resident
+    private String defaultStorage = "wrapped";
+    @Valid
+    private Rewrap rewrap = new Rewrap();
+
+    public static class Rewrap {
+        // credentials re-wrapped under the newest wrap key in each batch
+        @Positive
+        private int batchSize = 20;
+        // time between the searches for credentials wrapped under an older wrap key
+        private long intervalSeconds = 60;
+        // maximum number of credentials re-wrapped per second; the startup fails if it is not positive
+        @Positive
+        private double maxPerSecond = 5;
+        // the re-wrap pauses while the fraction of the HSM sessions in use is above this value
+        private double maxHsmLoad = 0.5;
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getIntervalSeconds() {
+            return intervalSeconds;
+        }
+
+        public void setIntervalSeconds(long intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        public double getMaxPerSecond() {
+            return maxPerSecond;
+        }
+
+        public void setMaxPerSecond(double maxPerSecond) {
+            this.maxPerSecond = maxPerSecond;
+        }
+
+        public double getMaxHsmLoad() {
+            return maxHsmLoad;
+        }
+
+        public void setMaxHsmLoad(double maxHsmLoad) {
+            this.maxHsmLoad = maxHsmLoad;
+        }
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public void setProvider(String provider) {
+        this.provider = provider;
+    }
+
+    public String getDefaultStorage() {
+        return defaultStorage;
+    }
+
+    public void setDefaultStorage(String defaultStorage) {
+        this.defaultStorage = defaultStorage;
+    }
+
+    public Rewrap getRewrap() {
+        return rewrap;
+    }
+
+    public void setRewrap(Rewrap rewrap) {
+        this.rewrap = rewrap;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "signatures")
+public class SignaturesConfig {
+    private Async async = new Async();
+    private Coalescing coalescing = new Coalescing();
+    private Replay replay = new Replay();
+
+    public static class Async {
+        // threads signing the requests of the asynchronous operation mode
+        private int workers = 2;
+        // time between the searches for pending requests, when no request was received by this instance
+        private long pollIntervalMillis = 1000;
+        // hashes of a request signed in each call to the HSM, within the timeout of the synchronous requests
+        private int chunkSize = 64;
+        // the signatures are kept for this time, or for the validity_period of the request if shorter
+        private long resultTtlSeconds = 600;
+        // a request whose claim was not renewed in this time, after each chunk signed, is signed again
+        private long staleSeconds = 300;
+        // the workers pause while the fraction of the HSM sessions in use is above this value
+        private double maxHsmLoad = 0.8;
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+
+        public long getPollIntervalMillis() {
+            return pollIntervalMillis;
+        }
+
+        public void setPollIntervalMillis(long pollIntervalMillis) {
+            this.pollIntervalMillis = pollIntervalMillis;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public long getResultTtlSeconds() {
+            return resultTtlSeconds;
+        }
+
+        public void setResultTtlSeconds(long resultTtlSeconds) {
+            this.resultTtlSeconds = resultTtlSeconds;
+        }
+
+        public long getStaleSeconds() {
+            return staleSeconds;
+        }
+
+        public void setStaleSeconds(long staleSeconds) {
+            this.staleSeconds = staleSeconds;
+        }
+
+        public double getMaxHsmLoad() {
+            return maxHsmLoad;
+        }
+
+        public void setMaxHsmLoad(double maxHsmLoad) {
+            this.maxHsmLoad = maxHsmLoad;
+        }
+    }
+
+    public static class Coalescing {
+        // the small requests for the same credential received at about the same time are signed together
+        private boolean enabled = false;
+        // time the first request of a batch waits for other requests for the same credential
+        private long windowMillis = 2;
+        // hashes of the requests signed together, a batch is sent to the HSM as soon as it reaches this size
+        private int maxBatchSize = 16;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getWindowMillis() {
+            return windowMillis;
+        }
+
+        public void setWindowMillis(long windowMillis) {
+            this.windowMillis = windowMillis;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public void setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+        }
+    }
+
+    public static class Replay {
+        // a signHash request repeated with the same access token gets the response of the first one
+        private boolean enabled = true;
+        // time a response is kept when the access token has no expiry; otherwise it is kept until the token expires
+        private long ttlSeconds = 600;
+        // the signature values of the responses with more signatures are not kept, and their retries sign again
+        private int maxSignatures = 64;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public int getMaxSignatures() {
+            return maxSignatures;
+        }
+
+        public void setMaxSignatures(int maxSignatures) {
+            this.maxSignatures = maxSignatures;
+        }
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public void setAsync(Async async) {
+        this.async = async;
+    }
+
+    public Coalescing getCoalescing() {
+        return coalescing;
+    }
+
+    public void setCoalescing(Coalescing coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public Replay getReplay() {
+        return replay;
+    }
+
+    public void setReplay(Replay replay) {
+        this.replay = replay;
+    }
+}
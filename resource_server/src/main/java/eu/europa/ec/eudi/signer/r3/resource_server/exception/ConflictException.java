@@ -0,0 +1,39 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.exception;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * A 409 response, with the Retry-After header telling the client when to send the request again.
+ */
+public class ConflictException extends ResponseStatusException {
+
+    private final HttpHeaders headers = new HttpHeaders();
+
+    public ConflictException(String reason, long retryAfterSeconds) {
+        super(HttpStatus.CONFLICT, reason);
+        this.headers.set(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return this.headers;
+    }
+}
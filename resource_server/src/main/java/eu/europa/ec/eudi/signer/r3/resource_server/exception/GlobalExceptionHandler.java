@@ -52,6 +52,6 @@ public class GlobalExceptionHandler {
 		Map<String, String> errors = new HashMap<>();
 		errors.put("message", ex.getReason());
 
-		return new ResponseEntity<>(errors, HttpStatus.BAD_REQUEST);
+		return new ResponseEntity<>(errors, ex.getHeaders(), ex.getStatusCode());
 	}
 }
\ No newline at end of file
@@ -16,14 +16,15 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.model;
 
+import eu.europa.ec.eudi.signer.r3.resource_server.config.KeysConfig;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.certificates.CertificatesService;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.certificates.ejbca.EjbcaService;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.CertificateChain;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyPairPool;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyPairRegister;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeysService;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.CredentialsInfo.CredentialsInfoCert;
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.CredentialsInfo.CredentialsInfoKey;
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.CredentialsInfo.CredentialsInfoAuth;
@@ -31,22 +32,57 @@ import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.CredentialsInfoRespon
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.CredentialsListResponse;
 import java.util.*;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class CredentialsService {
 
+    private static final Logger logger = LoggerFactory.getLogger(CredentialsService.class);
+
+    // the algorithms the keys of the credentials created can be used with (keyAlgo)
+    public static final List<String> RSA_KEY_ALGORITHMS = List.of(
+          "1.2.840.113549.1.1.1", // rsaEncryption
+          "1.2.840.113549.1.1.11", // sha256WithRSAEncryption
+          "1.2.840.113549.1.1.12", // sha384WithRSAEncryption
+          "1.2.840.113549.1.1.13" // sha512WithRSAEncryption
+    );
+    public static final List<String> EC_KEY_ALGORITHMS = List.of(
+          "1.2.840.10045.2.1", // ecPublicKey
+          "1.2.840.10045.4.3.2" // ecdsa-with-SHA256
+          //"1.2.840.10045.4.3.3", // ecdsa-with-SHA384
+          //"1.2.840.10045.4.3.4", // ecdsa-with-SHA512
+    );
+
     private final CertificatesService certificatesService;
     private final CredentialsRepository credentialsRepository;
-    private final KeysService keysService;
+    private final SigningCredentialCache signingCredentials;
+    private final KeyPairPool keyPairPool;
+    private final KeyOperations keyOperations;
+    private final String defaultKeyStorage;
+    // deletes the resident keys once the other instances no longer have the credential cached as resident; the
+    // deletions lost when the instance stops are done by the HsmObjectReaper, which destroys the stale resident keys
+    private final ScheduledExecutorService residentKeyDeletions = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "resident-key-deletion");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public CredentialsService(@Autowired HsmService hsmService, @Autowired EjbcaService ejbcaService,
-          @Autowired CredentialsRepository credentialsRepository){
+    public CredentialsService(@Autowired KeyOperations keyOperations, @Autowired EjbcaService ejbcaService,
+          @Autowired CredentialsRepository credentialsRepository, @Autowired KeyPairPool keyPairPool,
+          @Autowired KeysConfig keysProperties, @Autowired SigningCredentialCache signingCredentials){
         this.credentialsRepository = credentialsRepository;
-        this.keysService = new KeysService(hsmService);
-        this.certificatesService = new CertificatesService(hsmService, ejbcaService);
+        this.signingCredentials = signingCredentials;
+        this.keyPairPool = keyPairPool;
+        this.keyOperations = keyOperations;
+        this.defaultKeyStorage = keysProperties.getDefaultStorage();
+        this.certificatesService = new CertificatesService(keyOperations, ejbcaService);
     }
 
     /**
@@ -199,10 +235,10 @@ public class CredentialsService {
         throws Exception{
         int keySizeInBits = 2048;
         Credentials credential = new Credentials();
-        KeyPairRegister keysValues = this.keysService.generateRSAKeyPair(keySizeInBits);
+        KeyPairRegister keysValues = this.keyPairPool.takeRSA2048KeyPair();
 
         List<X509Certificate> EJBCACertificates = this.certificatesService.generateRSACertificates(keysValues.getPublicKeyValue(),
-              givenName, surname, name, issuingCountry, keysValues.getPrivateKeyBytes());
+              givenName, surname, name, issuingCountry, keysValues.getPrivateKeyBytes(), keysValues.getWrapKeyVersion());
         X509Certificate signingCertificate = EJBCACertificates.get(0);
         List<X509Certificate> certificateChain = EJBCACertificates.subList(1, EJBCACertificates.size());
 
@@ -220,20 +256,20 @@ public class CredentialsService {
         credential.setMultisign(1);
         credential.setLang("en-US");
         credential.setPrivateKey(Base64.getEncoder().encodeToString(keysValues.getPrivateKeyBytes()));
+        credential.setWrapKeyVersion(keysValues.getWrapKeyVersion());
         credential.setPublicKey( Base64.getEncoder().encodeToString(keysValues.getPublicKeyValue().getEncoded()));
         credential.setKeyStatus("enabled");
-        List<String> keyAlgo = new ArrayList<>();
-        keyAlgo.add("1.2.840.113549.1.1.1"); // rsaEncryption
-        keyAlgo.add("1.2.840.113549.1.1.11"); // sha256WithRSAEncryption
-        keyAlgo.add("1.2.840.113549.1.1.12"); // sha384WithRSAEncryption
-        keyAlgo.add("1.2.840.113549.1.1.13"); // sha512WithRSAEncryption
-        credential.setKeyAlgo(keyAlgo);
+        credential.setKeyAlgo(new ArrayList<>(RSA_KEY_ALGORITHMS));
         credential.setKeyLen(keySizeInBits);
         credential.setCertStatus("valid");
         credential.setCertificate(this.certificatesService.base64EncodeCertificate(signingCertificate));
         credential.setCertificateChain(certs);
         credential.setAuthMode("oauth2code");
         this.credentialsRepository.save(credential);
+        this.signingCredentials.invalidate(credential.getId());
+        if (Credentials.RESIDENT_KEY_STORAGE.equals(this.defaultKeyStorage)) {
+            setKeyStorage(credential.getId(), Credentials.RESIDENT_KEY_STORAGE);
+        }
     }
 
     /**
@@ -247,10 +283,10 @@ public class CredentialsService {
     public void createECDSAP256Credential(String userHash, String givenName, String surname, String name, String issuingCountry)
           throws Exception{
         Credentials credential = new Credentials();
-        KeyPairRegister keyValues = this.keysService.generateP256KeyPair();
+        KeyPairRegister keyValues = this.keyPairPool.takeP256KeyPair();
 
         List<X509Certificate> EJBCACertificates = this.certificatesService.generateP256Certificates(keyValues.getPublicKeyValue(), givenName,
-              surname, name, issuingCountry, keyValues.getPrivateKeyBytes());
+              surname, name, issuingCountry, keyValues.getPrivateKeyBytes(), keyValues.getWrapKeyVersion());
         X509Certificate signingCertificate = EJBCACertificates.get(0);
 
         List<X509Certificate> certificateChain = EJBCACertificates.subList(1, EJBCACertificates.size());
@@ -269,14 +305,10 @@ public class CredentialsService {
         credential.setMultisign(1);
         credential.setLang("en-US");
         credential.setPrivateKey(Base64.getEncoder().encodeToString(keyValues.getPrivateKeyBytes()));
+        credential.setWrapKeyVersion(keyValues.getWrapKeyVersion());
         credential.setPublicKey(Base64.getEncoder().encodeToString(keyValues.getPublicKeyValue().getEncoded()));
         credential.setKeyStatus("enabled");
-        List<String> keyAlgo = new ArrayList<>();
-        keyAlgo.add("1.2.840.10045.2.1"); // ecPublicKey
-        keyAlgo.add("1.2.840.10045.4.3.2"); // ecdsa-with-SHA256
-        //keyAlgo.add("1.2.840.10045.4.3.3"); // ecdsa-with-SHA384
-        //keyAlgo.add("1.2.840.10045.4.3.4"); // ecdsa-with-SHA512
-        credential.setKeyAlgo(keyAlgo);
+        credential.setKeyAlgo(new ArrayList<>(EC_KEY_ALGORITHMS));
         credential.setKeyLen(256);
         credential.setKeyCurve("1.2.840.10045.3.1.7");
         credential.setCertStatus("valid");
@@ -284,6 +316,65 @@ public class CredentialsService {
         credential.setCertificateChain(certs);
         credential.setAuthMode("oauth2code");
         this.credentialsRepository.save(credential);
+        this.signingCredentials.invalidate(credential.getId());
+        if (Credentials.RESIDENT_KEY_STORAGE.equals(this.defaultKeyStorage)) {
+            setKeyStorage(credential.getId(), Credentials.RESIDENT_KEY_STORAGE);
+        }
+    }
+
+    /**
+     * Function that returns the storage of the private key of a credential
+     * @param credentialId the identifier of the credential
+     * @return wrapped or resident
+     */
+    public String getKeyStorage(String credentialId) throws Exception{
+        Credentials credential = this.credentialsRepository.findById(credentialId)
+              .orElseThrow(() -> new Exception("No credential was found with the given identifier."));
+        return credential.getKeyStorage();
+    }
+
+    /**
+     * Function that moves the private key of a credential between the storage modes. With the resident storage
+     * the key is also kept in the HSM as a persistent object and signs without being unwrapped, using space in the
+     * token. The wrapped private key is kept in the database in both modes. When the key is moved back to the wrapped
+     * storage, the persistent object is only destroyed after the time the other instances may still sign with it.
+     * @param credentialId the identifier of the credential
+     * @param keyStorage the new storage of the private key: wrapped or resident
+     */
+    public void setKeyStorage(String credentialId, String keyStorage) throws Exception{
+        Credentials credential = this.credentialsRepository.findById(credentialId)
+              .orElseThrow(() -> new Exception("No credential was found with the given identifier."));
+        if (keyStorage.equals(credential.getKeyStorage())) {
+            return;
+        }
+        if (Credentials.RESIDENT_KEY_STORAGE.equals(keyStorage)) {
+            // the key is stored before the credential is updated, so the credential never points to a missing key
+            this.keyOperations.storeResidentKey(credentialId, Base64.getDecoder().decode(credential.getPrivateKey()),
+                  credential.getWrapKeyVersion(), credential.privateKeyAlgorithm());
+            this.credentialsRepository.updateKeyStorage(credentialId, Credentials.RESIDENT_KEY_STORAGE);
+            this.signingCredentials.invalidate(credentialId);
+        }
+        else if (Credentials.WRAPPED_KEY_STORAGE.equals(keyStorage)) {
+            this.credentialsRepository.updateKeyStorage(credentialId, Credentials.WRAPPED_KEY_STORAGE);
+            this.signingCredentials.invalidate(credentialId);
+            this.residentKeyDeletions.schedule(() -> deleteResidentKey(credentialId),
+                  this.signingCredentials.getTtlMillis(), TimeUnit.MILLISECONDS);
+        }
+        else throw new Exception("The key storage must be " + Credentials.WRAPPED_KEY_STORAGE + " or "
+                  + Credentials.RESIDENT_KEY_STORAGE + ".");
+    }
+
+    // the key is kept if the credential was moved back to the resident storage in the meantime
+    private void deleteResidentKey(String credentialId) {
+        try {
+            Optional<Credentials> credential = this.credentialsRepository.findById(credentialId);
+            if (credential.isPresent() && credential.get().hasResidentKey()) {
+                return;
+            }
+            this.keyOperations.deleteResidentKey(credentialId);
+        } catch (Exception e) {
+            logger.error("Failed to delete the resident key of the credential {}: {}", credentialId, e.getMessage());
+        }
     }
 
     /**
@@ -0,0 +1,115 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.InfoConfig;
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.EncryptionAlgorithm;
+import eu.europa.esig.dss.enumerations.SignatureAlgorithm;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * The signature algorithm used for each signAlgo and hashAlgorithmOID of the signature requests, resolved when the
+ * application starts for the algorithms in info.signAlgorithms and in the keyAlgo of the credentials created.
+ * The resolved algorithm is the algorithm of the key (RSA or ECDSA), as the values received are already hashed:
+ * <ul>
+ *     <li>if signAlgo is a signature algorithm with a hash (for example ecdsa-with-SHA256), the hashAlgorithmOID
+ *     is not used;</li>
+ *     <li>if signAlgo is the algorithm of a key (for example ecPublicKey), the hashAlgorithmOID must be a hash
+ *     algorithm that can be used with it.</li>
+ * </ul>
+ */
+@Component
+public class SignatureAlgorithmTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureAlgorithmTable.class);
+
+    /**
+     * The resolution of a signAlgo: a signature algorithm for any hash algorithm, or one for each hash algorithm.
+     */
+    private record Resolution(String signatureAlgorithm, Map<String, String> byHashAlgorithm) {}
+
+    private final Map<String, Resolution> resolutions;
+
+    public SignatureAlgorithmTable(@Autowired InfoConfig infoProperties) {
+        Set<String> signAlgos = new LinkedHashSet<>();
+        if (infoProperties.getSignAlgorithms() != null && infoProperties.getSignAlgorithms().getAlgos() != null) {
+            signAlgos.addAll(infoProperties.getSignAlgorithms().getAlgos());
+        }
+        signAlgos.addAll(CredentialsService.RSA_KEY_ALGORITHMS);
+        signAlgos.addAll(CredentialsService.EC_KEY_ALGORITHMS);
+
+        Map<String, Resolution> resolutions = new HashMap<>();
+        for (String signAlgo : signAlgos) {
+            Resolution resolution = resolve(signAlgo);
+            if (resolution == null) {
+                logger.warn("The signature algorithm {} is not supported.", signAlgo);
+                continue;
+            }
+            resolutions.put(signAlgo, resolution);
+            logger.info("Resolved the signature algorithm {}: {}", signAlgo, resolution.signatureAlgorithm() != null ?
+                  resolution.signatureAlgorithm() : resolution.byHashAlgorithm().size() + " hash algorithms");
+        }
+        this.resolutions = Map.copyOf(resolutions);
+    }
+
+    // the only place where the OIDs are parsed, and where the exceptions of the DSS lookups are handled
+    private static Resolution resolve(String signAlgo) {
+        try {
+            SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.forOID(signAlgo);
+            return new Resolution(signatureAlgorithm.getEncryptionAlgorithm().getName(), Map.of());
+        } catch (IllegalArgumentException e) {
+            // not a signature algorithm with a hash
+        }
+
+        EncryptionAlgorithm encryptionAlgorithm;
+        try {
+            encryptionAlgorithm = EncryptionAlgorithm.forOID(signAlgo);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        Map<String, String> byHashAlgorithm = new HashMap<>();
+        for (DigestAlgorithm digestAlgorithm : DigestAlgorithm.values()) {
+            SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.getAlgorithm(encryptionAlgorithm, digestAlgorithm);
+            if (digestAlgorithm.getOid() != null && signatureAlgorithm != null && signatureAlgorithm.getOid() != null) {
+                byHashAlgorithm.put(digestAlgorithm.getOid(), encryptionAlgorithm.getName());
+            }
+        }
+        return byHashAlgorithm.isEmpty() ? null : new Resolution(null, Map.copyOf(byHashAlgorithm));
+    }
+
+    /**
+     * Function that returns the signature algorithm to use for a signature request.
+     * @param signAlgo the OID of the signature algorithm requested
+     * @param hashAlgorithmOID the OID of the hash algorithm of the values to sign
+     * @return the name of the signature algorithm, or empty if the combination is not supported
+     */
+    public Optional<String> resolve(String signAlgo, String hashAlgorithmOID) {
+        Resolution resolution = this.resolutions.get(signAlgo);
+        if (resolution == null) return Optional.empty();
+        if (resolution.signatureAlgorithm() != null) return Optional.of(resolution.signatureAlgorithm());
+        return hashAlgorithmOID == null ? Optional.empty() : Optional.ofNullable(resolution.byHashAlgorithm().get(hashAlgorithmOID));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmExecutor;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Coalesces the small signature requests for the same credential received at about the same time, so that they are
+ * signed in a single HSM operation: one session and one unwrap of the private key for all of them. Only the requests
+ * of the same OAuth client are coalesced, so that each batch is charged to the share of its own client.
+ * The first request for a credential opens a batch, which is sent to the HSM workers when the window configured in
+ * signatures.coalescing passes or as soon as it reaches the maximum batch size. Each request receives the signatures
+ * of its own values, and all the requests of a batch fail together if the HSM operation fails.
+ */
+@Component
+public class SignatureCoalescer {
+
+    @FunctionalInterface
+    public interface BatchSigner {
+        List<byte[]> sign(List<byte[]> values) throws Exception;
+    }
+
+    private record Part(int offset, int size, CompletableFuture<List<byte[]>> result) {}
+
+    private static final class Batch {
+        private final HsmExecutor.Tenant tenant;
+        private final BatchSigner signer;
+        private final List<byte[]> values = new ArrayList<>();
+        private final List<Part> parts = new ArrayList<>();
+        private long deadline;
+
+        private Batch(HsmExecutor.Tenant tenant, BatchSigner signer, long deadline) {
+            this.tenant = tenant;
+            this.signer = signer;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureCoalescer.class);
+
+    private final HsmExecutor hsmExecutor;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    // the batches not sent to the HSM yet, by client, credential and signature algorithm
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final DistributionSummary batchSizes;
+
+    public SignatureCoalescer(@Autowired HsmExecutor hsmExecutor, @Autowired SignaturesConfig signaturesProperties,
+                              @Autowired MeterRegistry meterRegistry) {
+        SignaturesConfig.Coalescing coalescingProperties = signaturesProperties.getCoalescing();
+        this.hsmExecutor = hsmExecutor;
+        this.enabled = coalescingProperties.isEnabled() && coalescingProperties.getWindowMillis() > 0
+              && coalescingProperties.getMaxBatchSize() > 1;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(coalescingProperties.getWindowMillis());
+        this.maxBatchSize = coalescingProperties.getMaxBatchSize();
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "signature-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.batchSizes = DistributionSummary.builder("signatures.coalesced.batch.size")
+              .description("Hashes of the signature requests signed together in a single HSM operation")
+              .register(meterRegistry);
+        if (this.enabled) {
+            logger.info("Coalescing the signature requests for the same credential over {} ms, up to {} hashes.",
+                  coalescingProperties.getWindowMillis(), this.maxBatchSize);
+        }
+    }
+
+    /**
+     * Function that checks if a request with the given number of values is coalesced. The requests that fill a batch
+     * by themselves are signed directly.
+     */
+    public boolean accepts(int size) {
+        return this.enabled && size < this.maxBatchSize;
+    }
+
+    /**
+     * Function that adds the values of a request to the open batch of the key, or opens one.
+     * @param key      identifies the requests that can be signed together: the credential and the signature algorithm
+     * @param tenant   the client and user of the request; only the requests of the same client are signed together,
+     *                 and the batch is queued for the tenant of the request opening it
+     * @param values   the values to sign, already prepared for the signature algorithm
+     * @param signer   signs the values of the batch, if this request opens it
+     * @param deadline the deadline of the request; the batch is started until the latest deadline of its requests
+     * @return a future completed with the signatures of the values, in order, or with the error of the HSM operation
+     */
+    public CompletableFuture<List<byte[]>> submit(String key, HsmExecutor.Tenant tenant, List<byte[]> values,
+                                                  BatchSigner signer, long deadline) {
+        CompletableFuture<List<byte[]>> result = new CompletableFuture<>();
+        String batchKey = tenant.clientId() + "/" + key;
+        List<Batch> ready = new ArrayList<>(2);
+        synchronized (this.openBatches) {
+            Batch batch = this.openBatches.get(batchKey);
+            if (batch != null && batch.values.size() + values.size() > this.maxBatchSize) {
+                this.openBatches.remove(batchKey);
+                ready.add(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                Batch opened = new Batch(tenant, signer, deadline);
+                this.openBatches.put(batchKey, opened);
+                this.timer.schedule(() -> close(batchKey, opened), this.windowNanos, TimeUnit.NANOSECONDS);
+                batch = opened;
+            }
+            batch.parts.add(new Part(batch.values.size(), values.size(), result));
+            batch.values.addAll(values);
+            if (deadline - batch.deadline > 0) {
+                batch.deadline = deadline;
+            }
+            if (batch.values.size() >= this.maxBatchSize) {
+                this.openBatches.remove(batchKey);
+                ready.add(batch);
+            }
+        }
+        ready.forEach(this::dispatch);
+        return result;
+    }
+
+    private void close(String key, Batch batch) {
+        boolean removed;
+        synchronized (this.openBatches) {
+            removed = this.openBatches.remove(key, batch);
+        }
+        if (removed) {
+            dispatch(batch);
+        }
+    }
+
+    // the batch is no longer in openBatches, so no request changes it anymore
+    private void dispatch(Batch batch) {
+        this.batchSizes.record(batch.values.size());
+        this.hsmExecutor.submit(batch.tenant, batch.values.size(), () -> batch.signer.sign(batch.values), batch.deadline)
+              .whenComplete((signatures, error) -> {
+                  for (Part part : batch.parts) {
+                      if (error != null) {
+                          part.result().completeExceptionally(error);
+                      } else {
+                          part.result().complete(signatures.subList(part.offset(), part.offset() + part.size()));
+                      }
+                  }
+              });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.timer.shutdownNow();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SignatureJobRepository;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * The signature requests of the asynchronous operation mode. The requests are saved in the database and answered
+ * with a responseID, and the signatures are obtained later with the responseID, once signed by a SignatureJobWorker.
+ */
+@Service
+public class SignatureJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureJobService.class);
+    private final SignatureJobRepository signatureJobRepository;
+    private final SignatureJobWorker signatureJobWorker;
+    private final Duration resultTtl;
+
+    public SignatureJobService(@Autowired SignatureJobRepository signatureJobRepository,
+                               @Autowired SignatureJobWorker signatureJobWorker,
+                               @Autowired SignaturesConfig signaturesProperties) {
+        this.signatureJobRepository = signatureJobRepository;
+        this.signatureJobWorker = signatureJobWorker;
+        this.resultTtl = Duration.ofSeconds(signaturesProperties.getAsync().getResultTtlSeconds());
+    }
+
+    /**
+     * Function that saves a signature request to be signed in the background.
+     * @param clientId the OAuth client that made the request, whose share of the HSM workers it is signed with
+     * @param validityPeriodMillis the time the signatures are kept for the client, or 0 to use the configured time
+     * @return the responseID with which the signatures are obtained
+     */
+    public String submit(String clientId, String userId, String credentialID, List<byte[]> hashes, String hashAlgorithmOID,
+                         String signAlgo, String signAlgoParams, long validityPeriodMillis) {
+        Duration ttl = this.resultTtl;
+        if (validityPeriodMillis > 0 && validityPeriodMillis < ttl.toMillis()) {
+            ttl = Duration.ofMillis(validityPeriodMillis);
+        }
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        String responseID = UUID.randomUUID().toString();
+        this.signatureJobRepository.save(new SignatureJob(responseID, clientId, userId, credentialID,
+              SignatureJob.encodeValues(hashes), hashAlgorithmOID, signAlgo, signAlgoParams, now, now.plus(ttl)));
+        logger.info("Saved the asynchronous signature request {} with {} hashes.", responseID, hashes.size());
+        this.signatureJobWorker.wakeUp();
+        return responseID;
+    }
+
+    /**
+     * Function that returns the signature request with the given responseID, if it was requested by the user
+     * with the credential and hasn't expired.
+     */
+    public Optional<SignatureJob> get(String userId, String credentialID, String responseID) {
+        return this.signatureJobRepository.findById(responseID)
+              .filter(job -> job.getUserID().equals(userId) && job.getCredentialID().equals(credentialID))
+              .filter(job -> job.getExpiresAt().isAfter(Instant.now()));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SignatureJobRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Signs the requests of the asynchronous operation mode saved by any instance. Each request is claimed by a single
+ * worker, and signed in chunks through the same HSM pool as the synchronous requests. The workers pause while most
+ * of the HSM sessions are in use, so that the asynchronous requests smooth the load instead of competing with the
+ * synchronous ones, and each request is queued with the OAuth client that made it, within the share of that client.
+ * The claim of a request is renewed after each chunk, so the requests claimed by an instance that stopped are signed
+ * again once their claim is stale, while the ones still progressing are not. The expired requests are removed.
+ */
+@Component
+public class SignatureJobWorker implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureJobWorker.class);
+    private static final long BUSY_PAUSE_MILLIS = 1000;
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 60_000;
+    private static final int MAX_BUSY_RETRIES = 10;
+    // the OAuth client id of the requests saved before the client was recorded
+    private static final String UNKNOWN_CLIENT_ID = "async";
+
+    private final SignatureJobRepository signatureJobRepository;
+    private final SignaturesService signaturesService;
+    private final KeyOperations keyOperations;
+    private final SignaturesConfig.Async asyncProperties;
+    private final Counter completedCounter;
+    private final Counter failedCounter;
+    private final AtomicLong nextMaintenance = new AtomicLong();
+    private final Object wakeUpSignal = new Object();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private volatile boolean running = false;
+
+    public SignatureJobWorker(@Autowired SignatureJobRepository signatureJobRepository,
+                              @Autowired SignaturesService signaturesService,
+                              @Autowired KeyOperations keyOperations,
+                              @Autowired SignaturesConfig signaturesProperties,
+                              @Autowired MeterRegistry meterRegistry) {
+        this.signatureJobRepository = signatureJobRepository;
+        this.signaturesService = signaturesService;
+        this.keyOperations = keyOperations;
+        this.asyncProperties = signaturesProperties.getAsync();
+        this.completedCounter = Counter.builder("signatures.async.completed")
+              .description("Asynchronous signature requests signed")
+              .register(meterRegistry);
+        this.failedCounter = Counter.builder("signatures.async.failed")
+              .description("Asynchronous signature requests that failed")
+              .register(meterRegistry);
+    }
+
+    public void wakeUp() {
+        synchronized (this.wakeUpSignal) {
+            this.wakeUpSignal.notify();
+        }
+    }
+
+    /**
+     * Function that claims the oldest pending request not claimed by another worker.
+     * @return the request claimed, or null if there is no pending request
+     */
+    private SignatureJob claimNext() {
+        List<String> pending = this.signatureJobRepository.findPendingIds(PageRequest.of(0, 2 * this.asyncProperties.getWorkers()));
+        for (String id : pending) {
+            if (this.signatureJobRepository.claim(id, Instant.now().truncatedTo(ChronoUnit.MILLIS)) == 1) {
+                return this.signatureJobRepository.findById(id).orElse(null);
+            }
+        }
+        return null;
+    }
+
+    private void sign(SignatureJob job) throws InterruptedException {
+        List<byte[]> hashes = job.getHashes();
+        List<byte[]> signatures = new ArrayList<>(hashes.size());
+        Instant claimedAt = job.getStartedAt();
+        String status = SignatureJob.DONE;
+        String error = null;
+        try {
+            int chunkSize = Math.max(1, this.asyncProperties.getChunkSize());
+            for (int start = 0; start < hashes.size() && this.running; start += chunkSize) {
+                signatures.addAll(signChunk(job, hashes.subList(start, Math.min(start + chunkSize, hashes.size()))));
+                Instant renewedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+                if (this.signatureJobRepository.renew(job.getId(), claimedAt, renewedAt) == 0) {
+                    logger.warn("The asynchronous signature request {} was claimed again while being signed.", job.getId());
+                    return;
+                }
+                claimedAt = renewedAt;
+            }
+            if (!this.running) {
+                // left running, to be signed again once stale
+                return;
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (!this.running) return;
+            logger.error("Failed to sign the asynchronous signature request {}: {}", job.getId(), e.getMessage());
+            status = SignatureJob.FAILED;
+            error = e.getMessage();
+        }
+
+        if (this.signatureJobRepository.complete(job.getId(), claimedAt, status,
+              status.equals(SignatureJob.DONE) ? SignatureJob.encodeValues(signatures) : null, error) == 0) {
+            logger.warn("The asynchronous signature request {} was claimed again before being completed.", job.getId());
+            return;
+        }
+        if (status.equals(SignatureJob.DONE)) {
+            this.completedCounter.increment();
+            logger.info("Signed the asynchronous signature request {} with {} hashes.", job.getId(), hashes.size());
+        } else {
+            this.failedCounter.increment();
+        }
+    }
+
+    // the chunks rejected because the HSM is busy are retried after a pause, instead of failing the request
+    private List<byte[]> signChunk(SignatureJob job, List<byte[]> hashes) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            awaitHsmCapacity();
+            try {
+                List<byte[]> signatures = new ArrayList<>(hashes.size());
+                String clientId = job.getClientID() != null ? job.getClientID() : UNKNOWN_CLIENT_ID;
+                this.signaturesService.signHashValues(clientId, job.getUserID(), job.getCredentialID(), hashes,
+                      job.getHashAlgorithmOID(), job.getSignAlgo(), job.getSignAlgoParams(), signatures::addAll);
+                return signatures;
+            } catch (RejectedExecutionException | TimeoutException e) {
+                if (attempt >= MAX_BUSY_RETRIES || !this.running) throw e;
+                logger.debug("The HSM is busy, retrying the asynchronous signature request {}.", job.getId());
+                Thread.sleep(BUSY_PAUSE_MILLIS);
+            }
+        }
+    }
+
+    private void awaitHsmCapacity() throws InterruptedException {
+        while (this.running && this.keyOperations.getLoad() > this.asyncProperties.getMaxHsmLoad()) {
+            Thread.sleep(BUSY_PAUSE_MILLIS);
+        }
+    }
+
+    // run by a single worker of the instance at a time
+    private void maintenance() {
+        long now = System.currentTimeMillis();
+        long next = this.nextMaintenance.get();
+        if (now < next || !this.nextMaintenance.compareAndSet(next, now + MAINTENANCE_INTERVAL_MILLIS)) {
+            return;
+        }
+        int requeued = this.signatureJobRepository.requeueStale(
+              Instant.now().minusSeconds(this.asyncProperties.getStaleSeconds()));
+        if (requeued > 0) {
+            logger.warn("Re-queued {} asynchronous signature requests not completed by the instance that claimed them.", requeued);
+        }
+        int deleted = this.signatureJobRepository.deleteExpired(Instant.now());
+        if (deleted > 0) {
+            logger.info("Removed {} expired asynchronous signature requests.", deleted);
+        }
+    }
+
+    private void work() {
+        while (this.running) {
+            try {
+                this.keyOperations.whenReady().get();
+                maintenance();
+                SignatureJob job = claimNext();
+                if (job != null) {
+                    sign(job);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Failed to process the asynchronous signature requests: {}", e.getMessage());
+            }
+            try {
+                synchronized (this.wakeUpSignal) {
+                    this.wakeUpSignal.wait(this.asyncProperties.getPollIntervalMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+        for (int i = 0; i < this.asyncProperties.getWorkers(); i++) {
+            Thread thread = new Thread(this::work, "signature-job-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.workerThreads.add(thread);
+        }
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        this.workerThreads.forEach(Thread::interrupt);
+        this.workerThreads.clear();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+}
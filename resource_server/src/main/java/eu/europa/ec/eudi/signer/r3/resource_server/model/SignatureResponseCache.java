@@ -0,0 +1,335 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureReplay;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SignatureReplayRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the responses of the signHash requests by access token, so that a wallet retrying a request after a network
+ * timeout receives the signatures already computed instead of signing the hashes again in the HSM, and so that the
+ * access token, which authorizes a single signature request, can't be used for a different one. A retry received
+ * while the first request is still being signed in the same instance waits for its response.
+ * The requests are recorded in the signature_replays table until their access token expires, so the access token is
+ * single use in all the instances, and the responses are not evicted before. The signature values of the responses
+ * with many signatures are not kept. The retries of a request being signed by another instance wait for its row to be
+ * completed, and the retries of a request whose first one failed sign the hashes.
+ */
+@Service
+public class SignatureResponseCache {
+
+    /**
+     * The response of a signHash request: the signature values in the synchronous operation mode, or the responseID
+     * in the asynchronous operation mode.
+     */
+    public record Response(List<byte[]> signatures, String responseID) {
+
+        /**
+         * Whether the signature values were not kept, because there were too many: the retries sign again.
+         */
+        public boolean signaturesDiscarded() {
+            return this.signatures == null && this.responseID == null;
+        }
+    }
+
+    /**
+     * The response of a request, and whether the caller is the first request with the access token. The first
+     * request signs and completes the response, or calls fail; the retries wait for it.
+     */
+    public record Ticket(CompletableFuture<Response> response, boolean first) {}
+
+    /**
+     * Thrown when the access token was already used for a different signature request.
+     */
+    public static class TokenReusedException extends Exception {
+        public TokenReusedException() {
+            super("The access token was already used for a different signature request.");
+        }
+    }
+
+    /**
+     * Thrown when the first request with the access token is still being signed by another instance after the wait
+     * timeout: the client can send the request again after the given time.
+     */
+    public static class RequestInProgressException extends Exception {
+        private final long retryAfterSeconds;
+
+        public RequestInProgressException(long retryAfterSeconds) {
+            super("The signature request is still being signed by another instance.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    private record Entry(byte[] fingerprint, CompletableFuture<Response> response) {}
+
+    private static final Logger logger = LoggerFactory.getLogger(SignatureResponseCache.class);
+    // the access tokens are accepted until this time after their expiry, as in the JWT validation of Spring Security
+    private static final Duration CLOCK_SKEW = Duration.ofSeconds(60);
+    private static final long CLEANUP_INTERVAL_MILLIS = 60_000;
+    // the interval at which the row of a request being signed by another instance is read, until it is answered
+    private static final long POLL_INTERVAL_MILLIS = 200;
+
+    private final SignatureReplayRepository replayRepository;
+    private final boolean enabled;
+    // the requests being signed by this instance, whose retries wait for them
+    private final Map<String, Entry> inFlight = new ConcurrentHashMap<>();
+    private final Duration ttl;
+    private final int maxSignatures;
+    private final long waitTimeoutMillis;
+    private final AtomicLong nextCleanup = new AtomicLong();
+    private final Counter first;
+    private final Counter replayed;
+    private final Counter rejected;
+
+    public SignatureResponseCache(@Autowired SignatureReplayRepository replayRepository,
+                                  @Autowired SignaturesConfig signaturesProperties, @Autowired HsmConfig hsmProperties,
+                                  @Autowired MeterRegistry meterRegistry) {
+        SignaturesConfig.Replay replayProperties = signaturesProperties.getReplay();
+        this.replayRepository = replayRepository;
+        this.enabled = replayProperties.isEnabled();
+        this.ttl = Duration.ofSeconds(replayProperties.getTtlSeconds());
+        this.maxSignatures = replayProperties.getMaxSignatures();
+        this.waitTimeoutMillis = hsmProperties.getExecutor().getRequestTimeoutMillis();
+
+        this.first = Counter.builder("signatures.replay.requests").tag("result", "first")
+              .description("Signature requests received for the first time with their access token")
+              .register(meterRegistry);
+        this.replayed = Counter.builder("signatures.replay.requests").tag("result", "replayed")
+              .description("Signature requests repeated with the same access token")
+              .register(meterRegistry);
+        this.rejected = Counter.builder("signatures.replay.requests").tag("result", "rejected")
+              .description("Signature requests rejected because their access token was used for a different request")
+              .register(meterRegistry);
+    }
+
+    /**
+     * Function that identifies an access token: by its jti claim, or else by the hash of the token.
+     */
+    public static String tokenKey(String jti, String tokenValue) throws Exception {
+        if (jti != null && !jti.isEmpty()) return "jti:" + jti;
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(tokenValue.getBytes(StandardCharsets.UTF_8));
+        return "sha256:" + HexFormat.of().formatHex(hash);
+    }
+
+    /**
+     * Function that calculates the fingerprint of a signature request, which identifies a retry of the same request.
+     * The hashes are taken in the order of the request, so that the replayed signatures are in the expected order.
+     */
+    public static byte[] fingerprint(String operationMode, String credentialID, String hashAlgorithmOID, String signAlgo,
+                                     String signAlgoParams, List<byte[]> hashes) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String value : new String[]{operationMode, credentialID, hashAlgorithmOID, signAlgo, signAlgoParams}) {
+            update(digest, value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8));
+        }
+        for (byte[] hash : hashes) {
+            update(digest, hash);
+        }
+        return digest.digest();
+    }
+
+    // each value is preceded by its length, so that the fingerprints of different requests can't be the same
+    private static void update(MessageDigest digest, byte[] value) {
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array());
+        digest.update(value);
+    }
+
+    /**
+     * Function that registers a signature request with its access token.
+     * @param expiresAt the expiry of the access token, until which the request is kept; if null, the configured time
+     * @return a ticket to sign the request, if it is the first with the access token or if the cache is disabled;
+     * otherwise the ticket with the response of the first request
+     * @throws TokenReusedException if the access token was used for a request with a different fingerprint
+     * @throws RequestInProgressException if the first request, signed by another instance, was not answered in time
+     */
+    public Ticket begin(String tokenKey, Instant expiresAt, byte[] fingerprint)
+          throws TokenReusedException, RequestInProgressException, InterruptedException {
+        if (!this.enabled) {
+            return new Ticket(new CompletableFuture<>(), true);
+        }
+        deleteExpired();
+        Entry created = new Entry(fingerprint, new CompletableFuture<>());
+        Entry entry = this.inFlight.putIfAbsent(tokenKey, created);
+        if (entry != null) {
+            return replay(entry.fingerprint(), fingerprint, entry.response());
+        }
+
+        // the retries received by this instance meanwhile wait for the entry created, until the request is ours or
+        // the response of the first one is read
+        Instant now = Instant.now();
+        Instant expiry = (expiresAt != null ? expiresAt : now.plus(this.ttl)).plus(CLOCK_SKEW);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.waitTimeoutMillis);
+        boolean first = false;
+        try {
+            while (true) {
+                if (this.replayRepository.insert(tokenKey, fingerprint, expiry) == 1) {
+                    first = true;
+                    this.first.increment();
+                    return new Ticket(created.response(), true);
+                }
+                // the access token was used before, in this instance or in another one
+                SignatureReplay previous = this.replayRepository.findById(tokenKey).orElse(null);
+                if (previous != null) {
+                    if (!Arrays.equals(previous.getFingerprint(), fingerprint)) {
+                        this.rejected.increment();
+                        throw new TokenReusedException();
+                    }
+                    if (previous.isDone()) {
+                        Response response = new Response(previous.getSignatures() == null ? null
+                              : SignatureJob.decodeValues(previous.getSignatures()), previous.getResponseID());
+                        created.response().complete(response);
+                        this.replayed.increment();
+                        return new Ticket(created.response(), false);
+                    }
+                }
+                // the first request is being signed by another instance, or failed and the access token can be used
+                // again: its response is awaited, or the row is inserted again
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new RequestInProgressException(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.waitTimeoutMillis)));
+                }
+                if (previous != null) {
+                    Thread.sleep(Math.min(POLL_INTERVAL_MILLIS, TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1));
+                }
+            }
+        } catch (Exception e) {
+            created.response().completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!first) {
+                this.inFlight.remove(tokenKey, created);
+            }
+        }
+    }
+
+    private Ticket replay(byte[] firstFingerprint, byte[] fingerprint, CompletableFuture<Response> response)
+          throws TokenReusedException {
+        if (!Arrays.equals(firstFingerprint, fingerprint)) {
+            this.rejected.increment();
+            throw new TokenReusedException();
+        }
+        this.replayed.increment();
+        return new Ticket(response, false);
+    }
+
+    /**
+     * Function that tells whether the signature values of a response with the given number of signatures are kept.
+     */
+    public boolean keepsSignatures(int signatures) {
+        return signatures <= this.maxSignatures;
+    }
+
+    /**
+     * Function that returns the response to keep for the retries: the same response, or one without the signature
+     * values if there are too many to keep them.
+     */
+    public Response retained(Response response) {
+        if (response.signatures() != null && !keepsSignatures(response.signatures().size())) {
+            return new Response(null, null);
+        }
+        return response;
+    }
+
+    /**
+     * Function that waits for the response of the first request with the access token.
+     * @throws Exception the error of the first request, or a TimeoutException if it is not completed in time
+     */
+    public Response await(Ticket ticket) throws Exception {
+        try {
+            return ticket.response().get(this.waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Function called by the first request with the access token when it was answered: the response is recorded for
+     * the retries, without the signature values if there are too many, and the retries waiting for it receive it.
+     */
+    public void complete(String tokenKey, Ticket ticket, Response response) {
+        Response kept = retained(response);
+        if (this.enabled) {
+            try {
+                this.replayRepository.complete(tokenKey,
+                      kept.signatures() == null ? null : SignatureJob.encodeValues(kept.signatures()), kept.responseID());
+            } catch (Exception e) {
+                logger.warn("Failed to record the response of the signature request: {}", e.getMessage());
+            }
+            this.inFlight.computeIfPresent(tokenKey, (key, entry) -> entry.response() == ticket.response() ? null : entry);
+        }
+        ticket.response().complete(kept);
+    }
+
+    /**
+     * Function called by the first request with the access token when it failed: the request is forgotten, so that
+     * it can be retried, and the retries waiting for it receive the error.
+     */
+    public void fail(String tokenKey, Ticket ticket, Exception error) {
+        if (this.enabled) {
+            try {
+                this.replayRepository.release(tokenKey);
+            } catch (Exception e) {
+                logger.warn("Failed to release the access token of the failed signature request: {}", e.getMessage());
+            }
+            this.inFlight.computeIfPresent(tokenKey, (key, entry) -> entry.response() == ticket.response() ? null : entry);
+        }
+        ticket.response().completeExceptionally(error);
+    }
+
+    // run by a single request of the instance at a time
+    private void deleteExpired() {
+        long now = System.currentTimeMillis();
+        long next = this.nextCleanup.get();
+        if (now < next || !this.nextCleanup.compareAndSet(next, now + CLEANUP_INTERVAL_MILLIS)) {
+            return;
+        }
+        try {
+            int deleted = this.replayRepository.deleteExpired(Instant.now());
+            logger.debug("Removed {} signature requests of expired access tokens.", deleted);
+        } catch (Exception e) {
+            logger.warn("Failed to remove the signature requests of expired access tokens: {}", e.getMessage());
+        }
+    }
+}
@@ -16,20 +16,18 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.model;
 
-import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
-import eu.europa.esig.dss.enumerations.*;
-import java.io.IOException;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.SigningCredentialCache.SigningCredential;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.SignatureEncoding;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmExecutor;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.security.DigestException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import org.bouncycastle.asn1.*;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
-import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,25 +35,46 @@ import org.springframework.stereotype.Service;
 
 @Service
 public class SignaturesService {
-    private final CredentialsRepository credentialsRepository;
-    private final HsmService hsmService;
+    private final SigningCredentialCache signingCredentials;
+    private final SignatureAlgorithmTable signatureAlgorithms;
+    private final KeyOperations keyOperations;
+    private final HsmExecutor hsmExecutor;
+    private final SignatureCoalescer coalescer;
+    private final int signChunkSize;
     private static final Logger logger = LoggerFactory.getLogger(SignaturesService.class);
 
-    public SignaturesService(@Autowired HsmService hsmService,
-                             @Autowired CredentialsRepository credentialsRepository){
-        this.credentialsRepository = credentialsRepository;
-        this.hsmService = hsmService;
+    public SignaturesService(@Autowired KeyOperations keyOperations,
+                             @Autowired HsmExecutor hsmExecutor,
+                             @Autowired SigningCredentialCache signingCredentials,
+                             @Autowired SignatureAlgorithmTable signatureAlgorithms,
+                             @Autowired SignatureCoalescer coalescer,
+                             @Autowired HsmConfig hsmProperties){
+        this.signingCredentials = signingCredentials;
+        this.signatureAlgorithms = signatureAlgorithms;
+        this.keyOperations = keyOperations;
+        this.hsmExecutor = hsmExecutor;
+        this.coalescer = coalescer;
+        this.signChunkSize = Math.max(1, hsmProperties.getExecutor().getSignChunkSize());
+    }
+
+    /**
+     * Function that decodes a hash value of a signature request, URL-encoded and Base64-encoded.
+     */
+    public static byte[] decodeHash(String hash) {
+        String hashDecoded = hash.indexOf('%') >= 0 ? URLDecoder.decode(hash, StandardCharsets.UTF_8) : hash;
+        return Base64.getDecoder().decode(hashDecoded);
     }
 
     /**
      * Function responsible for validating if a signature request is valid,
-     * by comparing the requested values with the values in the authorization bearer
+     * by comparing the requested values with the values in the authorization bearer.
+     * The hash values are compared regardless of their order, and the lists given are not changed.
      * @return boolean
      */
     public boolean validateSignatureRequest(String userHash, String credentialIDRequested, String credentialIDAuthorized,
                                             int numSignaturesRequested, int numSignaturesAuthorized,
                                             String hashAlgorithmOIDRequested, String hashAlgorithmOIDAuthorized,
-                                            List<String> hashesRequested, List<String> hashesAuthorized){
+                                            List<byte[]> hashesRequested, List<byte[]> hashesAuthorized){
         if(!credentialIDRequested.equals(credentialIDAuthorized)){
             logger.error("The credentialId requested doesn't match the credentialId authorized.");
             return false;
@@ -68,8 +87,8 @@ public class SignaturesService {
             logger.error("The hashAlgorithmOID requested doesn't match the hashAlgorithmOID authorized.");
             return false;
         }
-        Optional<String> credentials = this.credentialsRepository.findByUserIDAndId(userHash, credentialIDRequested);
-        if(credentials.isEmpty()){
+        Optional<SigningCredential> credential = this.signingCredentials.get(credentialIDRequested);
+        if(credential.isEmpty() || !credential.get().userID().equals(userHash)){
             logger.error("The credentialId requested doesn't belong to the user.");
             return false;
         }
@@ -85,120 +104,169 @@ public class SignaturesService {
             logger.error("The number of hash values requested to sign doesn't match the number of signatures requested.");
             return false;
         }
-        if(!hashesRequested.equals(hashesAuthorized)){
-            System.out.println("Hashes Requested: "+hashesRequested);
-            System.out.println("Hashes Authorized: "+hashesAuthorized);
+        // sorts copies of the references only, the hash values themselves are not copied
+        byte[][] requested = hashesRequested.toArray(new byte[0][]);
+        byte[][] authorized = hashesAuthorized.toArray(new byte[0][]);
+        Arrays.sort(requested, Arrays::compare);
+        Arrays.sort(authorized, Arrays::compare);
+        if(!Arrays.deepEquals(requested, authorized)){
             logger.error("The hashes requested are different from the hashes authorized.");
             return false;
         }
         return true;
     }
 
+    /**
+     * Receives the signature values of a signature request, in the order of the hash values,
+     * as soon as each chunk of them is signed.
+     */
+    @FunctionalInterface
+    public interface SignatureConsumer {
+        void accept(List<byte[]> signatures) throws Exception;
+    }
+
     /**
      * Function that can be used to calculate the signature value of given hashes
+     * @param clientId the OAuth client the request is made by, which determines its share of the HSM
      * @param credentialID the identifier of the credential (certificate and key pair) to be used
-     * @param hashes a list of the hash value of a documents to be signed
+     * @param hashes a list of the hash value of a documents to be signed, URL-encoded and Base64-encoded
      * @param hashAlgorithmOID the oid of the hash algorithm used to obtain the hash value
      * @param signAlgo the signature algorithm to be used and that should be supported by the key pair to use
      * @param signAlgoParams additional parameters of the signature algorithms (optional)
      * @return a list of signature for each hash value of the documents to be signed
      */
-    public List<String> signHash(String userId, String credentialID, List<String> hashes, String hashAlgorithmOID,
+    public List<String> signHash(String clientId, String userId, String credentialID, List<String> hashes, String hashAlgorithmOID,
                                  String signAlgo, String signAlgoParams) throws Exception {
-        Optional<Credentials> credentialsOptional = this.credentialsRepository.findById(credentialID);
+        List<byte[]> hashValues = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            hashValues.add(decodeHash(hash));
+        }
+        List<String> signatures = new ArrayList<>(hashes.size());
+        signHashValues(clientId, userId, credentialID, hashValues, hashAlgorithmOID, signAlgo, signAlgoParams, chunk -> {
+            for (byte[] signatureBytes : chunk) {
+                signatures.add(Base64.getEncoder().encodeToString(signatureBytes));
+            }
+        });
+        return signatures;
+    }
+
+    /**
+     * Function that calculates the signature value of given hashes, already decoded.
+     * The signatures are given to the consumer in the order of the hashes, chunk by chunk as they are signed,
+     * so that they can be written to the response without waiting for the whole request.
+     * @param clientId the OAuth client the request is made by, which determines its share of the HSM
+     * @param credentialID the identifier of the credential (certificate and key pair) to be used
+     * @param hashes a list of the raw hash values of the documents to be signed
+     * @param hashAlgorithmOID the oid of the hash algorithm used to obtain the hash value
+     * @param signAlgo the signature algorithm to be used and that should be supported by the key pair to use
+     * @param signAlgoParams additional parameters of the signature algorithms (optional)
+     * @param consumer receives the signature values of each chunk, in order
+     */
+    public void signHashValues(String clientId, String userId, String credentialID, List<byte[]> hashes, String hashAlgorithmOID,
+                               String signAlgo, String signAlgoParams, SignatureConsumer consumer) throws Exception {
+        Optional<SigningCredential> credentialsOptional = this.signingCredentials.get(credentialID);
         if(credentialsOptional.isEmpty()) {
             logger.error("No credential was found with the given identifier.");
             throw new Exception("No credential was found with the given identifier.");
         }
 
-        Credentials credential = credentialsOptional.get();
-        if(!credential.getUserID().equals(userId)){
+        SigningCredential credential = credentialsOptional.get();
+        if(!credential.userID().equals(userId)){
             logger.error("The credential doesn't belong to the user.");
             throw new Exception("The credential doesn't belong to the user.");
         }
 
-        if (!credential.getKeyAlgo().contains(signAlgo)){
+        if ("disabled".equals(credential.keyStatus())){
+            logger.error("The signing key of the credential is disabled.");
+            throw new Exception("The signing key of the credential is disabled.");
+        }
+
+        if (!credential.keyAlgo().contains(signAlgo)){
             logger.error("The signature algorithm indicated is not supported by the signing key chosen.");
             throw new Exception("The signature algorithm indicated is not supported by the signing key chosen.");
         }
 
-        String signatureAlgorithm;
-        try {
-            signatureAlgorithm = getSignatureAlgorithm(signAlgo, signAlgoParams, hashAlgorithmOID);
-        }catch (Exception e){
-            logger.error(e.getMessage());
+        Optional<String> resolvedAlgorithm = this.signatureAlgorithms.resolve(signAlgo, hashAlgorithmOID);
+        if (resolvedAlgorithm.isEmpty()){
+            logger.error("The signAlgo {} is not supported with the hashAlgorithmOID {}.", signAlgo, hashAlgorithmOID);
             throw new Exception("An error occurred when trying to determine the signature algorithm to use.");
         }
+        String signatureAlgorithm = resolvedAlgorithm.get();
 
-        String privateKeyBase64 = credential.getPrivateKey();
-        byte[] privateKeyBytes = Base64.getDecoder().decode(privateKeyBase64);
-        List<String> signatures = new ArrayList<>();
-
+        // the RSA hashes are wrapped in a DigestInfo chunk by chunk, so the request is not copied as a whole
+        ChunkPreparer preparer;
         if(signatureAlgorithm.contains("RSA")){
             logger.info("Signing {} hashes with the credential id {} the signature algorithm {} and a RSA key.", hashes.size(), credentialID, signatureAlgorithm);
-            for (String dtbs : hashes) {
-                String dtbsDecoded = URLDecoder.decode(dtbs, StandardCharsets.UTF_8);
-                byte[] dtbsBytes = Base64.getDecoder().decode(dtbsDecoded);
-                byte[] dtbsr = wrapForRsaSign(dtbsBytes, hashAlgorithmOID);
-                byte[] signatureBytes = this.hsmService.signDTBSWithRSAAndGivenAlgorithm(privateKeyBytes, dtbsr, signatureAlgorithm);
-                String signature = Base64.getEncoder().encodeToString(signatureBytes);
-                signatures.add(signature);
-            }
+            preparer = chunk -> {
+                List<byte[]> dtbsrs = new ArrayList<>(chunk.size());
+                for (byte[] hash : chunk) {
+                    dtbsrs.add(SignatureEncoding.digestInfo(hash, hashAlgorithmOID));
+                }
+                return dtbsrs;
+            };
         }
         else if(signatureAlgorithm.contains("ECDSA")){
             logger.info("Signing {} hashes with the credential id {} the signature algorithm {} and a P-256 key.", hashes.size(), credentialID, signatureAlgorithm);
-            for (String dtbs : hashes) {
-                String dtbsDecoded = URLDecoder.decode(dtbs, StandardCharsets.UTF_8);
-                byte[] dtbsBytes = Base64.getDecoder().decode(dtbsDecoded);
-                byte[] signatureBytes = this.hsmService.signDTBSWithECDSAAndGivenAlgorithm(privateKeyBytes, dtbsBytes, signatureAlgorithm);
-                String signature = Base64.getEncoder().encodeToString(signatureBytes);
-                signatures.add(signature);
-            }
+            preparer = chunk -> chunk;
         }
-        return signatures;
-    }
+        else throw new Exception("The signature algorithm is not supported.");
 
-    public static byte[] wrapForRsaSign(byte[] dig, String hashAlgo) throws Exception {
-        ASN1ObjectIdentifier oid = new DefaultDigestAlgorithmIdentifierFinder().find(hashAlgo).getAlgorithm();
-        ASN1Sequence oidSeq = new DERSequence(new ASN1Encodable[] { oid, DERNull.INSTANCE });
-        ASN1Sequence seq = new DERSequence(new ASN1Encodable[] { oidSeq, new DEROctetString(dig) });
-        try {
-            return seq.getEncoded();
-        } catch (IOException e) {
-            throw new DigestException(e);
+        ChunkSigner signer;
+        byte[] privateKeyBytes = credential.wrappedPrivateKey();
+        int wrapKeyVersion = credential.wrapKeyVersion();
+        if (credential.residentKey()) {
+            signer = dtbsrs -> this.keyOperations.signBatchWithResidentKey(credentialID, privateKeyBytes, wrapKeyVersion,
+                  dtbsrs, signatureAlgorithm);
         }
-    }
-    
-    private String getSignatureAlgorithm(String signAlgo, String signAlgoParams, String hashAlgorithmOID) throws Exception {
-        DefaultAlgorithmNameFinder algFinder = new DefaultAlgorithmNameFinder();
-        ASN1ObjectIdentifier signAlgoOID = new ASN1ObjectIdentifier(signAlgo);
-
-        try{
-            SignatureAlgorithm signAlgorithm = SignatureAlgorithm.forOID(signAlgoOID.getId());
-            String algorithmName = algFinder.getAlgorithmName(new ASN1ObjectIdentifier(signAlgorithm.getEncryptionAlgorithm().getOid()));
-
-            System.out.println(signAlgorithm.getEncryptionAlgorithm().getName());
-
-            logger.info("The algorithm defined in the signAlgo parameter already contains an hash algorithm." +
-                  " Algorithm Name found: {}", algorithmName);
-            return signAlgorithm.getEncryptionAlgorithm().getName();
+        else {
+            signer = dtbsrs -> this.keyOperations.signBatch(privateKeyBytes, wrapKeyVersion, dtbsrs, signatureAlgorithm);
         }
-        catch (IllegalArgumentException e){
-			logger.warn("Trying to load the Signature Algorithm from the OID {}." +
-                  " The given algorithm is not a valid signature algorithm.", signAlgo);
 
-            EncryptionAlgorithm encryptionAlgorithm = EncryptionAlgorithm.forOID(signAlgo);
-            logger.info("Found the encryption algorithm from the signAlgo OID: {}", encryptionAlgorithm.getName());
+        HsmExecutor.Tenant tenant = new HsmExecutor.Tenant(clientId, userId);
+        long deadline = this.hsmExecutor.newDeadline();
+        List<CompletableFuture<List<byte[]>>> chunks = new ArrayList<>();
+        if (this.coalescer.accepts(hashes.size())) {
+            // the small requests for the same credential received together are signed in a single HSM operation
+            chunks.add(this.coalescer.submit(credentialID + "/" + signatureAlgorithm, tenant, preparer.prepare(hashes),
+                  signer::sign, deadline));
+        }
+        else {
+            // each chunk is signed in a single HSM session by one of the HSM workers
+            for (int start = 0; start < hashes.size(); start += this.signChunkSize) {
+                List<byte[]> chunk = hashes.subList(start, Math.min(start + this.signChunkSize, hashes.size()));
+                chunks.add(this.hsmExecutor.submit(tenant, chunk.size(), () -> signer.sign(preparer.prepare(chunk)), deadline));
+            }
+        }
+        awaitInOrder(chunks, deadline, consumer);
+    }
 
-            DigestAlgorithm digestAlgorithm = DigestAlgorithm.forOID(hashAlgorithmOID);
-            logger.info("Found the digestion algorithm from the hashAlgorithm OID: {}", digestAlgorithm.getName());
+    @FunctionalInterface
+    private interface ChunkPreparer {
+        List<byte[]> prepare(List<byte[]> chunk) throws Exception;
+    }
 
-            SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.getAlgorithm(encryptionAlgorithm, digestAlgorithm);
-            String algorithmName = algFinder.getAlgorithmName(new ASN1ObjectIdentifier(signatureAlgorithm.getOid()));
-            logger.info("From the signAlgo and the hashAlgorithmOID, the signature algorithm was obtained: {}",
-                  algorithmName);
+    @FunctionalInterface
+    private interface ChunkSigner {
+        List<byte[]> sign(List<byte[]> dtbsrs) throws Exception;
+    }
 
-            return encryptionAlgorithm.getName();
+    /**
+     * Function that gives the signatures of each chunk to the consumer in order, as soon as it and the chunks before it
+     * are signed. If the request deadline passes, the chunks not yet started are abandoned and a TimeoutException is thrown.
+     */
+    private void awaitInOrder(List<CompletableFuture<List<byte[]>>> chunks, long deadline, SignatureConsumer consumer)
+          throws Exception {
+        try {
+            for (CompletableFuture<List<byte[]>> chunk : chunks) {
+                consumer.accept(chunk.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+        } catch (ExecutionException e) {
+            chunks.forEach(chunk -> chunk.cancel(false));
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        } catch (Exception e) {
+            chunks.forEach(chunk -> chunk.cancel(false));
+            throw e;
         }
     }
 }
@@ -0,0 +1,134 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.CredentialsConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps in memory the values of the credentials needed to sign, so that the signature requests don't read the
+ * database. The cache is bounded in size, and each credential is read again from the database after a time, so
+ * that the changes made by other instances are seen. The changes made by this instance invalidate the credential.
+ */
+@Service
+public class SigningCredentialCache {
+
+    /**
+     * The values of a credential used to sign.
+     * @param wrappedPrivateKey the wrapped private key, decoded from Base64
+     * @param keyAlgo           the OIDs of the algorithms the key can be used with
+     */
+    public record SigningCredential(String id, String userID, byte[] wrappedPrivateKey, int wrapKeyVersion,
+                                    boolean residentKey, Set<String> keyAlgo, String keyStatus) {
+
+        static SigningCredential of(Credentials credential) {
+            return new SigningCredential(credential.getId(), credential.getUserID(),
+                  Base64.getDecoder().decode(credential.getPrivateKey()), credential.getWrapKeyVersion(),
+                  credential.hasResidentKey(), credential.getKeyAlgo() == null ? Set.of() : Set.copyOf(credential.getKeyAlgo()),
+                  credential.getKeyStatus());
+        }
+    }
+
+    private record Entry(SigningCredential credential, long loadedAt) {}
+
+    private final CredentialsRepository credentialsRepository;
+    private final Map<String, Entry> credentials;
+    private final long ttlNanos;
+    // incremented by each invalidation, so that a credential read before an invalidation is not cached after it
+    private final AtomicLong generation = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+
+    public SigningCredentialCache(@Autowired CredentialsRepository credentialsRepository,
+                                  @Autowired CredentialsConfig credentialsConfig,
+                                  @Autowired MeterRegistry meterRegistry) {
+        this.credentialsRepository = credentialsRepository;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(credentialsConfig.getSigningCacheTtlSeconds());
+        int maxEntries = credentialsConfig.getSigningCacheSize();
+        this.credentials = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+
+        this.hits = Counter.builder("credentials.signing.cache.requests").tag("result", "hit")
+              .description("Credentials used to sign found in memory")
+              .register(meterRegistry);
+        this.misses = Counter.builder("credentials.signing.cache.requests").tag("result", "miss")
+              .description("Credentials used to sign read from the database")
+              .register(meterRegistry);
+        Gauge.builder("credentials.signing.cache.size", this.credentials, Map::size)
+              .description("Credentials used to sign kept in memory")
+              .register(meterRegistry);
+    }
+
+    /**
+     * Function that returns the values used to sign with a credential, reading them from the database
+     * if they are not in memory or have expired.
+     */
+    public Optional<SigningCredential> get(String credentialId) {
+        Entry entry = this.credentials.get(credentialId);
+        if (entry != null && System.nanoTime() - entry.loadedAt() < this.ttlNanos) {
+            this.hits.increment();
+            return Optional.of(entry.credential());
+        }
+        this.misses.increment();
+
+        long generationBefore = this.generation.get();
+        Optional<SigningCredential> credential = this.credentialsRepository.findById(credentialId).map(SigningCredential::of);
+        credential.ifPresent(c -> {
+            synchronized (this.credentials) {
+                if (this.generation.get() == generationBefore) {
+                    this.credentials.put(credentialId, new Entry(c, System.nanoTime()));
+                }
+            }
+        });
+        return credential;
+    }
+
+    /**
+     * The time after which a credential is read again from the database, by this instance and the others.
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+    }
+
+    /**
+     * Removes a credential from memory, after it was changed.
+     */
+    public void invalidate(String credentialId) {
+        synchronized (this.credentials) {
+            this.generation.incrementAndGet();
+            this.credentials.remove(credentialId);
+        }
+    }
+}
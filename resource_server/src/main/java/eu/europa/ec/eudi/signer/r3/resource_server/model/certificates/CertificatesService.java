@@ -17,7 +17,7 @@
 package eu.europa.ec.eudi.signer.r3.resource_server.model.certificates;
 
 import eu.europa.ec.eudi.signer.r3.resource_server.model.certificates.ejbca.EjbcaService;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
 import org.bouncycastle.asn1.*;
 import org.bouncycastle.asn1.pkcs.CertificationRequest;
 import org.bouncycastle.asn1.pkcs.CertificationRequestInfo;
@@ -48,11 +48,11 @@ import java.util.*;
  * The module response for managing certificates and certificate chains
  */
 public class CertificatesService {
-    private final HsmService hsmService;
+    private final KeyOperations keyOperations;
     private final EjbcaService ejbcaService;
 
-    public CertificatesService(HsmService hsmService, EjbcaService ejbcaService){
-        this.hsmService = hsmService;
+    public CertificatesService(KeyOperations keyOperations, EjbcaService ejbcaService){
+        this.keyOperations = keyOperations;
         this.ejbcaService = ejbcaService;
     }
 
@@ -86,19 +86,19 @@ public class CertificatesService {
     }
 
 
-    public List<X509Certificate> generateRSACertificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues) throws Exception {
-        return generateCertificates(publicKey, givenName, surname, subjectCN, countryCode, privateKeyValues, "RSA");
+    public List<X509Certificate> generateRSACertificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues, int wrapKeyVersion) throws Exception {
+        return generateCertificates(publicKey, givenName, surname, subjectCN, countryCode, privateKeyValues, wrapKeyVersion, "RSA");
     }
 
-    public List<X509Certificate> generateP256Certificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues) throws Exception {
-        return generateCertificates(publicKey, givenName, surname, subjectCN, countryCode, privateKeyValues, "ECDSA");
+    public List<X509Certificate> generateP256Certificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues, int wrapKeyVersion) throws Exception {
+        return generateCertificates(publicKey, givenName, surname, subjectCN, countryCode, privateKeyValues, wrapKeyVersion, "ECDSA");
     }
 
-    private List<X509Certificate> generateCertificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues, String keyAlgorithm) throws Exception{
+    private List<X509Certificate> generateCertificates(PublicKey publicKey, String givenName, String surname, String subjectCN, String countryCode, byte[] privateKeyValues, int wrapKeyVersion, String keyAlgorithm) throws Exception{
         // Create a certificate Signing Request for the keys
         byte[] csrInfo = generateCertificateRequestInfo(publicKey, givenName, surname, subjectCN, countryCode);
 
-        PKCS10CertificationRequest certificateHSM = generateCertificateRequest(privateKeyValues, csrInfo, keyAlgorithm);
+        PKCS10CertificationRequest certificateHSM = generateCertificateRequest(privateKeyValues, wrapKeyVersion, csrInfo, keyAlgorithm);
         String certificateString = "-----BEGIN CERTIFICATE REQUEST-----\n" + new String(Base64.getEncoder().encode(certificateHSM.getEncoded())) + "\n" + "-----END CERTIFICATE REQUEST-----";
 
         // Makes a request to the CA
@@ -126,15 +126,15 @@ public class CertificatesService {
         return cri.getEncoded();
     }
 
-    private PKCS10CertificationRequest generateCertificateRequest( byte[] privateKeyValues, byte[] certRequestInfo, String keyAlgorithm) throws Exception {
+    private PKCS10CertificationRequest generateCertificateRequest( byte[] privateKeyValues, int wrapKeyVersion, byte[] certRequestInfo, String keyAlgorithm) throws Exception {
         byte[] signature = null;
         AlgorithmIdentifier algorithmIdentifier = null;
         if(keyAlgorithm.equals("RSA")) {
-            signature = hsmService.signDTBSWithRSAAndSHA256(privateKeyValues, certRequestInfo);
+            signature = keyOperations.signDTBSWithRSAAndSHA256(privateKeyValues, wrapKeyVersion, certRequestInfo);
             algorithmIdentifier = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption);
         }
         else if(keyAlgorithm.equals("ECDSA")){
-            signature = hsmService.signDTBSWithECDSAAndSHA256(privateKeyValues, certRequestInfo);
+            signature = keyOperations.signDTBSWithECDSAAndSHA256(privateKeyValues, wrapKeyVersion, certRequestInfo);
             algorithmIdentifier = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
         }
 
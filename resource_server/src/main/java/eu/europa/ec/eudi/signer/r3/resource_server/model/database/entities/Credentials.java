@@ -26,6 +26,11 @@ import java.util.stream.Collectors;
 @Entity
 @Table(name="credentials")
 public class Credentials {
+    // the private key is unwrapped in the HSM for each use
+    public static final String WRAPPED_KEY_STORAGE = "wrapped";
+    // the private key is also kept in the HSM as a persistent object, used without unwrapping it
+    public static final String RESIDENT_KEY_STORAGE = "resident";
+    private static final String EC_PUBLIC_KEY_OID = "1.2.840.10045.2.1";
 
     private String userID;
     // private String alias;?
@@ -40,6 +45,10 @@ public class Credentials {
     // private key wrapped in the HSM base 64 encoded
     @Column(length = 2000)
     private String privateKey;
+    // version of the wrap key used to wrap the private key
+    private int wrapKeyVersion;
+    // wrapped or resident, the credentials created before the resident keys are wrapped
+    private String keyStorage;
     // public key base 64 encoded
     @Column(length = 2000)
     private String publicKey;
@@ -65,6 +74,15 @@ public class Credentials {
         return this.keyStatus.equals("enabled") && this.certStatus.equals("valid");
     }
 
+    public boolean hasResidentKey(){
+        return RESIDENT_KEY_STORAGE.equals(this.keyStorage);
+    }
+
+    // the algorithm of the private key, RSA or EC, as required to unwrap it
+    public String privateKeyAlgorithm(){
+        return this.keyAlgo != null && this.keyAlgo.contains(EC_PUBLIC_KEY_OID) ? "EC" : "RSA";
+    }
+
     public String getUserID() {
         return userID;
     }
@@ -129,6 +147,22 @@ public class Credentials {
         this.privateKey = privateKey;
     }
 
+    public int getWrapKeyVersion() {
+        return wrapKeyVersion;
+    }
+
+    public void setWrapKeyVersion(int wrapKeyVersion) {
+        this.wrapKeyVersion = wrapKeyVersion;
+    }
+
+    public String getKeyStorage() {
+        return keyStorage == null ? WRAPPED_KEY_STORAGE : keyStorage;
+    }
+
+    public void setKeyStorage(String keyStorage) {
+        this.keyStorage = keyStorage;
+    }
+
     public String getPublicKey() {
         return publicKey;
     }
@@ -0,0 +1,53 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * A replica of the resource server sharing the sessions of the HSM, with the time of its last heartbeat.
+ */
+@Entity
+@Table(name = "hsm_replicas")
+public class HsmReplica {
+
+    @Id
+    private String id;
+    private Instant heartbeat;
+
+    public HsmReplica() {
+    }
+
+    public HsmReplica(String id, Instant heartbeat) {
+        this.id = id;
+        this.heartbeat = heartbeat;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Instant getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(Instant heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+}
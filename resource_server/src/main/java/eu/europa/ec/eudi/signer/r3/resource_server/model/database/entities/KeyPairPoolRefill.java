@@ -0,0 +1,50 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * The lease of the refill of the pool of key pairs of an algorithm: a single replica at a time generates the key
+ * pairs missing, until its lease expires.
+ */
+@Entity
+@Table(name = "key_pair_pool_refill")
+public class KeyPairPoolRefill {
+
+    @Id
+    private String algorithm;
+    // the replica refilling the pool
+    private String owner;
+    private Instant leaseUntil;
+
+    public KeyPairPoolRefill() {
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Instant getLeaseUntil() {
+        return leaseUntil;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A key pair generated in advance in the HSM, waiting to be assigned to a new credential.
+ */
+@Entity
+@Table(name = "key_pair_pool")
+public class PregeneratedKeyPair {
+
+    @Id
+    private String id;
+    private String algorithm;
+    // private key wrapped in the HSM base 64 encoded
+    @Column(length = 2000)
+    private String privateKey;
+    // version of the wrap key used to wrap the private key
+    private int wrapKeyVersion;
+    // public key (X.509 SubjectPublicKeyInfo) base 64 encoded
+    @Column(length = 2000)
+    private String publicKey;
+    private Instant createdAt;
+
+    public PregeneratedKeyPair() {
+        this.id = UUID.randomUUID().toString();
+    }
+
+    public PregeneratedKeyPair(String algorithm, String privateKey, int wrapKeyVersion, String publicKey) {
+        this.id = UUID.randomUUID().toString();
+        this.algorithm = algorithm;
+        this.privateKey = privateKey;
+        this.wrapKeyVersion = wrapKeyVersion;
+        this.publicKey = publicKey;
+        this.createdAt = Instant.now();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    public int getWrapKeyVersion() {
+        return wrapKeyVersion;
+    }
+
+    public String getPublicKey() {
+        return publicKey;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+}
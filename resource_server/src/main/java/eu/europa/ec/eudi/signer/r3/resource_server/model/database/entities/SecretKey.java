@@ -31,13 +31,22 @@ public class SecretKey {
     @Column(length = 2000)
     private byte[] secretKey;
 
+    // the wrap keys are numbered from 0, and the key with the highest version wraps the new keys
+    @Column(unique = true)
+    private int version;
+
     public SecretKey() {
         this.id = UUID.randomUUID().toString();
     }
 
-    public SecretKey(byte[] sk) {
+    public SecretKey(byte[] sk, int version) {
         this.id = UUID.randomUUID().toString();
         this.secretKey = sk;
+        this.version = version;
+    }
+
+    public String getId() {
+        return id;
     }
 
     public byte[] getSecretKey() {
@@ -47,5 +56,9 @@ public class SecretKey {
     public void setSecretKey(byte[] sk) {
         this.secretKey = sk;
     }
+
+    public int getVersion() {
+        return version;
+    }
 }
 
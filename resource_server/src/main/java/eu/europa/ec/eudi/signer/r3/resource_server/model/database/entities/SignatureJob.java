@@ -0,0 +1,167 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities;
+
+import jakarta.persistence.*;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A signature request received in the asynchronous operation mode. The request is signed by the workers of any
+ * instance, and the signatures are kept until the request expires. The id is the responseID returned to the client.
+ */
+@Entity
+@Table(name = "signature_jobs", indexes = {
+      @Index(name = "signature_jobs_status", columnList = "status, createdAt"),
+      @Index(name = "signature_jobs_expires", columnList = "expiresAt")
+})
+public class SignatureJob {
+
+    public static final String PENDING = "pending";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    @Id
+    private String id;
+    // the OAuth client that made the request, whose share of the HSM workers it is signed with
+    private String clientID;
+    private String userID;
+    private String credentialID;
+    // the values of the hashes, each preceded by its length: see encodeValues
+    @Column(name = "hashValues", columnDefinition = "LONGBLOB")
+    private byte[] hashes;
+    private String hashAlgorithmOID;
+    private String signAlgo;
+    @Column(columnDefinition = "TEXT")
+    private String signAlgoParams;
+    private String status;
+    // the values of the signatures in the order of the hashes, each preceded by its length
+    @Column(name = "signatureValues", columnDefinition = "LONGBLOB")
+    private byte[] signatures;
+    private String error;
+    private Instant createdAt;
+    private Instant startedAt;
+    private Instant expiresAt;
+
+    public SignatureJob() {
+    }
+
+    public SignatureJob(String id, String clientID, String userID, String credentialID, byte[] hashes,
+                        String hashAlgorithmOID, String signAlgo, String signAlgoParams, Instant createdAt,
+                        Instant expiresAt) {
+        this.id = id;
+        this.clientID = clientID;
+        this.userID = userID;
+        this.credentialID = credentialID;
+        this.hashes = hashes;
+        this.hashAlgorithmOID = hashAlgorithmOID;
+        this.signAlgo = signAlgo;
+        this.signAlgoParams = signAlgoParams;
+        this.status = PENDING;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    public String getUserID() {
+        return userID;
+    }
+
+    public String getCredentialID() {
+        return credentialID;
+    }
+
+    public List<byte[]> getHashes() {
+        return decodeValues(hashes);
+    }
+
+    public String getHashAlgorithmOID() {
+        return hashAlgorithmOID;
+    }
+
+    public String getSignAlgo() {
+        return signAlgo;
+    }
+
+    public String getSignAlgoParams() {
+        return signAlgoParams;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public List<byte[]> getSignatures() {
+        return signatures == null ? null : decodeValues(signatures);
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Function that joins the values of the hashes or of the signatures in a single array, each value preceded by
+     * its length in four bytes, so that no value has to be encoded as text nor separated by a character.
+     */
+    public static byte[] encodeValues(List<byte[]> values) {
+        int length = 0;
+        for (byte[] value : values) {
+            length += Integer.BYTES + value.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] value : values) {
+            buffer.putInt(value.length).put(value);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Function that splits the values joined by encodeValues.
+     */
+    public static List<byte[]> decodeValues(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        List<byte[]> values = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(value);
+            values.add(value);
+        }
+        return values;
+    }
+}
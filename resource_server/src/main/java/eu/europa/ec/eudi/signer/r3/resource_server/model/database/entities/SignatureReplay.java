@@ -0,0 +1,74 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * The signature request made with an access token, which is kept until the token expires so that the token can't be
+ * used for a different request in any instance. The signature values are kept when there are few, for the retries.
+ */
+@Entity
+@Table(name = "signature_replays", indexes = {
+      @Index(name = "signature_replays_expires", columnList = "expiresAt")
+})
+public class SignatureReplay {
+
+    // the jti of the access token, or the hash of the token
+    @Id
+    @Column(length = 80)
+    private String tokenKey;
+    // the SHA-256 fingerprint of the request
+    @Column(length = 32)
+    private byte[] fingerprint;
+    // whether the first request with the access token was answered
+    private boolean done;
+    // the values of the signatures, each preceded by its length: see SignatureJob.encodeValues
+    @Column(columnDefinition = "MEDIUMBLOB")
+    private byte[] signatures;
+    private String responseID;
+    private Instant expiresAt;
+
+    public SignatureReplay() {
+    }
+
+    public String getTokenKey() {
+        return tokenKey;
+    }
+
+    public byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public byte[] getSignatures() {
+        return signatures;
+    }
+
+    public String getResponseID() {
+        return responseID;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -19,9 +19,12 @@ package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
 import java.util.List;
 import java.util.Optional;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public interface CredentialsRepository extends JpaRepository<Credentials, String> {
@@ -35,4 +38,23 @@ public interface CredentialsRepository extends JpaRepository<Credentials, String
 
     @Query(value="SELECT c.id FROM credentials c WHERE c.privateKey = ?1 and c.publicKey = ?2 and c.certificate = ?3", nativeQuery=true)
     Optional<String> existsByPrivateKeyAndPublicKeyAndCertificate(String privateKey, String publicKey, String certificate);
+
+    // the credentials are visited in order of id, so that a credential that fails doesn't block the others
+    List<Credentials> findByWrapKeyVersionLessThanAndIdGreaterThanOrderByIdAsc(int wrapKeyVersion, String id, Pageable pageable);
+
+    long countByWrapKeyVersionLessThan(int wrapKeyVersion);
+
+    @Query("SELECT c.id FROM Credentials c WHERE c.keyStorage = ?1")
+    List<String> findIdsByKeyStorage(String keyStorage);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE Credentials c SET c.keyStorage = ?2 WHERE c.id = ?1")
+    int updateKeyStorage(String id, String keyStorage);
+
+    // only replaces the private key if it was not re-wrapped meanwhile, by another replica
+    @Transactional
+    @Modifying
+    @Query("UPDATE Credentials c SET c.privateKey = ?2, c.wrapKeyVersion = ?3 WHERE c.id = ?1 AND c.wrapKeyVersion = ?4")
+    int updateWrappedPrivateKey(String id, String privateKey, int wrapKeyVersion, int previousWrapKeyVersion);
 }
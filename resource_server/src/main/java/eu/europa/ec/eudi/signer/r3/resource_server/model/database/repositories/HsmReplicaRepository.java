@@ -0,0 +1,38 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.HsmReplica;
+import java.time.Instant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface HsmReplicaRepository extends JpaRepository<HsmReplica, String> {
+
+    long countByHeartbeatAfter(Instant heartbeat);
+
+    // removes the replicas that stopped without removing their row
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM HsmReplica r WHERE r.heartbeat < ?1")
+    int deleteExpired(Instant heartbeat);
+}
@@ -0,0 +1,48 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.KeyPairPoolRefill;
+import java.time.Instant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface KeyPairPoolRefillRepository extends JpaRepository<KeyPairPoolRefill, String> {
+
+    // the row of each algorithm is created once, by the first replica, with an expired lease
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO key_pair_pool_refill (algorithm, owner, leaseUntil) VALUES (?1, NULL, ?2)",
+          nativeQuery = true)
+    int insert(String algorithm, Instant leaseUntil);
+
+    // returns 1 only to the replica that holds the lease: the one renewing it, or the first to take it once expired
+    @Transactional
+    @Modifying
+    @Query("UPDATE KeyPairPoolRefill r SET r.owner = ?2, r.leaseUntil = ?3 WHERE r.algorithm = ?1 AND " +
+          "(r.owner = ?2 OR r.leaseUntil < ?4)")
+    int acquire(String algorithm, String owner, Instant leaseUntil, Instant now);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE KeyPairPoolRefill r SET r.leaseUntil = ?3 WHERE r.algorithm = ?1 AND r.owner = ?2")
+    int release(String algorithm, String owner, Instant now);
+}
@@ -0,0 +1,46 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.PregeneratedKeyPair;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface KeyPairPoolRepository extends JpaRepository<PregeneratedKeyPair, String> {
+
+    long countByAlgorithm(String algorithm);
+
+    Optional<PregeneratedKeyPair> findFirstByAlgorithmOrderByCreatedAtAsc(String algorithm);
+
+    // returns 1 only to the caller that removed the key pair, so each key pair is assigned once
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM PregeneratedKeyPair k WHERE k.id = ?1")
+    int deleteKeyPairById(String id);
+
+    // the key pairs wrapped under an older wrap key are discarded, the pool generates new ones
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM PregeneratedKeyPair k WHERE k.wrapKeyVersion < ?1")
+    int deleteByWrapKeyVersionLessThan(int wrapKeyVersion);
+}
@@ -0,0 +1,69 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import java.time.Instant;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface SignatureJobRepository extends JpaRepository<SignatureJob, String> {
+
+    @Query("SELECT j.id FROM SignatureJob j WHERE j.status = '" + SignatureJob.PENDING + "' ORDER BY j.createdAt ASC")
+    List<String> findPendingIds(Pageable pageable);
+
+    // only one instance claims each job: the others find it already running
+    @Transactional
+    @Modifying
+    @Query("UPDATE SignatureJob j SET j.status = '" + SignatureJob.RUNNING + "', j.startedAt = ?2 " +
+          "WHERE j.id = ?1 AND j.status = '" + SignatureJob.PENDING + "'")
+    int claim(String id, Instant startedAt);
+
+    // the claim is renewed while the job progresses, so that only the jobs no longer signed become stale
+    @Transactional
+    @Modifying
+    @Query("UPDATE SignatureJob j SET j.startedAt = ?3 " +
+          "WHERE j.id = ?1 AND j.startedAt = ?2 AND j.status = '" + SignatureJob.RUNNING + "'")
+    int renew(String id, Instant startedAt, Instant renewedAt);
+
+    // the job is only completed by the instance that claimed it, unless it was claimed again after being stale
+    @Transactional
+    @Modifying
+    @Query("UPDATE SignatureJob j SET j.status = ?3, j.signatures = ?4, j.error = ?5 " +
+          "WHERE j.id = ?1 AND j.startedAt = ?2 AND j.status = '" + SignatureJob.RUNNING + "'")
+    int complete(String id, Instant startedAt, String status, byte[] signatures, String error);
+
+    // the jobs claimed by an instance that stopped before completing them
+    @Transactional
+    @Modifying
+    @Query("UPDATE SignatureJob j SET j.status = '" + SignatureJob.PENDING + "' " +
+          "WHERE j.status = '" + SignatureJob.RUNNING + "' AND j.startedAt < ?1")
+    int requeueStale(Instant startedBefore);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM SignatureJob j WHERE j.expiresAt < ?1")
+    int deleteExpired(Instant now);
+
+    long countByStatus(String status);
+}
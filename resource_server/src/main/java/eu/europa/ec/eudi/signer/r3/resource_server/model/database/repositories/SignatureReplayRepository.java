@@ -0,0 +1,53 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureReplay;
+import java.time.Instant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface SignatureReplayRepository extends JpaRepository<SignatureReplay, String> {
+
+    // only the first request with the access token inserts the row, in any instance: the others find it
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT IGNORE INTO signature_replays (tokenKey, fingerprint, done, expiresAt) VALUES (?1, ?2, false, ?3)",
+          nativeQuery = true)
+    int insert(String tokenKey, byte[] fingerprint, Instant expiresAt);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE SignatureReplay r SET r.done = true, r.signatures = ?2, r.responseID = ?3 WHERE r.tokenKey = ?1")
+    int complete(String tokenKey, byte[] signatures, String responseID);
+
+    // the first request failed: the access token can be used again
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM SignatureReplay r WHERE r.tokenKey = ?1 AND r.done = false")
+    int release(String tokenKey);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM SignatureReplay r WHERE r.expiresAt < ?1")
+    int deleteExpired(Instant now);
+}
@@ -0,0 +1,142 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The operations on the signing keys of the credentials. The private keys never leave the provider in clear:
+ * they are returned and received wrapped with a version of the AES wrap key stored in the database.
+ * The provider is chosen with the property keys.provider:
+ * <ul>
+ *     <li>hsm (default): the keys are generated and used in the HSM, through PKCS#11;</li>
+ *     <li>software: the keys are generated and used in the JVM, for development and load tests without an HSM.</li>
+ * </ul>
+ */
+public interface KeyOperations {
+
+    /**
+     * A generated key pair and the version of the wrap key its private key is wrapped with.
+     * @param wrapKeyVersion the version of the wrap key
+     * @param keyPair an array with the wrapped private key and the public key values
+     */
+    record WrappedKeyPair(int wrapKeyVersion, byte[][] keyPair) {}
+
+    /**
+     * Function that generates a RSA key pair, wrapped with the newest version of the wrap key.
+     * The key pair contains the wrapped private key, the public key modulus and the public key public exponent.
+     */
+    WrappedKeyPair generateRSAKeyPair(int keySize) throws Exception;
+
+    /**
+     * Function that generates a P-256 key pair, wrapped with the newest version of the wrap key.
+     * The key pair contains the wrapped private key, the public key EC point and the EC parameters.
+     */
+    WrappedKeyPair generateECPrime256v1KeyPair() throws Exception;
+
+    /**
+     * Function that unwraps the private key and signs each of the DTBSR values with it.
+     * @param wrappedPrivateKey  the previously wrapped RSA or ECDSA private key chosen
+     * @param wrapKeyVersion     the version of the wrap key the private key is wrapped with
+     * @param DTBSRs             the values of the hashes to be signed
+     * @param signatureAlgorithm the signature algorithm to be used, which determines the type of the key
+     * @return the values of the signatures, in the order of the DTBSR values. The ECDSA signatures are DER encoded.
+     */
+    List<byte[]> signBatch(byte[] wrappedPrivateKey, int wrapKeyVersion, List<byte[]> DTBSRs, String signatureAlgorithm)
+          throws Exception;
+
+    default byte[] signDTBSWithRSAAndSHA256(byte[] wrappedPrivateKey, int wrapKeyVersion, byte[] DTBSR) throws Exception {
+        return signBatch(wrappedPrivateKey, wrapKeyVersion, List.of(DTBSR), "SHA256WITHRSA").get(0);
+    }
+
+    default byte[] signDTBSWithECDSAAndSHA256(byte[] wrappedPrivateKey, int wrapKeyVersion, byte[] DTBSR) throws Exception {
+        return signBatch(wrappedPrivateKey, wrapKeyVersion, List.of(DTBSR), "SHA256WITHECDSA").get(0);
+    }
+
+    /**
+     * Function that stores the private key of a credential in the provider as a persistent object, so that it can be
+     * used without unwrapping it. It does nothing if the key is already stored.
+     * @param credentialId      the identifier of the credential, from which the identifier of the object is derived
+     * @param wrappedPrivateKey the wrapped private key of the credential
+     * @param wrapKeyVersion    the version of the wrap key the private key is wrapped with
+     * @param keyAlgorithm      the algorithm of the private key: RSA or EC
+     */
+    void storeResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion, String keyAlgorithm)
+          throws Exception;
+
+    /**
+     * Function that removes the persistent object of the private key of a credential, if present.
+     */
+    void deleteResidentKey(String credentialId) throws Exception;
+
+    /**
+     * Function that signs each of the DTBSR values with the private key stored as a persistent object, or with the
+     * wrapped private key if the object is no longer stored.
+     * @param credentialId       the identifier of the credential whose key was stored with storeResidentKey
+     * @param wrappedPrivateKey  the wrapped private key of the credential
+     * @param wrapKeyVersion     the version of the wrap key the private key is wrapped with
+     * @param DTBSRs             the values of the hashes to be signed
+     * @param signatureAlgorithm the signature algorithm to be used, which determines the type of the key
+     * @return the values of the signatures, in the order of the DTBSR values. The ECDSA signatures are DER encoded.
+     */
+    List<byte[]> signBatchWithResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion,
+                                          List<byte[]> DTBSRs, String signatureAlgorithm) throws Exception;
+
+    /**
+     * The newest version of the wrap key.
+     */
+    int getWrapKeyVersion();
+
+    /**
+     * Function that loads the versions of the wrap key added to the database by other instances.
+     */
+    void reloadWrapKeys() throws Exception;
+
+    /**
+     * Function that generates a new version of the wrap key, which wraps the keys generated from then on.
+     * @return the new version of the wrap key
+     */
+    int rotateWrapKey() throws Exception;
+
+    /**
+     * Function that unwraps a private key with a version of the wrap key and wraps it with another.
+     * @param wrappedPrivateKey the wrapped private key
+     * @param keyAlgorithm      the algorithm of the private key: RSA or EC
+     * @param fromVersion       the version of the wrap key the private key is wrapped with
+     * @param toVersion         the version of the wrap key to wrap the private key with
+     * @return the private key wrapped with the version toVersion
+     */
+    byte[] rewrapPrivateKey(byte[] wrappedPrivateKey, String keyAlgorithm, int fromVersion, int toVersion) throws Exception;
+
+    /**
+     * Completes when the provider finished its initialization, or completes exceptionally if it failed.
+     * The operations requested before wait for it for a limited time.
+     */
+    CompletableFuture<Void> whenReady();
+
+    /**
+     * The maximum number of operations that can run at the same time.
+     */
+    int getMaxSessions();
+
+    /**
+     * The fraction of the capacity of the provider currently in use.
+     */
+    double getLoad();
+}
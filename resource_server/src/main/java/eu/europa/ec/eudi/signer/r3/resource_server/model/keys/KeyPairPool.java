@@ -0,0 +1,202 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.PregeneratedKeyPair;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.KeyPairPoolRefillRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.KeyPairPoolRepository;
+import java.security.KeyFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pool of key pairs generated in advance, so that creating a credential doesn't wait for the key generation.
+ * The key pairs are stored wrapped in the database, and a low priority background thread refills the pool
+ * up to the configured size while the HSM is not busy. The pool of each algorithm is refilled by a single replica at
+ * a time, the one holding the lease of its row in key_pair_pool_refill, which counts the key pairs again before each
+ * generation, so the replicas don't generate the same missing key pairs.
+ */
+@Component
+public class KeyPairPool implements SmartLifecycle {
+    public static final String P256 = "P-256";
+    public static final String RSA2048 = "RSA-2048";
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyPairPool.class);
+    private static final int MAX_TAKE_ATTEMPTS = 3;
+    // the time a replica holds the refill of a pool after generating a key pair, before another can take it over
+    private static final long REFILL_LEASE_SECONDS = 60;
+
+    private final String replicaId = UUID.randomUUID().toString();
+    private final KeyPairPoolRepository keyPairPoolRepository;
+    private final KeyPairPoolRefillRepository refillRepository;
+    private final KeysService keysService;
+    private final KeyOperations keyOperations;
+    private final HsmConfig.KeyPairPool poolProperties;
+    private final Object refillSignal = new Object();
+    private Thread refillThread;
+    private volatile boolean running = false;
+
+    public KeyPairPool(@Autowired KeyPairPoolRepository keyPairPoolRepository,
+                       @Autowired KeyPairPoolRefillRepository refillRepository, @Autowired KeyOperations keyOperations,
+                       @Autowired HsmConfig hsmProperties) {
+        this.keyPairPoolRepository = keyPairPoolRepository;
+        this.refillRepository = refillRepository;
+        this.keyOperations = keyOperations;
+        this.keysService = new KeysService(keyOperations);
+        this.poolProperties = hsmProperties.getKeyPairPool();
+    }
+
+    /**
+     * Function that returns a P-256 key pair from the pool, or generates one if the pool is empty.
+     */
+    public KeyPairRegister takeP256KeyPair() throws Exception {
+        KeyPairRegister keyPair = take(P256, "EC");
+        return keyPair != null ? keyPair : this.keysService.generateP256KeyPair();
+    }
+
+    /**
+     * Function that returns a RSA 2048 key pair from the pool, or generates one if the pool is empty.
+     */
+    public KeyPairRegister takeRSA2048KeyPair() throws Exception {
+        KeyPairRegister keyPair = take(RSA2048, "RSA");
+        return keyPair != null ? keyPair : this.keysService.generateRSAKeyPair(2048);
+    }
+
+    private KeyPairRegister take(String algorithm, String keyFactoryAlgorithm) throws Exception {
+        try {
+            for (int attempt = 0; attempt < MAX_TAKE_ATTEMPTS; attempt++) {
+                Optional<PregeneratedKeyPair> candidate = this.keyPairPoolRepository.findFirstByAlgorithmOrderByCreatedAtAsc(algorithm);
+                if (candidate.isEmpty()) {
+                    logger.info("The pool of {} key pairs is empty.", algorithm);
+                    return null;
+                }
+                // another request or replica may have taken the same key pair
+                if (this.keyPairPoolRepository.deleteKeyPairById(candidate.get().getId()) == 1) {
+                    return toKeyPairRegister(candidate.get(), keyFactoryAlgorithm);
+                }
+            }
+            return null;
+        } finally {
+            synchronized (this.refillSignal) {
+                this.refillSignal.notifyAll();
+            }
+        }
+    }
+
+    private static KeyPairRegister toKeyPairRegister(PregeneratedKeyPair pregenerated, String keyFactoryAlgorithm) throws Exception {
+        KeyPairRegister keyPair = new KeyPairRegister();
+        keyPair.setPrivateKeyBytes(Base64.getDecoder().decode(pregenerated.getPrivateKey()));
+        keyPair.setWrapKeyVersion(pregenerated.getWrapKeyVersion());
+        X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(pregenerated.getPublicKey()));
+        keyPair.setPublicKeyValue(KeyFactory.getInstance(keyFactoryAlgorithm).generatePublic(publicKeySpec));
+        return keyPair;
+    }
+
+    private void refill() throws Exception {
+        refill(P256, this.poolProperties.getP256Size());
+        refill(RSA2048, this.poolProperties.getRsa2048Size());
+    }
+
+    /**
+     * Function that generates the key pairs missing from the pool of an algorithm, if no other replica is refilling it.
+     * @return the number of key pairs added
+     */
+    int refill(String algorithm, int size) throws Exception {
+        if (this.keyPairPoolRepository.countByAlgorithm(algorithm) >= size) {
+            return 0;
+        }
+        this.refillRepository.insert(algorithm, Instant.EPOCH);
+        int added = 0;
+        try {
+            // the lease is renewed before each generation, and the pool counted again once it is held
+            while (this.running && acquireRefill(algorithm)
+                  && this.keyPairPoolRepository.countByAlgorithm(algorithm) < size) {
+                // leaves the HSM to the signature requests when they use most of the sessions
+                if (this.keyOperations.getLoad() > this.poolProperties.getMaxHsmLoad()) {
+                    logger.debug("Postponing the generation of {} key pairs, the HSM is busy.", algorithm);
+                    break;
+                }
+                KeyPairRegister keyPair = algorithm.equals(P256) ?
+                      this.keysService.generateP256KeyPair() : this.keysService.generateRSAKeyPair(2048);
+                this.keyPairPoolRepository.save(new PregeneratedKeyPair(algorithm,
+                      Base64.getEncoder().encodeToString(keyPair.getPrivateKeyBytes()), keyPair.getWrapKeyVersion(),
+                      Base64.getEncoder().encodeToString(keyPair.getPublicKeyValue().getEncoded())));
+                added++;
+            }
+        } finally {
+            this.refillRepository.release(algorithm, this.replicaId, Instant.now());
+            if (added > 0) {
+                logger.info("Added {} key pairs to the pool of {} key pairs.", added, algorithm);
+            }
+        }
+        return added;
+    }
+
+    private boolean acquireRefill(String algorithm) {
+        Instant now = Instant.now();
+        return this.refillRepository.acquire(algorithm, this.replicaId, now.plusSeconds(REFILL_LEASE_SECONDS), now) == 1;
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+        this.refillThread = new Thread(() -> {
+            while (this.running) {
+                try {
+                    this.keyOperations.whenReady().get();
+                    refill();
+                } catch (Exception e) {
+                    logger.error("Failed to refill the key pair pool: {}", e.getMessage());
+                }
+                try {
+                    synchronized (this.refillSignal) {
+                        this.refillSignal.wait(this.poolProperties.getRefillIntervalSeconds() * 1000L);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "key-pair-pool-refill");
+        this.refillThread.setPriority(Thread.MIN_PRIORITY);
+        this.refillThread.setDaemon(true);
+        this.refillThread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        if (this.refillThread != null) {
+            this.refillThread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+}
@@ -20,6 +20,7 @@ import java.security.PublicKey;
 
 public class KeyPairRegister {
     private byte[] privateKeyBytes;
+    private int wrapKeyVersion;
     private PublicKey publicKeyValue;
 
     public byte[] getPrivateKeyBytes() {
@@ -30,6 +31,14 @@ public class KeyPairRegister {
         this.privateKeyBytes = privateKeyBytes;
     }
 
+    public int getWrapKeyVersion() {
+        return wrapKeyVersion;
+    }
+
+    public void setWrapKeyVersion(int wrapKeyVersion) {
+        this.wrapKeyVersion = wrapKeyVersion;
+    }
+
     public PublicKey getPublicKeyValue() {
         return publicKeyValue;
     }
@@ -16,7 +16,6 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
 
-import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmService;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.DEROctetString;
@@ -35,16 +34,18 @@ import java.security.spec.*;
  */
 public class KeysService {
 
-    private final HsmService hsmService;
+    private final KeyOperations keyOperations;
 
-    public KeysService(HsmService hsmService){
-        this.hsmService = hsmService;
+    public KeysService(KeyOperations keyOperations){
+        this.keyOperations = keyOperations;
     }
 
     public KeyPairRegister generateRSAKeyPair(int keySizeInBits) throws Exception{
-        byte[][] keyPairBytes = this.hsmService.generateRSAKeyPair(keySizeInBits);
+        KeyOperations.WrappedKeyPair generated = this.keyOperations.generateRSAKeyPair(keySizeInBits);
+        byte[][] keyPairBytes = generated.keyPair();
         KeyPairRegister keyPair = new KeyPairRegister();
         keyPair.setPrivateKeyBytes(keyPairBytes[0]);
+        keyPair.setWrapKeyVersion(generated.wrapKeyVersion());
 
         byte[] modulus = keyPairBytes[1];
         BigInteger ModulusBI = new BigInteger(1, modulus);
@@ -63,7 +64,8 @@ public class KeysService {
     }
 
     public KeyPairRegister generateP256KeyPair() throws Exception{
-        byte[][] keyPairBytes = this.hsmService.generateECPrime256v1KeyPair();
+        KeyOperations.WrappedKeyPair generated = this.keyOperations.generateECPrime256v1KeyPair();
+        byte[][] keyPairBytes = generated.keyPair();
 
         byte[] privateKeyBytes = keyPairBytes[0];
         byte[] publicKeyQPoint = keyPairBytes[1];
@@ -71,6 +73,7 @@ public class KeysService {
 
         KeyPairRegister keyPair = new KeyPairRegister();
         keyPair.setPrivateKeyBytes(privateKeyBytes);
+        keyPair.setWrapKeyVersion(generated.wrapKeyVersion());
         PublicKey EdDSAPublicKey = getECPublicKeyFromSpecs(publicKeyQPoint, publicKeyParams);
         keyPair.setPublicKeyValue(EdDSAPublicKey);
         return keyPair;
@@ -0,0 +1,164 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * The encodings applied to every signature: the DigestInfo signed with RSA and the DER encoding of the ECDSA
+ * signatures returned by the HSM. Both are written directly into the output array, which is the only allocation.
+ */
+public final class SignatureEncoding {
+
+    // the DER encoding of the DigestInfo until the value of the hash, which is the last component, for each hash OID
+    private static final Map<String, byte[]> DIGEST_INFO_PREFIXES = Map.ofEntries(
+          Map.entry("1.3.14.3.2.26", Hex.decode("3021300906052b0e03021a05000414")), // SHA-1
+          Map.entry("2.16.840.1.101.3.4.2.4", Hex.decode("302d300d06096086480165030402040500041c")), // SHA-224
+          Map.entry("2.16.840.1.101.3.4.2.1", Hex.decode("3031300d060960864801650304020105000420")), // SHA-256
+          Map.entry("2.16.840.1.101.3.4.2.2", Hex.decode("3041300d060960864801650304020205000430")), // SHA-384
+          Map.entry("2.16.840.1.101.3.4.2.3", Hex.decode("3051300d060960864801650304020305000440")), // SHA-512
+          Map.entry("2.16.840.1.101.3.4.2.5", Hex.decode("302d300d06096086480165030402050500041c")), // SHA-512/224
+          Map.entry("2.16.840.1.101.3.4.2.6", Hex.decode("3031300d060960864801650304020605000420")), // SHA-512/256
+          Map.entry("2.16.840.1.101.3.4.2.7", Hex.decode("302d300d06096086480165030402070500041c")), // SHA3-224
+          Map.entry("2.16.840.1.101.3.4.2.8", Hex.decode("3031300d060960864801650304020805000420")), // SHA3-256
+          Map.entry("2.16.840.1.101.3.4.2.9", Hex.decode("3041300d060960864801650304020905000430")), // SHA3-384
+          Map.entry("2.16.840.1.101.3.4.2.10", Hex.decode("3051300d060960864801650304020a05000440")) // SHA3-512
+    );
+
+    private static final byte SEQUENCE = 0x30;
+    private static final byte INTEGER = 0x02;
+
+    private SignatureEncoding() {
+    }
+
+    /**
+     * Function that encodes a hash in the DigestInfo structure signed with RSA PKCS#1 v1.5.
+     * @param hash          the value of the hash
+     * @param hashAlgorithm the OID of the hash algorithm, or its name
+     */
+    public static byte[] digestInfo(byte[] hash, String hashAlgorithm) throws DigestException {
+        byte[] prefix = DIGEST_INFO_PREFIXES.get(hashAlgorithm);
+        if (prefix == null || prefix[prefix.length - 1] != hash.length) {
+            return encodeDigestInfo(hash, hashAlgorithm);
+        }
+        byte[] digestInfo = new byte[prefix.length + hash.length];
+        System.arraycopy(prefix, 0, digestInfo, 0, prefix.length);
+        System.arraycopy(hash, 0, digestInfo, prefix.length, hash.length);
+        return digestInfo;
+    }
+
+    // the hash algorithms without a constant prefix, or a hash with an unexpected length, are encoded with BouncyCastle
+    private static byte[] encodeDigestInfo(byte[] hash, String hashAlgorithm) throws DigestException {
+        ASN1ObjectIdentifier oid = new DefaultDigestAlgorithmIdentifierFinder().find(hashAlgorithm).getAlgorithm();
+        ASN1Sequence oidSeq = new DERSequence(new ASN1Encodable[] { oid, DERNull.INSTANCE });
+        ASN1Sequence seq = new DERSequence(new ASN1Encodable[] { oidSeq, new DEROctetString(hash) });
+        try {
+            return seq.getEncoded();
+        } catch (IOException e) {
+            throw new DigestException(e);
+        }
+    }
+
+    /**
+     * Function that encodes an ECDSA signature in the format of PKCS#11 (the values r and s, with the same length,
+     * concatenated) as the DER SEQUENCE of the two INTEGER values.
+     */
+    public static byte[] ecdsaSignatureToDER(byte[] rs) {
+        byte[] der = new byte[ecdsaSignatureDERLength(rs)];
+        ecdsaSignatureToDER(rs, der, 0);
+        return der;
+    }
+
+    /**
+     * The length of the DER encoding of an ECDSA signature in the format of PKCS#11.
+     */
+    public static int ecdsaSignatureDERLength(byte[] rs) {
+        int half = rs.length / 2;
+        int contentLength = integerLength(rs, 0, half) + integerLength(rs, half, rs.length);
+        return 1 + lengthOfLength(contentLength) + contentLength;
+    }
+
+    /**
+     * Function that writes the DER encoding of an ECDSA signature in the format of PKCS#11 in the given array,
+     * which must have at least ecdsaSignatureDERLength(rs) bytes after the offset.
+     * @return the number of bytes written
+     */
+    public static int ecdsaSignatureToDER(byte[] rs, byte[] out, int offset) {
+        int half = rs.length / 2;
+        int contentLength = integerLength(rs, 0, half) + integerLength(rs, half, rs.length);
+        int position = offset;
+        out[position++] = SEQUENCE;
+        position = writeLength(contentLength, out, position);
+        position = writeInteger(rs, 0, half, out, position);
+        position = writeInteger(rs, half, rs.length, out, position);
+        return position - offset;
+    }
+
+    // the length of the DER INTEGER of the unsigned value in value[from, to)
+    private static int integerLength(byte[] value, int from, int to) {
+        int contentLength = integerContentLength(value, skipLeadingZeros(value, from, to), to);
+        return 1 + lengthOfLength(contentLength) + contentLength;
+    }
+
+    private static int integerContentLength(byte[] value, int start, int to) {
+        if (start == to) return 1;
+        // a zero byte is added when the first bit is set, so that the value is positive
+        return to - start + ((value[start] & 0x80) != 0 ? 1 : 0);
+    }
+
+    private static int skipLeadingZeros(byte[] value, int from, int to) {
+        while (from < to && value[from] == 0) from++;
+        return from;
+    }
+
+    private static int writeInteger(byte[] value, int from, int to, byte[] out, int position) {
+        int start = skipLeadingZeros(value, from, to);
+        int contentLength = integerContentLength(value, start, to);
+        out[position++] = INTEGER;
+        position = writeLength(contentLength, out, position);
+        if (contentLength > to - start) out[position++] = 0;
+        System.arraycopy(value, start, out, position, to - start);
+        return position + to - start;
+    }
+
+    private static int lengthOfLength(int length) {
+        if (length < 0x80) return 1;
+        return length < 0x100 ? 2 : 3;
+    }
+
+    private static int writeLength(int length, byte[] out, int position) {
+        if (length >= 0x100) {
+            out[position++] = (byte) 0x82;
+            out[position++] = (byte) (length >> 8);
+        } else if (length >= 0x80) {
+            out[position++] = (byte) 0x81;
+        }
+        out[position++] = (byte) length;
+        return position;
+    }
+}
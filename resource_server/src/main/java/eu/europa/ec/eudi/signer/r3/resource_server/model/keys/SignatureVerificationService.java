@@ -0,0 +1,96 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.CredentialsConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * The component responsible for verifying signatures with the public keys of the credentials.
+ * The verification runs in the JVM, as it only needs the public key, which is decoded once per credential
+ * and kept in a bounded cache.
+ */
+@Service
+public class SignatureVerificationService {
+
+    private final Map<String, CachedPublicKey> publicKeys;
+
+    public SignatureVerificationService(@Autowired CredentialsConfig credentialsConfig) {
+        int maxEntries = credentialsConfig.getPublicKeyCacheSize();
+        this.publicKeys = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPublicKey> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Function that verifies a signature with the public key of a credential.
+     * @param credential the credential whose public key is used
+     * @param signatureAlgorithm the JCA name of the signature algorithm (for example 'SHA256withECDSA',
+     *                           or 'NONEwithECDSA' for signatures of hash values)
+     * @param data the data that was signed
+     * @param signature the signature value
+     * @return true if the signature is valid
+     */
+    public boolean verify(Credentials credential, String signatureAlgorithm, byte[] data, byte[] signature)
+          throws GeneralSecurityException {
+        PublicKey publicKey = getPublicKey(credential.getId(), credential.getPublicKey());
+        Signature verifier = Signature.getInstance(signatureAlgorithm);
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * Removes the public key of a credential from the cache.
+     */
+    public void invalidate(String credentialId) {
+        this.publicKeys.remove(credentialId);
+    }
+
+    private PublicKey getPublicKey(String credentialId, String publicKeyBase64) throws GeneralSecurityException {
+        CachedPublicKey cached = this.publicKeys.get(credentialId);
+        if (cached != null && cached.encoded().equals(publicKeyBase64)) {
+            return cached.publicKey();
+        }
+
+        byte[] encoded = Base64.getDecoder().decode(publicKeyBase64);
+        String algorithm = SubjectPublicKeyInfo.getInstance(encoded).getAlgorithm().getAlgorithm()
+              .equals(X9ObjectIdentifiers.id_ecPublicKey) ? "EC" : "RSA";
+        PublicKey publicKey = KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        this.publicKeys.put(credentialId, new CachedPublicKey(publicKeyBase64, publicKey));
+        return publicKey;
+    }
+
+    private record CachedPublicKey(String encoded, PublicKey publicKey) {}
+}
@@ -0,0 +1,235 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Key operations executed in the JVM, for development and load tests without an HSM.
+ * The private keys are wrapped as the HSM does with CKM_AES_CBC: the PKCS#8 encoding of the key, padded with
+ * zeros to the AES block size, encrypted in CBC mode with a zero IV with the wrap key stored in the database.
+ * This provider must not be used in production, as the wrap key and the private keys are handled in clear by the JVM.
+ */
+@Component
+@ConditionalOnProperty(prefix = "keys", name = "provider", havingValue = "software")
+public class SoftwareKeyOperations implements KeyOperations {
+
+    private static final Logger log = LoggerFactory.getLogger(SoftwareKeyOperations.class);
+    private static final int BLOCK_SIZE = 16;
+    private static final byte[] P256_PARAMS = HexFormat.of().parseHex("06082a8648ce3d030107");
+
+    private final WrapKeyStore wrapKeyStore;
+    private final int maxOperations = Runtime.getRuntime().availableProcessors();
+    private final AtomicInteger activeOperations = new AtomicInteger();
+
+    public SoftwareKeyOperations(@Autowired SecretKeyRepository secretKeyRepository,
+                                 @Autowired AuthConfig authProperties) throws Exception {
+        log.warn("The private keys are generated and used in software. This mode must not be used in production.");
+        this.wrapKeyStore = new WrapKeyStore(secretKeyRepository, authProperties);
+        this.wrapKeyStore.reload();
+        if (this.wrapKeyStore.isEmpty()) {
+            this.wrapKeyStore.add(newSecretKey());
+        }
+    }
+
+    private static byte[] newSecretKey() {
+        byte[] secretKeyBytes = new byte[32];
+        new SecureRandom().nextBytes(secretKeyBytes);
+        return secretKeyBytes;
+    }
+
+    @Override
+    public WrappedKeyPair generateRSAKeyPair(int keySize) throws Exception {
+        int version = this.wrapKeyStore.getCurrentVersion();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keySize);
+        KeyPair keyPair = generator.generateKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        return new WrappedKeyPair(version, new byte[][]{
+              wrap(keyPair.getPrivate(), version),
+              unsigned(publicKey.getModulus()),
+              unsigned(publicKey.getPublicExponent())
+        });
+    }
+
+    @Override
+    public WrappedKeyPair generateECPrime256v1KeyPair() throws Exception {
+        int version = this.wrapKeyStore.getCurrentVersion();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        byte[] ecPoint = SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()).getPublicKeyData().getBytes();
+        return new WrappedKeyPair(version, new byte[][]{
+              wrap(keyPair.getPrivate(), version),
+              new DEROctetString(ecPoint).getEncoded(),
+              P256_PARAMS.clone()
+        });
+    }
+
+    @Override
+    public List<byte[]> signBatch(byte[] wrappedPrivateKey, int wrapKeyVersion, List<byte[]> DTBSRs,
+                                  String signatureAlgorithm) throws Exception {
+        String jcaAlgorithm = determineJcaAlgorithm(signatureAlgorithm);
+        this.activeOperations.incrementAndGet();
+        try {
+            PrivateKey privateKey = unwrap(wrappedPrivateKey, wrapKeyVersion, signatureAlgorithm.contains("ECDSA") ? "EC" : "RSA");
+            Signature signature = Signature.getInstance(jcaAlgorithm);
+            List<byte[]> signatures = new ArrayList<>(DTBSRs.size());
+            for (byte[] DTBSR : DTBSRs) {
+                signature.initSign(privateKey);
+                signature.update(DTBSR);
+                signatures.add(signature.sign());
+            }
+            return signatures;
+        } finally {
+            this.activeOperations.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int getWrapKeyVersion() {
+        return this.wrapKeyStore.getCurrentVersion();
+    }
+
+    @Override
+    public void reloadWrapKeys() throws Exception {
+        this.wrapKeyStore.reload();
+    }
+
+    @Override
+    public int rotateWrapKey() throws Exception {
+        int version = this.wrapKeyStore.add(newSecretKey());
+        if (version == -1) {
+            throw new Exception("The wrap key was rotated at the same time by another instance.");
+        }
+        log.info("Rotated the wrap key to the version {}.", version);
+        return version;
+    }
+
+    @Override
+    public byte[] rewrapPrivateKey(byte[] wrappedPrivateKey, String keyAlgorithm, int fromVersion, int toVersion)
+          throws Exception {
+        return wrap(unwrap(wrappedPrivateKey, fromVersion, keyAlgorithm), toVersion);
+    }
+
+    @Override
+    public void storeResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion, String keyAlgorithm)
+          throws Exception {
+        throw new Exception("The resident keys are only supported by the HSM provider.");
+    }
+
+    @Override
+    public void deleteResidentKey(String credentialId) throws Exception {
+        throw new Exception("The resident keys are only supported by the HSM provider.");
+    }
+
+    @Override
+    public List<byte[]> signBatchWithResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion,
+                                                 List<byte[]> DTBSRs, String signatureAlgorithm) throws Exception {
+        throw new Exception("The resident keys are only supported by the HSM provider.");
+    }
+
+    @Override
+    public CompletableFuture<Void> whenReady() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public int getMaxSessions() {
+        return this.maxOperations;
+    }
+
+    @Override
+    public double getLoad() {
+        return Math.min(1.0, (double) this.activeOperations.get() / this.maxOperations);
+    }
+
+    // the equivalent of the PKCS#11 mechanisms used by the HSM provider
+    private static String determineJcaAlgorithm(String signatureAlgorithm) throws Exception {
+        return switch (signatureAlgorithm) {
+            case "RSA" -> "NONEwithRSA";
+            case "SHA256WITHRSA" -> "SHA256withRSA";
+            case "SHA384WITHRSA" -> "SHA384withRSA";
+            case "SHA512WITHRSA" -> "SHA512withRSA";
+
+            case "ECDSA" -> "NONEwithECDSA";
+            case "SHA256WITHECDSA" -> "SHA256withECDSA";
+            case "SHA384WITHECDSA" -> "SHA384withECDSA";
+            case "SHA512WITHECDSA" -> "SHA512withECDSA";
+
+            default -> throw new Exception("The signature algorithm is not supported.");
+        };
+    }
+
+    private SecretKeySpec secretKey(int version) throws Exception {
+        return new SecretKeySpec(this.wrapKeyStore.get(version), "AES");
+    }
+
+    private byte[] wrap(PrivateKey privateKey, int version) throws Exception {
+        byte[] encoded = privateKey.getEncoded();
+        byte[] padded = Arrays.copyOf(encoded, (encoded.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey(version), new IvParameterSpec(new byte[BLOCK_SIZE]));
+        return cipher.doFinal(padded);
+    }
+
+    private PrivateKey unwrap(byte[] wrappedPrivateKey, int version, String keyAlgorithm) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey(version), new IvParameterSpec(new byte[BLOCK_SIZE]));
+        byte[] padded = cipher.doFinal(wrappedPrivateKey);
+        // the padding after the PKCS#8 structure is ignored
+        try (ASN1InputStream asn1InputStream = new ASN1InputStream(padded)) {
+            PrivateKeyInfo privateKeyInfo = PrivateKeyInfo.getInstance(asn1InputStream.readObject());
+            return KeyFactory.getInstance(keyAlgorithm).generatePrivate(new PKCS8EncodedKeySpec(privateKeyInfo.getEncoded()));
+        }
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 && bytes.length > 1 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.KeysConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.SigningCredentialCache;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.KeyPairPoolRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Re-wraps the private keys of the credentials wrapped under an older version of the wrap key, after a rotation.
+ * The credentials are re-wrapped in small batches by a low priority background thread, at most at the configured
+ * rate and only while the HSM is not busy, so that the signature requests are not delayed. The credentials not yet
+ * re-wrapped can still be used, as the previous versions of the wrap key are kept.
+ */
+@Component
+public class WrapKeyRewrapJob implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(WrapKeyRewrapJob.class);
+    private static final long BUSY_PAUSE_MILLIS = 1000;
+
+    private final CredentialsRepository credentialsRepository;
+    private final KeyPairPoolRepository keyPairPoolRepository;
+    private final KeyOperations keyOperations;
+    private final SigningCredentialCache signingCredentials;
+    private final KeysConfig.Rewrap rewrapProperties;
+    private final AtomicLong remaining = new AtomicLong();
+    private final Counter rewrappedCounter;
+    private final Counter failuresCounter;
+    private final Object wakeUpSignal = new Object();
+    private Thread rewrapThread;
+    private volatile boolean running = false;
+
+    public WrapKeyRewrapJob(@Autowired CredentialsRepository credentialsRepository,
+                            @Autowired KeyPairPoolRepository keyPairPoolRepository,
+                            @Autowired KeyOperations keyOperations, @Autowired KeysConfig keysProperties,
+                            @Autowired SigningCredentialCache signingCredentials,
+                            @Autowired MeterRegistry meterRegistry) {
+        this.credentialsRepository = credentialsRepository;
+        this.signingCredentials = signingCredentials;
+        this.keyPairPoolRepository = keyPairPoolRepository;
+        this.keyOperations = keyOperations;
+        this.rewrapProperties = keysProperties.getRewrap();
+
+        Gauge.builder("keys.wrap.version", keyOperations, KeyOperations::getWrapKeyVersion)
+              .description("The newest version of the wrap key")
+              .register(meterRegistry);
+        Gauge.builder("keys.rewrap.remaining", this.remaining, AtomicLong::get)
+              .description("Credentials wrapped under an older version of the wrap key")
+              .register(meterRegistry);
+        this.rewrappedCounter = Counter.builder("keys.rewrap.rewrapped")
+              .description("Credentials re-wrapped under the newest version of the wrap key")
+              .register(meterRegistry);
+        this.failuresCounter = Counter.builder("keys.rewrap.failures")
+              .description("Credentials that failed to be re-wrapped")
+              .register(meterRegistry);
+    }
+
+    /**
+     * Function that generates a new version of the wrap key and starts re-wrapping the credentials under it.
+     * @return the new version of the wrap key
+     */
+    public int rotate() throws Exception {
+        int version = this.keyOperations.rotateWrapKey();
+        wakeUp();
+        return version;
+    }
+
+    /**
+     * The number of credentials wrapped under an older version of the wrap key, at the last count.
+     */
+    public long getRemaining() {
+        return this.remaining.get();
+    }
+
+    public void wakeUp() {
+        synchronized (this.wakeUpSignal) {
+            this.wakeUpSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Function that re-wraps the credentials wrapped under an older version of the wrap key.
+     * The key pairs of the pool wrapped under an older version are discarded, as the pool generates new ones.
+     *
+     * @return the number of credentials re-wrapped
+     */
+    public int rewrap() throws Exception {
+        // the wrap key may have been rotated by another instance
+        this.keyOperations.reloadWrapKeys();
+        int version = this.keyOperations.getWrapKeyVersion();
+
+        int discarded = this.keyPairPoolRepository.deleteByWrapKeyVersionLessThan(version);
+        if (discarded > 0) {
+            logger.info("Discarded {} key pairs of the pool wrapped under an older wrap key.", discarded);
+        }
+
+        this.remaining.set(this.credentialsRepository.countByWrapKeyVersionLessThan(version));
+        if (this.remaining.get() == 0) {
+            return 0;
+        }
+        logger.info("Re-wrapping {} credentials under the version {} of the wrap key.", this.remaining.get(), version);
+
+        long minIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / this.rewrapProperties.getMaxPerSecond());
+        int rewrapped = 0;
+        String lastId = "";
+        while (this.running) {
+            List<Credentials> batch = this.credentialsRepository.findByWrapKeyVersionLessThanAndIdGreaterThanOrderByIdAsc(
+                  version, lastId, PageRequest.of(0, this.rewrapProperties.getBatchSize()));
+            if (batch.isEmpty()) {
+                break;
+            }
+            for (Credentials credential : batch) {
+                if (!this.running) {
+                    break;
+                }
+                lastId = credential.getId();
+                awaitHsmCapacity();
+                long start = System.nanoTime();
+                if (rewrap(credential, version)) {
+                    rewrapped++;
+                }
+                TimeUnit.NANOSECONDS.sleep(minIntervalNanos - (System.nanoTime() - start));
+            }
+        }
+
+        this.remaining.set(this.credentialsRepository.countByWrapKeyVersionLessThan(version));
+        logger.info("Re-wrapped {} credentials under the version {} of the wrap key, {} remaining.", rewrapped, version,
+              this.remaining.get());
+        return rewrapped;
+    }
+
+    private boolean rewrap(Credentials credential, int version) {
+        try {
+            byte[] wrappedPrivateKey = Base64.getDecoder().decode(credential.getPrivateKey());
+            byte[] rewrappedPrivateKey = this.keyOperations.rewrapPrivateKey(wrappedPrivateKey, credential.privateKeyAlgorithm(),
+                  credential.getWrapKeyVersion(), version);
+            // another instance may have re-wrapped the credential meanwhile
+            if (this.credentialsRepository.updateWrappedPrivateKey(credential.getId(),
+                  Base64.getEncoder().encodeToString(rewrappedPrivateKey), version, credential.getWrapKeyVersion()) == 0) {
+                return false;
+            }
+            this.signingCredentials.invalidate(credential.getId());
+            this.rewrappedCounter.increment();
+            this.remaining.decrementAndGet();
+            return true;
+        } catch (Exception e) {
+            this.failuresCounter.increment();
+            logger.error("Failed to re-wrap the private key of the credential {}: {}", credential.getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    // leaves the HSM to the signature requests when they use most of the sessions
+    private void awaitHsmCapacity() throws InterruptedException {
+        while (this.running && this.keyOperations.getLoad() > this.rewrapProperties.getMaxHsmLoad()) {
+            logger.debug("Pausing the re-wrap of the credentials, the HSM is busy.");
+            Thread.sleep(BUSY_PAUSE_MILLIS);
+        }
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+        this.rewrapThread = new Thread(() -> {
+            while (this.running) {
+                try {
+                    this.keyOperations.whenReady().get();
+                    rewrap();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    logger.error("Failed to re-wrap the credentials: {}", e.getMessage());
+                }
+                try {
+                    synchronized (this.wakeUpSignal) {
+                        this.wakeUpSignal.wait(this.rewrapProperties.getIntervalSeconds() * 1000L);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "wrap-key-rewrap");
+        this.rewrapThread.setPriority(Thread.MIN_PRIORITY);
+        this.rewrapThread.setDaemon(true);
+        this.rewrapThread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        if (this.rewrapThread != null) {
+            this.rewrapThread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+}
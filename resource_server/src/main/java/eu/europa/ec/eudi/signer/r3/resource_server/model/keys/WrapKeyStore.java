@@ -0,0 +1,158 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SecretKey;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.dao.DataIntegrityViolationException;
+
+/**
+ * Stores the versions of the AES wrap key of the private keys in the database, encrypted with a key derived
+ * from the passphrase and salt in the auth configuration. The private keys are wrapped with the newest version,
+ * and the previous versions are kept until all the private keys wrapped with them are re-wrapped.
+ */
+public class WrapKeyStore {
+
+    private static final int IVLENGTH = 12;
+    private final SecretKeyRepository secretKeyRepository;
+    private final Key encryptionKey;
+    private final NavigableMap<Integer, byte[]> wrapKeys = new ConcurrentSkipListMap<>();
+
+    public WrapKeyStore(SecretKeyRepository secretKeyRepository, AuthConfig authProperties) throws Exception {
+        this.secretKeyRepository = secretKeyRepository;
+
+        char[] passphrase = authProperties.getDbEncryptionPassphrase().toCharArray();
+        byte[] saltBytes = Base64.getDecoder().decode(authProperties.getDbEncryptionSalt());
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        KeySpec encryptionKeySpec = new PBEKeySpec(passphrase, saltBytes, 65536, 256);
+        this.encryptionKey = new SecretKeySpec(factory.generateSecret(encryptionKeySpec).getEncoded(), "AES");
+    }
+
+    /**
+     * Function that loads and decrypts the versions of the wrap key stored in the database that are not loaded yet.
+     * The unique index on the version is created by Hibernate, which only logs the failure when the table already
+     * has several rows with the same version, for example the wrap keys created by replicas started together before
+     * the version existed. The keys of these rows can't be told apart, so the rows must be fixed by hand.
+     * @throws IllegalStateException if several rows have the same version with different wrap keys
+     */
+    public synchronized void reload() throws Exception {
+        Map<Integer, String> ids = new HashMap<>();
+        for (SecretKey sk : this.secretKeyRepository.findAll()) {
+            String id = ids.putIfAbsent(sk.getVersion(), sk.getId());
+            byte[] loaded = this.wrapKeys.get(sk.getVersion());
+            if (id == null && loaded == null) {
+                this.wrapKeys.put(sk.getVersion(), decrypt(sk.getSecretKey()));
+            }
+            else if (id != null && !MessageDigest.isEqual(loaded, decrypt(sk.getSecretKey()))) {
+                throw new IllegalStateException("The rows " + id + " and " + sk.getId() + " of the table secret_key have "
+                      + "the same version " + sk.getVersion() + " with different wrap keys. Keep the row of the wrap key "
+                      + "of the credentials, delete the other and restart, so that the unique index on the version is created.");
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.wrapKeys.isEmpty();
+    }
+
+    /**
+     * The newest version of the wrap key, used to wrap the new private keys.
+     */
+    public int getCurrentVersion() {
+        return this.wrapKeys.lastKey();
+    }
+
+    /**
+     * Function that returns a version of the wrap key, loading it from the database if it was added by another instance.
+     */
+    public byte[] get(int version) throws Exception {
+        byte[] wrapKey = this.wrapKeys.get(version);
+        if (wrapKey == null) {
+            reload();
+            wrapKey = this.wrapKeys.get(version);
+            if (wrapKey == null) throw new Exception("The version " + version + " of the wrap key doesn't exist.");
+        }
+        return wrapKey;
+    }
+
+    /**
+     * Function that encrypts the wrap key and saves it in the database as the newest version.
+     * The version is unique in the database, so when several instances add the same version at the same time,
+     * for example the first wrap key of replicas started together, only one of them is saved and the others load it.
+     * @return the version of the wrap key saved, or -1 if another instance saved the same version first
+     */
+    public synchronized int add(byte[] secretKeyBytes) throws Exception {
+        reload();
+        int version = this.wrapKeys.isEmpty() ? 0 : this.wrapKeys.lastKey() + 1;
+        try {
+            this.secretKeyRepository.save(new SecretKey(encrypt(secretKeyBytes), version));
+        } catch (DataIntegrityViolationException e) {
+            reload();
+            return -1;
+        }
+        this.wrapKeys.put(version, secretKeyBytes);
+        return version;
+    }
+
+    private byte[] decrypt(byte[] encryptedSecretKeyBytes) throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(encryptedSecretKeyBytes);
+        byte[] iv = new byte[IVLENGTH];
+        byteBuffer.get(iv);
+        byte[] encryptedSecretKey = new byte[byteBuffer.remaining()];
+        byteBuffer.get(encryptedSecretKey);
+
+        // decrypts the secret key
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        GCMParameterSpec algSpec = new GCMParameterSpec(128, iv);
+        c.init(Cipher.DECRYPT_MODE, this.encryptionKey, algSpec);
+        return c.doFinal(encryptedSecretKey);
+    }
+
+    private byte[] encrypt(byte[] secretKeyBytes) throws Exception {
+        byte[] iv = new byte[IVLENGTH];
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(iv);
+
+        // encrypts the secret key before saving it in the db
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        GCMParameterSpec algSpec = new GCMParameterSpec(128, iv);
+        c.init(Cipher.ENCRYPT_MODE, this.encryptionKey, algSpec);
+        byte[] encryptedSecretKeyBytes = c.doFinal(secretKeyBytes);
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + encryptedSecretKeyBytes.length);
+        byteBuffer.put(iv);
+        byteBuffer.put(encryptedSecretKeyBytes);
+        return byteBuffer.array();
+    }
+}
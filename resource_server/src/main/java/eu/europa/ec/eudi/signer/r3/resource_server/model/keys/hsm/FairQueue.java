@@ -0,0 +1,200 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The queue of the HSM executor: a weighted fair queue of the operations of the OAuth clients.
+ * Each client has a flow with a weight, and the workers take the next operation from the flow that received the
+ * least service relative to its weight, the cost of an operation being the number of values it signs. So a client
+ * signing one document is served before the chunks of a bulk request of another client that are already waiting.
+ * Within a flow the users are served in turn. A client is limited to its share of the queue capacity, proportional
+ * to its weight among the clients with operations waiting or running, and may be limited in concurrency.
+ * The operations running at the same time are limited to the sessions the HSM currently allows this replica, so the
+ * operations above the limit wait in the fair queue instead of in the session pool.
+ */
+final class FairQueue {
+
+    record Operation(HsmExecutor.Tenant tenant, int cost, Runnable task, long enqueuedAt) {}
+
+    private static final class Flow {
+        private final int weight;
+        private final int maxConcurrent;
+        // the operations waiting, by user; the user served goes to the end
+        private final LinkedHashMap<String, ArrayDeque<Operation>> users = new LinkedHashMap<>();
+        private double pass;
+        private int queued;
+        private int running;
+
+        private Flow(int weight, int maxConcurrent, double pass) {
+            this.weight = weight;
+            this.maxConcurrent = maxConcurrent;
+            this.pass = pass;
+        }
+
+        private boolean eligible() {
+            return this.queued > 0 && (this.maxConcurrent <= 0 || this.running < this.maxConcurrent);
+        }
+    }
+
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+    private final HsmConfig.Fairness properties;
+    private final int capacity;
+    private final int workers;
+    // the flows with operations waiting or running
+    private final Map<String, Flow> flows = new HashMap<>();
+    private int queued;
+    private int running;
+    // the number of operations that can run at the same time
+    private int limit;
+    // the pass of the last flow served; a flow becoming active starts from it, without credit for its idle time
+    private double virtualTime;
+    // moving average of the time the operations take in the HSM
+    private long serviceNanos;
+
+    FairQueue(HsmConfig.Fairness properties, int capacity, int workers) {
+        this.properties = properties;
+        this.capacity = capacity;
+        this.workers = workers;
+        this.limit = workers;
+    }
+
+    /**
+     * Function that changes the number of operations that can run at the same time, up to the number of workers.
+     * When the limit is lowered, the operations running finish and the next ones wait for the new limit.
+     */
+    synchronized void setLimit(int limit) {
+        this.limit = Math.max(1, Math.min(this.workers, limit));
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Function that adds an operation to the flow of its client.
+     * @throws HsmQuotaExceededException if the client already has its share of the queue waiting
+     * @throws RejectedExecutionException if the queue is full
+     */
+    synchronized void offer(Operation operation) {
+        if (this.queued >= this.capacity) {
+            throw new RejectedExecutionException("The HSM is busy, too many operations are waiting.");
+        }
+        String clientId = operation.tenant().clientId();
+        Flow flow = this.flows.computeIfAbsent(clientId, this::newFlow);
+        int activeWeight = 0;
+        for (Flow active : this.flows.values()) {
+            activeWeight += active.weight;
+        }
+        long share = Math.max(1, (long) this.capacity * flow.weight / activeWeight);
+        if (flow.queued >= share) {
+            throw new HsmQuotaExceededException("The client " + clientId + " has its share of the HSM operations waiting.",
+                  retryAfterSeconds(flow, activeWeight));
+        }
+
+        if (flow.queued == 0) {
+            flow.pass = Math.max(flow.pass, this.virtualTime);
+        }
+        flow.users.computeIfAbsent(operation.tenant().userHash(), user -> new ArrayDeque<>()).add(operation);
+        flow.queued++;
+        this.queued++;
+        notifyAll();
+    }
+
+    /**
+     * Function that waits for the next operation to run: the first operation of the next user of the eligible flow
+     * with the lowest pass.
+     */
+    synchronized Operation take() throws InterruptedException {
+        Flow next;
+        while ((next = nextFlow()) == null) {
+            wait();
+        }
+        Iterator<Map.Entry<String, ArrayDeque<Operation>>> users = next.users.entrySet().iterator();
+        Map.Entry<String, ArrayDeque<Operation>> user = users.next();
+        Operation operation = user.getValue().poll();
+        users.remove();
+        if (!user.getValue().isEmpty()) {
+            next.users.put(user.getKey(), user.getValue());
+        }
+        next.queued--;
+        next.running++;
+        this.running++;
+        this.queued--;
+        this.virtualTime = next.pass;
+        next.pass += (double) Math.max(1, operation.cost()) / next.weight;
+        return operation;
+    }
+
+    /**
+     * Function called by the worker when an operation taken from the queue finished.
+     */
+    synchronized void done(Operation operation, long elapsedNanos) {
+        this.serviceNanos = this.serviceNanos == 0 ? elapsedNanos : (this.serviceNanos * 7 + elapsedNanos) / 8;
+        String clientId = operation.tenant().clientId();
+        Flow flow = this.flows.get(clientId);
+        flow.running--;
+        this.running--;
+        if (flow.queued == 0 && flow.running == 0) {
+            this.flows.remove(clientId);
+        }
+        if (this.queued > 0) {
+            // the operations of a client limited in concurrency, or waiting for the limit, may be eligible again
+            notifyAll();
+        }
+    }
+
+    synchronized int size() {
+        return this.queued;
+    }
+
+    private Flow nextFlow() {
+        if (this.running >= this.limit) {
+            return null;
+        }
+        Flow next = null;
+        for (Flow flow : this.flows.values()) {
+            if (flow.eligible() && (next == null || flow.pass < next.pass)) {
+                next = flow;
+            }
+        }
+        return next;
+    }
+
+    private Flow newFlow(String clientId) {
+        HsmConfig.Fairness.ClientShare share = this.properties.getClients().get(clientId);
+        int weight = share != null ? share.getWeight() : this.properties.getDefaultWeight();
+        int maxConcurrent = share != null ? share.getMaxConcurrent() : this.properties.getDefaultMaxConcurrent();
+        return new Flow(Math.max(1, weight), maxConcurrent, this.virtualTime);
+    }
+
+    // the time for the operations of the client already waiting to run, at its share of the operations that can run
+    private long retryAfterSeconds(Flow flow, int activeWeight) {
+        double drainNanos = (double) this.serviceNanos * (flow.queued + 1) * activeWeight / ((double) flow.weight * this.limit);
+        return Math.min(MAX_RETRY_AFTER_SECONDS, Math.max(1, (long) Math.ceil(drainNanos / 1_000_000_000d)));
+    }
+}
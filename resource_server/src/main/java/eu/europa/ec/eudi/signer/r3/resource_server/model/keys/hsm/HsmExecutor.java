@@ -0,0 +1,181 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Runs the HSM operations in a dedicated pool of workers, so that a slow HSM doesn't hold the request threads.
+ * There is one worker per HSM session that can be opened (per processor with the software key provider), and a
+ * bounded queue in front of them: when the queue is full, new operations are rejected immediately. Each operation
+ * has a deadline, and operations that are still queued when their deadline passes are discarded without reaching
+ * the HSM.
+ * The queue is shared fairly between the OAuth clients, with the weights configured in hsm.fairness: see FairQueue.
+ */
+@Component
+public class HsmExecutor {
+
+    /**
+     * The client and the user on whose behalf an HSM operation is made.
+     */
+    public record Tenant(String clientId, String userHash) {}
+
+    private static final Logger logger = LoggerFactory.getLogger(HsmExecutor.class);
+
+    private final FairQueue queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final long requestTimeoutNanos;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Timer> queueTimes = new ConcurrentHashMap<>();
+    private final Counter rejectedFull;
+    private final Counter rejectedQuota;
+
+    public HsmExecutor(@Autowired KeyOperations keyOperations, @Autowired HsmConfig hsmProperties,
+                       @Autowired MeterRegistry meterRegistry) {
+        HsmConfig.Executor executorProperties = hsmProperties.getExecutor();
+        int workers = keyOperations.getMaxSessions();
+        this.queue = new FairQueue(hsmProperties.getFairness(), executorProperties.getQueueCapacity(), workers);
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(executorProperties.getRequestTimeoutMillis());
+        this.meterRegistry = meterRegistry;
+        this.rejectedFull = Counter.builder("hsm.executor.rejected").tag("reason", "full")
+              .description("HSM operations rejected because the queue was full")
+              .register(meterRegistry);
+        this.rejectedQuota = Counter.builder("hsm.executor.rejected").tag("reason", "quota")
+              .description("HSM operations rejected because the client had its share of the queue waiting")
+              .register(meterRegistry);
+        for (int i = 1; i <= workers; i++) {
+            Thread thread = new Thread(this::work, "hsm-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.workers.add(thread);
+        }
+        logger.info("HSM executor started with {} workers and a queue of {} operations.", workers,
+              executorProperties.getQueueCapacity());
+    }
+
+    /**
+     * Function that limits the number of HSM operations running at the same time to the sessions the HSM currently
+     * allows, between one and the number of workers. The operations above the limit stay in the fair queue.
+     */
+    public void setConcurrencyLimit(int limit) {
+        int previous = this.queue.getLimit();
+        this.queue.setLimit(limit);
+        if (previous != this.queue.getLimit()) {
+            logger.info("The HSM operations running at the same time changed from {} to {}.", previous, this.queue.getLimit());
+        }
+    }
+
+    /**
+     * Function that returns the deadline, in the scale of System.nanoTime(), of a request starting now.
+     */
+    public long newDeadline() {
+        return System.nanoTime() + this.requestTimeoutNanos;
+    }
+
+    /**
+     * Function that submits an HSM operation to the workers.
+     *
+     * @param tenant    the client and user the operation is made for, which determine its place in the queue
+     * @param cost      the number of values signed by the operation
+     * @param operation the operation to execute
+     * @param deadline  the time, in the scale of System.nanoTime(), after which the operation is no longer started
+     * @return a future completed with the result of the operation. It is completed with a HsmQuotaExceededException
+     * if the client has its share of the queue waiting, with a RejectedExecutionException if the queue is full, or
+     * with a TimeoutException if the deadline passed before a worker was available.
+     * Cancelling the future before a worker picks the operation prevents it from running.
+     */
+    public <T> CompletableFuture<T> submit(Tenant tenant, int cost, Callable<T> operation, long deadline) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            if (result.isDone()) {
+                return;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                result.completeExceptionally(new TimeoutException("The HSM operation expired before it was started."));
+                return;
+            }
+            try {
+                result.complete(operation.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+        try {
+            this.queue.offer(new FairQueue.Operation(tenant, cost, task, System.nanoTime()));
+        } catch (HsmQuotaExceededException e) {
+            logger.warn("HSM operation of the client {} rejected: {}", tenant.clientId(), e.getMessage());
+            this.rejectedQuota.increment();
+            result.completeExceptionally(e);
+        } catch (RejectedExecutionException e) {
+            logger.warn("HSM operation rejected, {} operations are already waiting.", this.queue.size());
+            this.rejectedFull.increment();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            FairQueue.Operation operation;
+            try {
+                operation = this.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long started = System.nanoTime();
+            queueTime(operation.tenant().clientId()).record(started - operation.enqueuedAt(), TimeUnit.NANOSECONDS);
+            try {
+                operation.task().run();
+            } finally {
+                this.queue.done(operation, System.nanoTime() - started);
+            }
+        }
+    }
+
+    private Timer queueTime(String clientId) {
+        return this.queueTimes.computeIfAbsent(clientId, id -> Timer.builder("hsm.executor.queue.time")
+              .tag("client", id)
+              .description("Time the HSM operations of a client wait for a worker")
+              .publishPercentiles(0.5, 0.99)
+              .register(this.meterRegistry));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.workers.forEach(Thread::interrupt);
+    }
+}
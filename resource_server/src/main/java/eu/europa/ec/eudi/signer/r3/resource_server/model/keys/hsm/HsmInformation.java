@@ -14,80 +14,368 @@
  limitations under the License.
  */
 
+
 package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.pkcs11.jacknji11.CE;
+import org.pkcs11.jacknji11.CKA;
+import org.pkcs11.jacknji11.CKR;
 import org.pkcs11.jacknji11.CKRException;
 import org.pkcs11.jacknji11.LongRef;
 
+/**
+ * Pool of the PKCS#11 sessions opened in a slot of the HSM.
+ * The pool keeps between a minimum and a maximum number of logged in sessions. A request waits for a
+ * bounded time for a session when all the sessions are in use, sessions idle for too long are closed,
+ * and sessions found broken are closed and replaced.
+ */
 public class HsmInformation {
 
     private final static Logger log = LoggerFactory.getLogger(HsmInformation.class);
+    private final Pkcs11Binding binding;
     private final long slot;
     private final byte[] pin;
-    private final LinkedList<LongRef> idleSessions = new LinkedList<>();
-    private final LinkedList<LongRef> activeSessions = new LinkedList<>();
+    private final int minSessions;
+    private final int maxSessions;
+    // the maximum number of sessions currently allowed, lowered when the HSM sessions are shared with other replicas
+    private int sessionLimit;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalNanos;
 
-    public HsmInformation(long slot, byte[] pin) {
+    // the most recently released session is reused first
+    private final BlockingDeque<LongRef> idleSessions = new LinkedBlockingDeque<>();
+    private final Map<Long, LongRef> activeSessions = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastReleased = new ConcurrentHashMap<>();
+    private final Map<Long, Map<Integer, Long>> wrapKeys = new ConcurrentHashMap<>();
+    // the handles of the token objects are valid in all the sessions, so they are kept while the pool is open
+    private final Map<String, Long> residentKeys = new ConcurrentHashMap<>();
+    private final ResizableSemaphore available;
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final ScheduledExecutorService reaper;
+    private final UnwrappedKeyCache unwrappedKeyCache;
+
+    public HsmInformation(Pkcs11Binding binding, long slot, byte[] pin, HsmConfig.SessionPool poolProperties,
+                          int keyCacheSize) {
+        if (poolProperties.getMinSessions() < 1 || poolProperties.getMaxSessions() < poolProperties.getMinSessions()) {
+            throw new IllegalArgumentException("The HSM session pool requires 1 <= minSessions <= maxSessions.");
+        }
+        this.binding = binding;
         this.slot = slot;
         this.pin = pin;
+        this.minSessions = poolProperties.getMinSessions();
+        this.maxSessions = poolProperties.getMaxSessions();
+        this.borrowTimeoutMillis = poolProperties.getBorrowTimeoutMillis();
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(poolProperties.getIdleTimeoutSeconds());
+        this.validationIntervalNanos = TimeUnit.SECONDS.toNanos(poolProperties.getValidationIntervalSeconds());
+        this.sessionLimit = this.maxSessions;
+        this.available = new ResizableSemaphore(this.maxSessions);
+        this.unwrappedKeyCache = new UnwrappedKeyCache(binding, keyCacheSize);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hsm-session-reaper-" + slot);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the minimum number of sessions of the pool and starts the task that closes the idle sessions.
+     * Must be called after the PKCS#11 library is initialized.
+     */
+    public void warmUp() throws Exception {
+        ensureMinimumSessions();
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(this.idleTimeoutNanos) / 2);
+        this.reaper.scheduleWithFixedDelay(this::reapIdleSessions, period, period, TimeUnit.SECONDS);
+        log.info("HSM session pool of the slot {} started with {} sessions (max {}).", slot, openSessions.get(), maxSessions);
+    }
+
+    public long getSlot() {
+        return this.slot;
+    }
+
+    public UnwrappedKeyCache getUnwrappedKeyCache() {
+        return this.unwrappedKeyCache;
+    }
+
+    public int getOpenSessions() {
+        return this.openSessions.get();
+    }
+
+    public int getActiveSessions() {
+        return this.activeSessions.size();
+    }
+
+    public int getMaxSessions() {
+        return this.maxSessions;
+    }
+
+    public synchronized int getSessionLimit() {
+        return this.sessionLimit;
+    }
+
+    /**
+     * Changes the maximum number of sessions that can be borrowed at the same time, between the minimum and the
+     * maximum of the pool. When the limit is lowered, the sessions in use are not interrupted: the new borrowers
+     * wait until enough sessions are returned, and the idle sessions above the limit are closed.
+     * @return the limit applied
+     */
+    public synchronized int setSessionLimit(int limit) {
+        int applied = Math.max(this.minSessions, Math.min(this.maxSessions, limit));
+        int delta = applied - this.sessionLimit;
+        if (delta > 0) {
+            this.available.release(delta);
+        } else if (delta < 0) {
+            this.available.reducePermits(-delta);
+        }
+        if (delta != 0) {
+            log.info("The session limit of the slot {} changed from {} to {}.", slot, this.sessionLimit, applied);
+        }
+        this.sessionLimit = applied;
+        // the least recently used idle sessions are closed first
+        LongRef sessionRef;
+        while (this.openSessions.get() > applied && (sessionRef = this.idleSessions.pollLast()) != null) {
+            discard(sessionRef);
+        }
+        return applied;
+    }
+
+    /**
+     * Returns the handle of a version of the wrap key in a borrowed session.
+     * Each version of the wrap key is created as a session object the first time it is used in each session,
+     * and stays available until the session is closed.
+     * @param session the borrowed session
+     * @param version the version of the wrap key
+     * @param wrapKeyTemplate the template used to create the wrap key
+     */
+    public long getWrapKey(long session, int version, CKA[] wrapKeyTemplate) {
+        // a session is only used by the thread that borrowed it
+        Map<Integer, Long> sessionWrapKeys = this.wrapKeys.computeIfAbsent(session, s -> new HashMap<>());
+        Long wrapKey = sessionWrapKeys.get(version);
+        if (wrapKey == null) {
+            wrapKey = this.binding.createObject(session, wrapKeyTemplate);
+            sessionWrapKeys.put(version, wrapKey);
+        }
+        return wrapKey;
+    }
+
+    /**
+     * Returns the handle of the resident private key of a credential found before in this slot, or null.
+     */
+    public Long getResidentKey(String credentialId) {
+        return this.residentKeys.get(credentialId);
+    }
+
+    public void putResidentKey(String credentialId, long handle) {
+        this.residentKeys.put(credentialId, handle);
+    }
+
+    public void removeResidentKey(String credentialId) {
+        this.residentKeys.remove(credentialId);
+    }
+
+    /**
+     * Checks if a session can be borrowed from the pool without waiting.
+     */
+    public boolean hasAvailableSession() {
+        return this.available.availablePermits() > 0;
+    }
+
+    /**
+     * The fraction of the sessions of the pool currently in use.
+     */
+    public double getLoad() {
+        int limit = getSessionLimit();
+        return Math.min(1.0, (double) (limit - this.available.availablePermits()) / limit);
+    }
+
+    /**
+     * Borrows a session from the pool, waiting at most the configured borrow timeout.
+     * @return the session borrowed, that must be returned with releaseSession or CloseSession
+     * @throws Exception if no session becomes available in time or if a new session can't be opened
+     */
+    public LongRef getSession() throws Exception {
+        if (!this.available.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("No HSM session of the slot {} available after {} ms ({} sessions in use).",
+                  slot, borrowTimeoutMillis, activeSessions.size());
+            throw new Exception("No HSM session available. The HSM is at its session limit.");
+        }
+        try {
+            LongRef sessionRef = pollValidIdleSession();
+            if (sessionRef == null) {
+                sessionRef = openSession();
+            }
+            this.activeSessions.put(sessionRef.value(), sessionRef);
+            return sessionRef;
+        } catch (Exception e) {
+            this.available.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed session to the pool.
+     */
+    public void releaseSession(LongRef sessionRef) {
+        if (this.activeSessions.remove(sessionRef.value()) == null) {
+            log.warn("Session not active: {}", sessionRef);
+            return;
+        }
+        this.lastReleased.put(sessionRef.value(), System.nanoTime());
+        this.idleSessions.offerFirst(sessionRef);
+        this.available.release();
     }
 
-    public synchronized void releaseSession(LongRef sessionRef) {
-        if (activeSessions.contains(sessionRef)) {
-            activeSessions.remove(sessionRef);
-        } else {
+    /**
+     * Closes a borrowed session instead of returning it to the pool, for example because it is broken.
+     * Closing the last session causes the user to be logged out, so a new session is opened first in
+     * that case.
+     */
+    public void CloseSession(LongRef sessionRef) throws Exception {
+        if (this.activeSessions.remove(sessionRef.value()) == null) {
             log.warn("Session not active: {}", sessionRef);
+            return;
         }
-        idleSessions.push(sessionRef);
+        try {
+            if (this.openSessions.get() <= 1) {
+                LongRef replacement = openSession();
+                this.lastReleased.put(replacement.value(), System.nanoTime());
+                this.idleSessions.offerFirst(replacement);
+            }
+            discard(sessionRef);
+        } finally {
+            this.available.release();
+        }
+    }
+
+    /**
+     * Checks if the error returned by the HSM means that the session can't be used anymore.
+     */
+    public static boolean isSessionFailure(CKRException e) {
+        long ckr = e.getCKR();
+        return ckr == CKR.SESSION_HANDLE_INVALID || ckr == CKR.SESSION_CLOSED || ckr == CKR.DEVICE_ERROR
+              || ckr == CKR.DEVICE_REMOVED || ckr == CKR.TOKEN_NOT_PRESENT || ckr == CKR.USER_NOT_LOGGED_IN;
     }
 
-    public synchronized LongRef getSession() throws Exception {
+    /**
+     * Stops the idle session reaper and closes the idle sessions.
+     */
+    public void close() {
+        this.reaper.shutdownNow();
         LongRef sessionRef;
-        if (idleSessions.isEmpty()) {
-            try {
-                long session = CE.OpenSession(this.slot);
-                CE.LoginUser(session, pin);
-                sessionRef = new LongRef(session);
+        while ((sessionRef = this.idleSessions.pollLast()) != null) {
+            discard(sessionRef);
+        }
+    }
+
+    private LongRef pollValidIdleSession() {
+        LongRef sessionRef;
+        while ((sessionRef = this.idleSessions.pollFirst()) != null) {
+            Long releasedAt = this.lastReleased.get(sessionRef.value());
+            if (releasedAt == null || System.nanoTime() - releasedAt < this.validationIntervalNanos || isValid(sessionRef)) {
                 if (log.isDebugEnabled()) {
-                    log.debug("iddleSessions is empty, adding new session: {}", sessionRef.value());
+                    log.debug("Removing session from idle: {}", sessionRef.value());
                 }
-            } catch (CKRException rv) {
-                throw new Exception(rv);
-            }
-        } else {
-            sessionRef = idleSessions.pop();
-            if (log.isDebugEnabled()) {
-                log.debug("Removing session from idle: {}", sessionRef.value());
+                return sessionRef;
             }
+            log.warn("Idle session {} of the slot {} is broken and will be replaced.", sessionRef.value(), slot);
+            discard(sessionRef);
         }
-        activeSessions.push(sessionRef);
-        return sessionRef;
+        return null;
     }
 
-    // Closing the last session causes the user to be logged out. A new iddle
-    // session will be created in this case to prevent logout.
-    public synchronized void CloseSession(LongRef sessionRef) throws Exception {
-        if (idleSessions.isEmpty() && activeSessions.size() <= 1) {
-            releaseSession(getSession());
+    private boolean isValid(LongRef sessionRef) {
+        try {
+            return this.binding.getSessionSlot(sessionRef.value()) == this.slot;
+        } catch (CKRException e) {
+            return false;
         }
+    }
 
+    private LongRef openSession() throws Exception {
         try {
-            CE.CloseSession(sessionRef.value());
+            long session = this.binding.openSession(this.slot);
+            try {
+                this.binding.loginUser(session, pin);
+            } catch (CKRException e) {
+                // the login state is shared by all the sessions of the application
+                if (e.getCKR() != CKR.USER_ALREADY_LOGGED_IN) {
+                    this.binding.closeSession(session);
+                    throw e;
+                }
+            }
+            this.openSessions.incrementAndGet();
+            LongRef sessionRef = new LongRef(session);
+            if (log.isDebugEnabled()) {
+                log.debug("Opened new session in the slot {}: {}", slot, sessionRef.value());
+            }
+            return sessionRef;
         } catch (CKRException rv) {
             throw new Exception(rv);
         }
+    }
 
-        if (activeSessions.contains(sessionRef)) {
-            activeSessions.remove(sessionRef);
-        } else
-            idleSessions.remove(sessionRef);
+    private void discard(LongRef sessionRef) {
+        this.lastReleased.remove(sessionRef.value());
+        this.wrapKeys.remove(sessionRef.value());
+        this.unwrappedKeyCache.invalidateSession(sessionRef.value());
+        this.openSessions.decrementAndGet();
+        try {
+            this.binding.closeSession(sessionRef.value());
+        } catch (CKRException rv) {
+            log.warn("Failed to close the session {}: {}", sessionRef.value(), rv.getMessage());
+        }
         if (log.isDebugEnabled()) {
             log.debug("Closed Session: {}", sessionRef.value());
         }
     }
 
+    private void ensureMinimumSessions() throws Exception {
+        while (this.openSessions.get() < this.minSessions) {
+            LongRef sessionRef = openSession();
+            this.lastReleased.put(sessionRef.value(), System.nanoTime());
+            this.idleSessions.offerLast(sessionRef);
+        }
+    }
+
+    private void reapIdleSessions() {
+        try {
+            long now = System.nanoTime();
+            for (LongRef sessionRef : this.idleSessions) {
+                if (this.openSessions.get() <= this.minSessions) break;
+                Long releasedAt = this.lastReleased.get(sessionRef.value());
+                if (releasedAt != null && now - releasedAt > this.idleTimeoutNanos
+                      && this.idleSessions.removeFirstOccurrence(sessionRef)) {
+                    discard(sessionRef);
+                }
+            }
+            ensureMinimumSessions();
+        } catch (Exception e) {
+            log.error("Failed to maintain the HSM session pool of the slot {}: {}", slot, e.getMessage());
+        }
+    }
+
+    // a fair semaphore whose number of permits can be reduced below the permits in use
+    private static class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically destroys the key objects left in the HSM token by previous versions of the service,
+ * which kept every generated and unwrapped key as a token object, and reconciles the resident private keys with the
+ * credentials: the keys of the credentials no longer resident, or stored in a slot no longer assigned to them, are
+ * destroyed, and the keys of the resident credentials missing from their slot are stored again.
+ */
+@Component
+@ConditionalOnProperty(prefix = "keys", name = "provider", havingValue = "hsm", matchIfMissing = true)
+public class HsmObjectReaper implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(HsmObjectReaper.class);
+
+    private final HsmService hsmService;
+    private final CredentialsRepository credentialsRepository;
+    private final long intervalSeconds;
+    // the resident keys found stale by the previous run: a key is only destroyed when it is stale in two runs, so the
+    // key of a credential being moved to the resident storage, stored before the credential is updated, is kept
+    private Set<HsmService.ResidentKey> staleResidentKeys = Set.of();
+    private Thread reaperThread;
+    private volatile boolean running = false;
+
+    public HsmObjectReaper(@Autowired HsmService hsmService, @Autowired CredentialsRepository credentialsRepository,
+                           @Autowired HsmConfig hsmProperties) {
+        this.hsmService = hsmService;
+        this.credentialsRepository = credentialsRepository;
+        this.intervalSeconds = hsmProperties.getOrphanReaperIntervalSeconds();
+    }
+
+    /**
+     * Function that searches and destroys the key objects left in the token of every slot.
+     *
+     * @return the number of objects destroyed
+     */
+    public int reap() throws Exception {
+        int destroyed = this.hsmService.destroyOrphanObjects();
+        if (destroyed > 0) {
+            logger.info("Destroyed {} key objects left in the HSM token.", destroyed);
+        } else {
+            logger.debug("No key objects left in the HSM token.");
+        }
+        return destroyed;
+    }
+
+    /**
+     * Function that destroys the resident keys found stale in this run and in the previous one, and stores again the
+     * resident keys missing from the slot assigned to their credential.
+     *
+     * @return the number of resident keys destroyed
+     */
+    public synchronized int reconcileResidentKeys() throws Exception {
+        Set<String> resident = new HashSet<>(this.credentialsRepository.findIdsByKeyStorage(Credentials.RESIDENT_KEY_STORAGE));
+        Set<String> stored = new HashSet<>();
+        Set<HsmService.ResidentKey> stale = new HashSet<>();
+        for (HsmService.ResidentKey residentKey : this.hsmService.listResidentKeys()) {
+            if (residentKey.assigned() && resident.contains(residentKey.credentialId())) {
+                stored.add(residentKey.credentialId());
+            } else {
+                stale.add(residentKey);
+            }
+        }
+
+        int destroyed = 0;
+        for (HsmService.ResidentKey residentKey : stale) {
+            if (this.staleResidentKeys.contains(residentKey)) {
+                destroyed += this.hsmService.destroyResidentKey(residentKey);
+            }
+        }
+        stale.removeIf(this.staleResidentKeys::contains);
+        this.staleResidentKeys = stale;
+        if (destroyed > 0) {
+            logger.info("Destroyed {} resident keys of credentials no longer resident in their HSM slot.", destroyed);
+        }
+
+        // for example the keys of the credentials assigned to another slot after the slots changed
+        resident.removeAll(stored);
+        for (String credentialId : resident) {
+            Credentials credential = this.credentialsRepository.findById(credentialId).orElse(null);
+            if (credential == null || !credential.hasResidentKey()) continue;
+            try {
+                this.hsmService.storeResidentKey(credentialId, Base64.getDecoder().decode(credential.getPrivateKey()),
+                      credential.getWrapKeyVersion(), credential.privateKeyAlgorithm());
+                logger.info("Stored the resident key of the credential {} missing from its HSM slot.", credentialId);
+            } catch (Exception e) {
+                logger.error("Failed to store the resident key of the credential {}: {}", credentialId, e.getMessage());
+            }
+        }
+        return destroyed;
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+        if (this.intervalSeconds <= 0) {
+            return;
+        }
+        this.reaperThread = new Thread(() -> {
+            while (this.running) {
+                try {
+                    this.hsmService.whenReady().get();
+                    reap();
+                    reconcileResidentKeys();
+                } catch (Exception e) {
+                    logger.error("Failed to destroy the key objects left in the HSM token: {}", e.getMessage());
+                }
+                try {
+                    Thread.sleep(this.intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "hsm-object-reaper");
+        this.reaperThread.setPriority(Thread.MIN_PRIORITY);
+        this.reaperThread.setDaemon(true);
+        this.reaperThread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        if (this.reaperThread != null) {
+            this.reaperThread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when an HSM operation is rejected because its client already has its share of the operations waiting,
+ * while the HSM still accepts the operations of other clients.
+ */
+public class HsmQuotaExceededException extends RejectedExecutionException {
+
+    private final long retryAfterSeconds;
+
+    public HsmQuotaExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * The estimated time, in seconds, until the operations of the client already waiting have run.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
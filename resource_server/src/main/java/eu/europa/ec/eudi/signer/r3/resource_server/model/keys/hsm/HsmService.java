@@ -16,50 +16,76 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
 
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.security.Key;
-import java.security.KeyFactory;
-import java.security.SecureRandom;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.KeySpec;
-import java.security.spec.X509EncodedKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
-import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SecretKey;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
-import org.bouncycastle.asn1.DERSequenceGenerator;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.SignatureEncoding;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.WrapKeyStore;
 import org.pkcs11.jacknji11.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.LivenessState;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
+import jakarta.annotation.PreDestroy;
 
 @Component
-public class HsmService {
-
-    private byte[] secretKey;
-    private final HsmInformation hsmInfo;
-    private static final int IVLENGTH = 12;
+@ConditionalOnProperty(prefix = "keys", name = "provider", havingValue = "hsm", matchIfMissing = true)
+public class HsmService implements KeyOperations {
+
+    private static final Logger log = LoggerFactory.getLogger(HsmService.class);
+    private volatile WrapKeyStore wrapKeyStore;
+    private volatile MechanismTable mechanisms;
+    private final CompletableFuture<Void> bootstrap;
+    private final long bootstrapTimeoutMillis;
+    private final Map<Integer, CKA[]> secretKeyTemplates = new ConcurrentHashMap<>();
+    private final Pkcs11Binding binding;
+    private final HsmSlots hsmSlots;
+    private static final CKM WRAP_MECHANISM = new CKM(CKM.AES_CBC);
+    private static final CKA[] EC_UNWRAP_TEMPLATE = unwrapTemplate(CKK.EC);
+    private static final CKA[] RSA_UNWRAP_TEMPLATE = unwrapTemplate(CKK.RSA);
+    private static final String RESIDENT_KEY_LABEL = "credential-private-key";
+    private static final String RESIDENT_KEY_ID_PREFIX = "credential:";
+    private static final String[] ORPHAN_OBJECT_LABELS = {
+          "privatekeyunwrapped", "rsa-private-key", "rsa-public-key", "EC-private-key", "EC-public-key"
+    };
 
     public HsmService(
           @Autowired SecretKeyRepository secretKeyRepositoryLoaded,
-          @Autowired AuthConfig authProperties
+          @Autowired AuthConfig authProperties,
+          @Autowired HsmConfig hsmProperties,
+          @Autowired ApplicationEventPublisher eventPublisher
     ) throws Exception {
 
-        // Load test_slot from global variable
-        long slot = 0;
-        String testSlotEnv = System.getenv("JACKNJI11_TEST_TESTSLOT");
-        if (testSlotEnv != null && !testSlotEnv.isEmpty()) {
-            slot = Long.parseLong(testSlotEnv);
+        // Load the slots from the configuration, or the test_slot from global variable
+        List<Long> slots = hsmProperties.getSlots();
+        if (slots.isEmpty()) {
+            long slot = 0;
+            String testSlotEnv = System.getenv("JACKNJI11_TEST_TESTSLOT");
+            if (testSlotEnv != null && !testSlotEnv.isEmpty()) {
+                slot = Long.parseLong(testSlotEnv);
+            }
+            slots = List.of(slot);
         }
 
         // Load user_pin from global variable
@@ -69,104 +95,261 @@ public class HsmService {
             pin = userPinEnv.getBytes();
         }
 
-        this.hsmInfo = new HsmInformation(slot, pin);
-        CE.Initialize();
-
-        char[] passphrase = authProperties.getDbEncryptionPassphrase().toCharArray();
-        byte[] saltBytes = Base64.getDecoder().decode(authProperties.getDbEncryptionSalt());
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        KeySpec encryptionKeySpec = new PBEKeySpec(passphrase, saltBytes, 65536, 256);
-        Key encryptionKey = new SecretKeySpec(factory.generateSecret(encryptionKeySpec).getEncoded(), "AES");
-
-        // init Secret Key or loads it from the database
-        List<SecretKey> secretKeys = secretKeyRepositoryLoaded.findAll();
-        if (secretKeys.isEmpty()) {
-            // generates a secret key to wrap the private keys from the HSM
-            byte[] secretKeyBytes = initSecretKey();
-
-            byte[] iv = new byte[IVLENGTH];
-            SecureRandom secureRandom = new SecureRandom();
-            secureRandom.nextBytes(iv);
-
-            // encrypts the secret key before saving it in the db
-            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec algSpec = new GCMParameterSpec(128, iv);
-            c.init(Cipher.ENCRYPT_MODE, encryptionKey, algSpec);
-            byte[] encryptedSecretKeyBytes = c.doFinal(secretKeyBytes);
-
-            ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + encryptedSecretKeyBytes.length);
-            byteBuffer.put(iv);
-            byteBuffer.put(encryptedSecretKeyBytes);
-
-            SecretKey secretKey = new SecretKey(byteBuffer.array());
-            secretKeyRepositoryLoaded.save(secretKey);
-        } else {
-            SecretKey sk = secretKeys.get(0);
-            byte[] encryptedSecretKeyBytes = sk.getSecretKey();
-
-            ByteBuffer byteBuffer = ByteBuffer.wrap(encryptedSecretKeyBytes);
-            byte[] iv = new byte[IVLENGTH];
-            byteBuffer.get(iv);
-            byte[] encryptedSecretKey = new byte[byteBuffer.remaining()];
-            byteBuffer.get(encryptedSecretKey);
-
-            // decrypts the secret key
-            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec algSpec = new GCMParameterSpec(128, iv);
-            c.init(Cipher.DECRYPT_MODE, encryptionKey, algSpec);
-            byte[] secretKeyBytes = c.doFinal(encryptedSecretKey);
-
-            setSecretKey(secretKeyBytes);
+        this.binding = Pkcs11Binding.forName(hsmProperties.getBinding());
+        log.info("Using the {} PKCS#11 binding.", hsmProperties.getBinding());
+
+        List<HsmInformation> slotsInformation = new ArrayList<>();
+        for (long slot : slots) {
+            slotsInformation.add(new HsmInformation(this.binding, slot, pin, hsmProperties.getSessionPool(),
+                  hsmProperties.getKeyCacheSize()));
+        }
+        this.hsmSlots = new HsmSlots(slotsInformation);
+        this.bootstrapTimeoutMillis = hsmProperties.getSessionPool().getBorrowTimeoutMillis();
+
+        // the HSM and the wrap key are initialized in the background, so that the startup of the application
+        // doesn't wait for them: the readiness probe reports when they are ready
+        ExecutorService bootstrapExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "hsm-bootstrap");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<Void> hsmStarted = runAsync(() -> {
+            this.binding.initialize();
+            this.hsmSlots.warmUp(bootstrapExecutor);
+            this.mechanisms = MechanismTable.discover(this.binding,
+                  this.hsmSlots.getSlots().stream().map(HsmInformation::getSlot).toList());
+        }, bootstrapExecutor);
+        // the derivation of the database encryption key runs while the HSM starts
+        CompletableFuture<Void> wrapKeysLoaded = runAsync(() -> {
+            WrapKeyStore store = new WrapKeyStore(secretKeyRepositoryLoaded, authProperties);
+            store.reload();
+            this.wrapKeyStore = store;
+        }, bootstrapExecutor);
+        this.bootstrap = CompletableFuture.allOf(hsmStarted, wrapKeysLoaded)
+              .thenCompose(ignored -> runAsync(this::initWrapKey, bootstrapExecutor))
+              .whenComplete((ignored, e) -> {
+                  bootstrapExecutor.shutdown();
+                  if (e == null) {
+                      log.info("The HSM is ready, using the version {} of the wrap key.", this.wrapKeyStore.getCurrentVersion());
+                  } else {
+                      log.error("Failed to initialize the HSM: {}", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                      AvailabilityChangeEvent.publish(eventPublisher, this, LivenessState.BROKEN);
+                  }
+              });
+    }
+
+    @FunctionalInterface
+    private interface BootstrapStep {
+        void run() throws Exception;
+    }
+
+    private static CompletableFuture<Void> runAsync(BootstrapStep step, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                step.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    // init Secret Key, unless it was loaded from the database, and checks the newest version in the HSM
+    private void initWrapKey() throws Exception {
+        if (this.wrapKeyStore.isEmpty() && this.wrapKeyStore.add(initSecretKey()) == -1) {
+            // another replica started at the same time saved the first wrap key, which is used instead
+            log.info("The wrap key was created by another replica.");
+        }
+        if (this.wrapKeyStore.isEmpty()) {
+            throw new Exception("The wrap key could not be created nor loaded from the database.");
+        }
+        // checks that the newest version can be loaded in the HSM, and keeps it in the session used
+        int version = this.wrapKeyStore.getCurrentVersion();
+        CKA[] template = secretKeyTemplate(version);
+        withSession((hsmInfo, session) -> hsmInfo.getWrapKey(session, version, template));
+    }
+
+    /**
+     * Changes the number of sessions each slot can use, when the sessions of the HSM are shared with other replicas.
+     * @return the limit applied, within the bounds of the session pool
+     */
+    public int setSessionLimit(int limit) {
+        int applied = limit;
+        for (HsmInformation hsmInfo : this.hsmSlots.getSlots()) {
+            applied = hsmInfo.setSessionLimit(limit);
+        }
+        return applied;
+    }
+
+    @Override
+    public CompletableFuture<Void> whenReady() {
+        return this.bootstrap;
+    }
+
+    // the operations received before the HSM is ready wait for it as they would wait for a session
+    private void awaitBootstrap() throws Exception {
+        try {
+            this.bootstrap.get(this.bootstrapTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("The HSM is not ready yet.");
+        } catch (ExecutionException e) {
+            throw new Exception("The HSM failed to initialize: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void closeSessions() {
+        this.hsmSlots.close();
+    }
+
+    public Pkcs11Binding getBinding() {
+        return this.binding;
+    }
+
+    /**
+     * The average fraction of the HSM sessions currently in use.
+     */
+    @Override
+    public double getLoad() {
+        return this.hsmSlots.getLoad();
+    }
+
+    /**
+     * The maximum number of sessions that can be opened in all the slots.
+     */
+    @Override
+    public int getMaxSessions() {
+        return this.hsmSlots.getMaxSessions();
+    }
+
+    /**
+     * The number of sessions that can currently be borrowed in all the slots, after the limit set by the session budget.
+     */
+    public int getSessionLimit() {
+        return this.hsmSlots.getSessionLimit();
+    }
+
+    @FunctionalInterface
+    private interface SessionOperation<T> {
+        T execute(HsmInformation hsmInfo, long session) throws Exception;
+    }
+
+    private <T> T withSession(SessionOperation<T> operation) throws Exception {
+        return withSession(null, operation);
+    }
+
+    /**
+     * Runs an operation with a session borrowed from the pool of the slot selected for the routing key.
+     * The session is returned to the pool afterward, or closed if the HSM reports it is no longer usable,
+     * in which case the operation is retried in another slot.
+     */
+    private <T> T withSession(byte[] routingKey, SessionOperation<T> operation) throws Exception {
+        List<HsmInformation> failedSlots = new ArrayList<>();
+        while (true) {
+            HsmInformation hsmInfo = this.hsmSlots.select(routingKey, failedSlots);
+            LongRef sessionRef = hsmInfo.getSession();
+            boolean brokenSession = false;
+            try {
+                return operation.execute(hsmInfo, sessionRef.value());
+            } catch (CKRException e) {
+                brokenSession = HsmInformation.isSessionFailure(e);
+                if (!brokenSession || failedSlots.size() + 1 >= this.hsmSlots.size()) throw e;
+                log.warn("HSM operation failed in the slot {}, retrying in another slot: {}", hsmInfo.getSlot(), e.getMessage());
+                failedSlots.add(hsmInfo);
+            } finally {
+                if (brokenSession) hsmInfo.CloseSession(sessionRef);
+                else hsmInfo.releaseSession(sessionRef);
+            }
+        }
+    }
+
+    /**
+     * Runs an operation with a session of the given slot, for the objects that only exist in that slot.
+     * The operation is not retried in another slot if the session is broken.
+     */
+    private <T> T withSessionInSlot(HsmInformation hsmInfo, SessionOperation<T> operation) throws Exception {
+        LongRef sessionRef = hsmInfo.getSession();
+        boolean brokenSession = false;
+        try {
+            return operation.execute(hsmInfo, sessionRef.value());
+        } catch (CKRException e) {
+            brokenSession = HsmInformation.isSessionFailure(e);
+            throw e;
+        } finally {
+            if (brokenSession) hsmInfo.CloseSession(sessionRef);
+            else hsmInfo.releaseSession(sessionRef);
         }
     }
 
     // Creates a new Secret Key that will be use for the operation of wrap and
     // unwrap:
     public byte[] initSecretKey() throws Exception {
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-
-        long secretKeyWrap = CE.GenerateKey(session, new CKM(CKM.AES_KEY_GEN),
-              new CKA(CKA.VALUE_LEN, 32),
-              new CKA(CKA.LABEL, "wrapKey"),
-              new CKA(CKA.ID, "wrapKey"),
-              new CKA(CKA.TOKEN, false),
-              new CKA(CKA.SENSITIVE, false),
-              new CKA(CKA.EXTRACTABLE, true),
-              new CKA(CKA.DERIVE, true));
-        byte[] secret_key = CE.GetAttributeValue(session, secretKeyWrap, CKA.VALUE).getValue();
-        this.secretKey = secret_key;
-
-        CE.DestroyObject(session, secretKeyWrap);
-        this.hsmInfo.releaseSession(sessionRef);
+        byte[] secret_key = withSession((hsmInfo, session) -> {
+            long secretKeyWrap = this.binding.generateKey(session, new CKM(CKM.AES_KEY_GEN),
+                  new CKA(CKA.VALUE_LEN, 32),
+                  new CKA(CKA.LABEL, "wrapKey"),
+                  new CKA(CKA.ID, "wrapKey"),
+                  new CKA(CKA.TOKEN, false),
+                  new CKA(CKA.SENSITIVE, false),
+                  new CKA(CKA.EXTRACTABLE, true),
+                  new CKA(CKA.DERIVE, true));
+            byte[] value = this.binding.getAttributeValue(session, secretKeyWrap, CKA.VALUE);
+            this.binding.destroyObject(session, secretKeyWrap);
+            return value;
+        });
         return secret_key;
     }
 
-    public void setSecretKey(byte[] secretKeyBytes) throws Exception {
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
+    @Override
+    public int getWrapKeyVersion() {
+        return this.bootstrap.isDone() && !this.bootstrap.isCompletedExceptionally() ?
+              this.wrapKeyStore.getCurrentVersion() : -1;
+    }
 
-        CKA[] secretTempl = new CKA[]{
-              new CKA(CKA.CLASS, CKO.SECRET_KEY),
-              new CKA(CKA.KEY_TYPE, CKK.AES),
-              new CKA(CKA.VALUE, secretKeyBytes),
-              new CKA(CKA.LABEL, "wrapKey"),
-              new CKA(CKA.ID, "wrapKey"),
-              new CKA(CKA.TOKEN, false),
-              new CKA(CKA.SENSITIVE, false),
-              new CKA(CKA.EXTRACTABLE, true),
-              new CKA(CKA.DERIVE, true)
-        };
-        long obj = CE.CreateObject(session, secretTempl);
-        this.secretKey = secretKeyBytes;
+    @Override
+    public void reloadWrapKeys() throws Exception {
+        awaitBootstrap();
+        this.wrapKeyStore.reload();
+    }
 
-        CE.DestroyObject(session, obj);
-        this.hsmInfo.releaseSession(sessionRef);
+    /**
+     * Function that generates a new secret key in the HSM and saves it as the newest version of the wrap key.
+     * The previous versions are kept to unwrap the private keys not yet re-wrapped.
+     */
+    @Override
+    public int rotateWrapKey() throws Exception {
+        awaitBootstrap();
+        int version = this.wrapKeyStore.add(initSecretKey());
+        if (version == -1) {
+            throw new Exception("The wrap key was rotated at the same time by another instance.");
+        }
+        log.info("Rotated the wrap key to the version {}.", version);
+        return version;
     }
 
     // loads the secret key from the bytes for the current session
     public long loadSecretKey(long session, byte[] secretKeyBytes) {
-        CKA[] secretTempl = new CKA[]{
+        return this.binding.createObject(session, secretKeyTemplate(secretKeyBytes));
+    }
+
+    /**
+     * Function that returns the handle of a version of the secret key in the given session.
+     * Each version is imported once in each session of the pool and kept while the session is open.
+     */
+    private long residentSecretKey(HsmInformation hsmInfo, long session, int version) throws Exception {
+        return hsmInfo.getWrapKey(session, version, secretKeyTemplate(version));
+    }
+
+    private CKA[] secretKeyTemplate(int version) throws Exception {
+        CKA[] template = this.secretKeyTemplates.get(version);
+        if (template == null) {
+            template = secretKeyTemplate(this.wrapKeyStore.get(version));
+            this.secretKeyTemplates.put(version, template);
+        }
+        return template;
+    }
+
+    private static CKA[] secretKeyTemplate(byte[] secretKeyBytes) {
+        return new CKA[]{
               new CKA(CKA.CLASS, CKO.SECRET_KEY),
               new CKA(CKA.KEY_TYPE, CKK.AES),
               new CKA(CKA.VALUE, secretKeyBytes),
@@ -177,7 +360,6 @@ public class HsmService {
               new CKA(CKA.EXTRACTABLE, true),
               new CKA(CKA.DERIVE, true)
         };
-        return CE.CreateObject(session, secretTempl);
     }
 
     /**
@@ -187,23 +369,28 @@ public class HsmService {
      * The third position of the array contains the public key public_exponent
      * bytes.
      */
-    public byte[][] generateRSAKeyPair(int keySize) throws Exception {
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-        long secretKeyObj = loadSecretKey(session, this.secretKey);
+    @Override
+    public WrappedKeyPair generateRSAKeyPair(int keySize) throws Exception {
+        awaitBootstrap();
+        int version = this.wrapKeyStore.getCurrentVersion();
+        return new WrappedKeyPair(version, withSession((hsmInfo, session) -> generateRSAKeyPair(hsmInfo, session, version, keySize)));
+    }
+
+    private byte[][] generateRSAKeyPair(HsmInformation hsmInfo, long session, int version, int keySize) throws Exception {
+        long secretKeyObj = residentSecretKey(hsmInfo, session, version);
 
         CKA[] pubTemplate = new CKA[]{
               new CKA(CKA.MODULUS_BITS, keySize),
               new CKA(CKA.PUBLIC_EXPONENT, Hex.s2b("010001")),
               new CKA(CKA.WRAP, true),
               new CKA(CKA.VERIFY, true),
-              new CKA(CKA.TOKEN, true),
+              new CKA(CKA.TOKEN, false),
               new CKA(CKA.LABEL, "rsa-public-key"),
               new CKA(CKA.ID, "rsa-public-key-id")
         };
 
         CKA[] privTemplate = new CKA[]{
-              new CKA(CKA.TOKEN, true),
+              new CKA(CKA.TOKEN, false),
               new CKA(CKA.PRIVATE, true),
               new CKA(CKA.SENSITIVE, true),
               new CKA(CKA.SIGN, true),
@@ -215,15 +402,16 @@ public class HsmService {
 
         LongRef pubKey = new LongRef();
         LongRef privKey = new LongRef();
-        CE.GenerateKeyPair(session, new CKM(CKM.RSA_PKCS_KEY_PAIR_GEN), pubTemplate, privTemplate, pubKey, privKey);
-        byte[][] keyPair = new byte[3][];
-        keyPair[0] = CE.WrapKey(session, new CKM(CKM.AES_CBC), secretKeyObj, privKey.value());
-        keyPair[1] = CE.GetAttributeValue(session, pubKey.value(), CKA.MODULUS).getValue();
-        keyPair[2] = CE.GetAttributeValue(session, pubKey.value(), CKA.PUBLIC_EXPONENT).getValue();
-
-        CE.DestroyObject(session, secretKeyObj);
-        this.hsmInfo.releaseSession(sessionRef);
-        return keyPair;
+        this.binding.generateKeyPair(session, new CKM(CKM.RSA_PKCS_KEY_PAIR_GEN), pubTemplate, privTemplate, pubKey, privKey);
+        try {
+            byte[][] keyPair = new byte[3][];
+            keyPair[0] = this.binding.wrapKey(session, WRAP_MECHANISM, secretKeyObj, privKey.value());
+            keyPair[1] = this.binding.getAttributeValue(session, pubKey.value(), CKA.MODULUS);
+            keyPair[2] = this.binding.getAttributeValue(session, pubKey.value(), CKA.PUBLIC_EXPONENT);
+            return keyPair;
+        } finally {
+            destroyKeyPair(session, pubKey, privKey);
+        }
     }
 
     /**
@@ -231,10 +419,15 @@ public class HsmService {
      * The first position of the array contains the private key bytes.
      * The second position of the array contains the public key bytes.
      */
-    public byte[][] generateECPrime256v1KeyPair() throws Exception {
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-        long secretKeyObj = loadSecretKey(session, this.secretKey);
+    @Override
+    public WrappedKeyPair generateECPrime256v1KeyPair() throws Exception {
+        awaitBootstrap();
+        int version = this.wrapKeyStore.getCurrentVersion();
+        return new WrappedKeyPair(version, withSession((hsmInfo, session) -> generateECPrime256v1KeyPair(hsmInfo, session, version)));
+    }
+
+    private byte[][] generateECPrime256v1KeyPair(HsmInformation hsmInfo, long session, int version) throws Exception {
+        long secretKeyObj = residentSecretKey(hsmInfo, session, version);
 
         // P-256 key (also known as secp256r1 or prime256v1), the oid 1.2.840.10045.3.1.7
         //   has DER encoding in Hex 06082a8648ce3d030107
@@ -243,13 +436,13 @@ public class HsmService {
               new CKA(CKA.EC_PARAMS, ecCurveParams),
               new CKA(CKA.WRAP, true),
               new CKA(CKA.VERIFY, true),
-              new CKA(CKA.TOKEN, true),
+              new CKA(CKA.TOKEN, false),
               new CKA(CKA.LABEL, "EC-public-key"),
               new CKA(CKA.ID, "EC-public-key")
         };
 
         CKA[] privTempl = new CKA[]{
-              new CKA(CKA.TOKEN, true),
+              new CKA(CKA.TOKEN, false),
               new CKA(CKA.PRIVATE, true),
               new CKA(CKA.SENSITIVE, true),
               new CKA(CKA.SIGN, true),
@@ -261,198 +454,316 @@ public class HsmService {
 
         LongRef pubKey = new LongRef();
         LongRef privKey = new LongRef();
-        CE.GenerateKeyPair(session, new CKM(CKM.ECDSA_KEY_PAIR_GEN), pubTempl, privTempl, pubKey, privKey);
-        byte[][] keyPair = new byte[3][];
-        keyPair[0] = CE.WrapKey(session, new CKM(CKM.AES_CBC), secretKeyObj, privKey.value());
-        keyPair[1] = CE.GetAttributeValue(session, pubKey.value(), CKA.EC_POINT).getValue();
-        keyPair[2] = CE.GetAttributeValue(session, pubKey.value(), CKA.EC_PARAMS).getValue();
+        this.binding.generateKeyPair(session, new CKM(CKM.ECDSA_KEY_PAIR_GEN), pubTempl, privTempl, pubKey, privKey);
+        try {
+            byte[][] keyPair = new byte[3][];
+            keyPair[0] = this.binding.wrapKey(session, WRAP_MECHANISM, secretKeyObj, privKey.value());
+            keyPair[1] = this.binding.getAttributeValue(session, pubKey.value(), CKA.EC_POINT);
+            keyPair[2] = this.binding.getAttributeValue(session, pubKey.value(), CKA.EC_PARAMS);
+            return keyPair;
+        } finally {
+            destroyKeyPair(session, pubKey, privKey);
+        }
+    }
 
-        CE.DestroyObject(session, secretKeyObj);
-        this.hsmInfo.releaseSession(sessionRef);
-        return keyPair;
+    // the generated key pair is only needed until the private key is wrapped
+    private void destroyKeyPair(long session, LongRef pubKey, LongRef privKey) {
+        try {
+            this.binding.destroyObject(session, privKey.value());
+            this.binding.destroyObject(session, pubKey.value());
+        } catch (CKRException e) {
+            log.warn("Failed to destroy the generated key pair: {}", e.getMessage());
+        }
     }
 
-    private long unwrapRSAKey(long session, long secretKey, byte[] wrappedKey) {
-        CKA[] templateUnwrap = new CKA[]{
-              new CKA(CKA.CLASS, CKO.PRIVATE_KEY),
-              new CKA(CKA.KEY_TYPE, CKK.RSA),
-              new CKA(CKA.LABEL, "privatekeyunwrapped"),
-              new CKA(CKA.ID, "privatekeyunwrapped"),
-              new CKA(CKA.TOKEN, true),
-              new CKA(CKA.SENSITIVE, true),
-              new CKA(CKA.EXTRACTABLE, true),
-              new CKA(CKA.SIGN, true),
-        };
-        return CE.UnwrapKey(session, new CKM(CKM.AES_CBC), secretKey, wrappedKey, templateUnwrap);
+    /**
+     * Function that destroys the key objects left in the token of every slot by previous versions,
+     * which created the generated and unwrapped keys as token objects.
+     * Only token objects are removed: the keys created by this version are session objects.
+     *
+     * @return the number of objects destroyed
+     */
+    public int destroyOrphanObjects() throws Exception {
+        awaitBootstrap();
+        int destroyed = 0;
+        for (HsmInformation hsmInfo : this.hsmSlots.getSlots()) {
+            LongRef sessionRef = hsmInfo.getSession();
+            try {
+                for (String label : ORPHAN_OBJECT_LABELS) {
+                    long[] objects = this.binding.findObjects(sessionRef.value(), new CKA(CKA.TOKEN, true), new CKA(CKA.LABEL, label));
+                    for (long object : objects) {
+                        this.binding.destroyObject(sessionRef.value(), object);
+                        destroyed++;
+                    }
+                }
+            } catch (CKRException e) {
+                if (HsmInformation.isSessionFailure(e)) {
+                    hsmInfo.CloseSession(sessionRef);
+                    sessionRef = null;
+                }
+                throw e;
+            } finally {
+                if (sessionRef != null) hsmInfo.releaseSession(sessionRef);
+            }
+        }
+        return destroyed;
     }
 
-    private long unwrapP256Key(long session, long secretKey, byte[] wrappedKey){
-        CKA[] templateUnwrap = new CKA[]{
+    private long unwrapPrivateKey(long session, long secretKey, byte[] wrappedKey, long keyType) {
+        CKA[] templateUnwrap = keyType == CKK.EC ? EC_UNWRAP_TEMPLATE : RSA_UNWRAP_TEMPLATE;
+        return this.binding.unwrapKey(session, WRAP_MECHANISM, secretKey, wrappedKey, templateUnwrap);
+    }
+
+    // the templates are built once, as they are the same for all the keys of a type
+    private static CKA[] unwrapTemplate(long keyType) {
+        return new CKA[]{
               new CKA(CKA.CLASS, CKO.PRIVATE_KEY),
-              new CKA(CKA.KEY_TYPE, CKK.EC),
+              new CKA(CKA.KEY_TYPE, keyType),
               new CKA(CKA.LABEL, "privatekeyunwrapped"),
               new CKA(CKA.ID, "privatekeyunwrapped"),
-              new CKA(CKA.TOKEN, true),
+              new CKA(CKA.TOKEN, false),
               new CKA(CKA.SENSITIVE, true),
               new CKA(CKA.EXTRACTABLE, true),
               new CKA(CKA.SIGN, true),
         };
-        return CE.UnwrapKey(session, new CKM(CKM.AES_CBC), secretKey, wrappedKey, templateUnwrap);
     }
 
     /**
-     * Function that allows to obtain a signature value of the DTBSR value with a RSA private key and given signature algorithm.
-     *
-     * @param wrappedPrivateKey  the previously wrapped RSA private key chosen
-     * @param DTBSR              the value of the hash to be signed
-     * @param signatureAlgorithm the signature algorithm to be used
-     * @return the value of the signature
+     * Function that returns the handle of the unwrapped private key in the given session.
+     * The key is only unwrapped if it is not already present in the cache of the session.
      */
-    public byte[] signDTBSWithRSAAndGivenAlgorithm(byte[] wrappedPrivateKey, byte[] DTBSR, String signatureAlgorithm)
-          throws Exception {
-        // init session
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-
-        long secretKeyObj = loadSecretKey(session, this.secretKey);
-
-        // Unwrap private key
-        long privateKey = unwrapRSAKey(session, secretKeyObj, wrappedPrivateKey);
+    private long loadPrivateKey(HsmInformation hsmInfo, long session, byte[] wrappedPrivateKey, int wrapKeyVersion,
+                                long keyType) throws Exception {
+        UnwrappedKeyCache keyCache = hsmInfo.getUnwrappedKeyCache();
+        String keyIdentifier = UnwrappedKeyCache.keyIdentifier(wrappedPrivateKey);
+        Long cachedPrivateKey = keyCache.get(session, keyIdentifier);
+        if (cachedPrivateKey != null) {
+            return cachedPrivateKey;
+        }
 
-        // Get Long value for signature
-        long signatureAlgLong = determineLongValueForAlgorithm(signatureAlgorithm);
+        long privateKey = unwrapPrivateKey(session, residentSecretKey(hsmInfo, session, wrapKeyVersion), wrappedPrivateKey, keyType);
+        keyCache.put(session, keyIdentifier, privateKey);
+        return privateKey;
+    }
 
-        // Sign bytes
-        CE.SignInit(session, new CKM(signatureAlgLong), privateKey);
-        byte[] signed = CE.Sign(session, DTBSR);
+    /**
+     * Function that allows to obtain the signature values of several DTBSR values with the same private key.
+     * All the values are signed in a single session, with the private key unwrapped at most once.
+     * When the algorithm includes a hash and the HSM supports the raw mechanism, the values are hashed before
+     * the session is borrowed.
+     *
+     * @param wrappedPrivateKey  the previously wrapped RSA or ECDSA private key chosen
+     * @param wrapKeyVersion     the version of the wrap key the private key is wrapped with
+     * @param DTBSRs             the values of the hashes to be signed
+     * @param signatureAlgorithm the signature algorithm to be used, which determines the type of the key
+     * @return the values of the signatures, in the order of the DTBSR values
+     */
+    @Override
+    public List<byte[]> signBatch(byte[] wrappedPrivateKey, int wrapKeyVersion, List<byte[]> DTBSRs,
+                                  String signatureAlgorithm) throws Exception {
+        awaitBootstrap();
+        MechanismTable.SignPath signPath = this.mechanisms.get(signatureAlgorithm);
+        List<byte[]> data = signPath.prepare(DTBSRs);
+        boolean ecdsa = signatureAlgorithm.contains("ECDSA");
+        long keyType = ecdsa ? CKK.EC : CKK.RSA;
+
+        List<byte[]> signatures = withSession(wrappedPrivateKey, (hsmInfo, session) -> {
+            // Unwrap private key, or reuse the one already unwrapped in this session
+            long privateKey = loadPrivateKey(hsmInfo, session, wrappedPrivateKey, wrapKeyVersion, keyType);
+
+            // Sign bytes
+            return sign(session, signPath.mechanism(), privateKey, data);
+        });
+
+        if (ecdsa) DEREncodeECDSASignatureValues(signatures);
+        return signatures;
+    }
 
-        CE.DestroyObject(session, secretKeyObj);
-        this.hsmInfo.releaseSession(sessionRef);
+    private List<byte[]> sign(long session, CKM mechanism, long privateKey, List<byte[]> DTBSRs) {
+        List<byte[]> signed = new ArrayList<>(DTBSRs.size());
+        for (byte[] DTBSR : DTBSRs) {
+            signed.add(this.binding.sign(session, mechanism, privateKey, DTBSR));
+        }
         return signed;
     }
 
-    public byte[] signDTBSWithRSAAndSHA256(byte[] wrappedPrivateKey, byte[] DTBSR) throws Exception {
-        return signDTBSWithRSAAndGivenAlgorithm(wrappedPrivateKey, DTBSR, "SHA256WITHRSA");
+    // the identifier (CKA_ID) of the resident private key of a credential
+    private static byte[] residentKeyId(String credentialId) {
+        return (RESIDENT_KEY_ID_PREFIX + credentialId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long[] findResidentKeys(long session, byte[] keyId) {
+        return this.binding.findObjects(session, new CKA(CKA.CLASS, CKO.PRIVATE_KEY), new CKA(CKA.TOKEN, true),
+              new CKA(CKA.ID, keyId));
     }
 
     /**
-     * Function that allows to obtain a signature value of the DTBSR value with a ECDSA private key and given signature algorithm.
-     *
-     * @param wrappedPrivateKey  the previously wrapped ECDSA private key chosen
-     * @param DTBSR              the value of the hash to be signed
-     * @param signatureAlgorithm the signature algorithm to be used
-     * @return the value of the signature
+     * Function that unwraps the private key of a credential as a token object, in the slot assigned to the credential.
+     * The object is not extractable: the wrapped private key in the database remains the copy used to move the key
+     * back to the wrapped storage or to another HSM.
      */
-    public byte[] signDTBSWithECDSAAndGivenAlgorithm(byte[] wrappedPrivateKey, byte[] DTBSR, String signatureAlgorithm)
+    @Override
+    public void storeResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion, String keyAlgorithm)
           throws Exception {
-        // init session
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-
-        long secretKeyObj = loadSecretKey(session, this.secretKey);
-
-        // Unwrap private key
-        long privateKey = unwrapP256Key(session, secretKeyObj, wrappedPrivateKey);
-
-        // Get Long value for signature
-        long signatureAlgLong = determineLongValueForAlgorithm(signatureAlgorithm);
-
-        // Sign bytes
-        CE.SignInit(session, new CKM(signatureAlgLong), privateKey);
-        byte[] signed = CE.Sign(session, DTBSR);
-
-        CE.DestroyObject(session, secretKeyObj);
-        this.hsmInfo.releaseSession(sessionRef);
-        return DEREncodeECDSASignatureValue(signed);
+        awaitBootstrap();
+        byte[] keyId = residentKeyId(credentialId);
+        long keyType = keyAlgorithm.equals("EC") ? CKK.EC : CKK.RSA;
+        withSessionInSlot(this.hsmSlots.assigned(keyId), (hsmInfo, session) -> {
+            long[] existing = findResidentKeys(session, keyId);
+            if (existing.length > 0) {
+                hsmInfo.putResidentKey(credentialId, existing[0]);
+                return null;
+            }
+            CKA[] template = new CKA[]{
+                  new CKA(CKA.CLASS, CKO.PRIVATE_KEY),
+                  new CKA(CKA.KEY_TYPE, keyType),
+                  new CKA(CKA.LABEL, RESIDENT_KEY_LABEL),
+                  new CKA(CKA.ID, keyId),
+                  new CKA(CKA.TOKEN, true),
+                  new CKA(CKA.PRIVATE, true),
+                  new CKA(CKA.SENSITIVE, true),
+                  new CKA(CKA.EXTRACTABLE, false),
+                  new CKA(CKA.SIGN, true),
+            };
+            long secretKey = residentSecretKey(hsmInfo, session, wrapKeyVersion);
+            long privateKey = this.binding.unwrapKey(session, WRAP_MECHANISM, secretKey, wrappedPrivateKey, template);
+            hsmInfo.putResidentKey(credentialId, privateKey);
+            return null;
+        });
     }
 
-    public byte[] signDTBSWithECDSAAndSHA256(byte[] wrappedPrivateKey, byte[] DTBSR) throws Exception {
-        return signDTBSWithECDSAAndGivenAlgorithm(wrappedPrivateKey, DTBSR, "SHA256WITHECDSA");
+    @Override
+    public void deleteResidentKey(String credentialId) throws Exception {
+        awaitBootstrap();
+        byte[] keyId = residentKeyId(credentialId);
+        withSessionInSlot(this.hsmSlots.assigned(keyId), (hsmInfo, session) -> {
+            hsmInfo.removeResidentKey(credentialId);
+            for (long privateKey : findResidentKeys(session, keyId)) {
+                this.binding.destroyObject(session, privateKey);
+            }
+            return null;
+        });
     }
 
-    public void verifyRSASignature(byte[] DTBSR, byte[] signature, byte[] publicKey) throws Exception {
-        // init session
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-
-        // Get Public Key Parameters
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        X509EncodedKeySpec pKeySpec = new X509EncodedKeySpec(publicKey);
-        RSAPublicKey pk = (RSAPublicKey) keyFactory.generatePublic(pKeySpec);
-
-        CKA[] pubTempl = new CKA[]{
-              new CKA(CKA.CLASS, CKO.PUBLIC_KEY),
-              new CKA(CKA.KEY_TYPE, CKK.RSA),
-              new CKA(CKA.MODULUS, pk.getModulus().toByteArray()),
-              new CKA(CKA.PUBLIC_EXPONENT, pk.getModulus().toByteArray()),
-              new CKA(CKA.WRAP, true),
-              new CKA(CKA.VERIFY, true),
-              new CKA(CKA.TOKEN, true),
-              new CKA(CKA.LABEL, "labelrsa-publicloaded"),
-              new CKA(CKA.ID, "labelrsa-publicloaded")
-        };
-        long publicKeyValue = CE.CreateObject(session, pubTempl);
-
-        // Verify Signature
-        CE.VerifyInit(session, new CKM(CKM.SHA256_RSA_PKCS), publicKeyValue);
-        CE.Verify(session, DTBSR, signature);
+    /**
+     * A resident private key found in the token of a slot, and whether the slot is the one assigned to its credential,
+     * in which the signatures search it.
+     */
+    public record ResidentKey(long slot, String credentialId, boolean assigned) {}
 
-        this.hsmInfo.CloseSession(sessionRef);
+    /**
+     * Function that lists the resident private keys stored in the token of every slot, including the keys stored in a
+     * slot that is no longer assigned to their credential because the slots changed.
+     */
+    public List<ResidentKey> listResidentKeys() throws Exception {
+        awaitBootstrap();
+        List<ResidentKey> residentKeys = new ArrayList<>();
+        for (HsmInformation hsmInfo : this.hsmSlots.getSlots()) {
+            withSessionInSlot(hsmInfo, (slot, session) -> {
+                long[] objects = this.binding.findObjects(session, new CKA(CKA.CLASS, CKO.PRIVATE_KEY),
+                      new CKA(CKA.TOKEN, true), new CKA(CKA.LABEL, RESIDENT_KEY_LABEL));
+                for (long object : objects) {
+                    String keyId = new String(this.binding.getAttributeValue(session, object, CKA.ID), StandardCharsets.UTF_8);
+                    if (!keyId.startsWith(RESIDENT_KEY_ID_PREFIX)) continue;
+                    String credentialId = keyId.substring(RESIDENT_KEY_ID_PREFIX.length());
+                    residentKeys.add(new ResidentKey(slot.getSlot(), credentialId,
+                          this.hsmSlots.assigned(residentKeyId(credentialId)) == slot));
+                }
+                return null;
+            });
+        }
+        return residentKeys;
     }
 
-    public void verifyP256Signature(byte[] DTBSR, byte[] signature, byte[] ecPointBytes) throws Exception {
-        // init session
-        LongRef sessionRef = this.hsmInfo.getSession();
-        long session = sessionRef.value();
-
-        byte[] ecCurveParams = Hex.s2b("06082a8648ce3d030107");
-        CKA[] pubTempl = new CKA[]{
-              new CKA(CKA.CLASS, CKO.PUBLIC_KEY),
-              new CKA(CKA.KEY_TYPE, CKK.EC),
-              new CKA(CKA.EC_PARAMS, ecCurveParams),
-              new CKA(CKA.EC_POINT, ecPointBytes),
-              new CKA(CKA.WRAP, true),
-              new CKA(CKA.VERIFY, true),
-              new CKA(CKA.TOKEN, true),
-              new CKA(CKA.LABEL, "labelrsa-publicloaded"),
-              new CKA(CKA.ID, "labelrsa-publicloaded")
-        };
-        long publicKeyValue = CE.CreateObject(session, pubTempl);
-
-        // Verify Signature
-        CE.VerifyInit(session, new CKM(CKM.ECDSA_SHA256), publicKeyValue);
-        CE.Verify(session, DTBSR, signature);
-
-        this.hsmInfo.CloseSession(sessionRef);
+    /**
+     * Function that destroys a resident private key found with listResidentKeys, in the slot where it was found.
+     * @return the number of objects destroyed
+     */
+    public int destroyResidentKey(ResidentKey residentKey) throws Exception {
+        awaitBootstrap();
+        byte[] keyId = residentKeyId(residentKey.credentialId());
+        for (HsmInformation hsmInfo : this.hsmSlots.getSlots()) {
+            if (hsmInfo.getSlot() != residentKey.slot()) continue;
+            return withSessionInSlot(hsmInfo, (slot, session) -> {
+                slot.removeResidentKey(residentKey.credentialId());
+                long[] objects = findResidentKeys(session, keyId);
+                for (long privateKey : objects) {
+                    this.binding.destroyObject(session, privateKey);
+                }
+                return objects.length;
+            });
+        }
+        return 0;
     }
 
-    private long determineLongValueForAlgorithm(String signatureAlgorithm) throws Exception {
-        return switch (signatureAlgorithm) {
-            case "RSA" -> 1L;
-            case "SHA256WITHRSA" -> 64L;
-            case "SHA384WITHRSA" -> 65L;
-            case "SHA512WITHRSA" -> 66L;
-
-            case "ECDSA" -> 4161L;
-            case "SHA256WITHECDSA"-> 4164L;
-            case "SHA384WITHECDSA"->4165L;
-            case "SHA512WITHECDSA" -> 4166L;
+    /**
+     * Function that signs the DTBSR values with the resident private key of a credential.
+     * The handle of the key is searched once in the slot and then reused while its CKA_ID is still the one of the
+     * credential, so the signatures don't unwrap any key. When the object is no longer in the token, for example
+     * after another replica moved the credential back to the wrapped storage, the wrapped private key is used.
+     */
+    @Override
+    public List<byte[]> signBatchWithResidentKey(String credentialId, byte[] wrappedPrivateKey, int wrapKeyVersion,
+                                                 List<byte[]> DTBSRs, String signatureAlgorithm) throws Exception {
+        awaitBootstrap();
+        MechanismTable.SignPath signPath = this.mechanisms.get(signatureAlgorithm);
+        CKM mechanism = signPath.mechanism();
+        List<byte[]> data = signPath.prepare(DTBSRs);
+        boolean ecdsa = signatureAlgorithm.contains("ECDSA");
+        byte[] keyId = residentKeyId(credentialId);
+
+        List<byte[]> signatures = withSessionInSlot(this.hsmSlots.assigned(keyId), (hsmInfo, session) -> {
+            Long privateKey = hsmInfo.getResidentKey(credentialId);
+            if (privateKey != null) {
+                try {
+                    // the handle of a destroyed object can be given by the HSM to another object
+                    if (Arrays.equals(keyId, this.binding.getAttributeValue(session, privateKey, CKA.ID))) {
+                        return sign(session, mechanism, privateKey, data);
+                    }
+                } catch (CKRException e) {
+                    // the handle is no longer valid, for example after the key was deleted by another replica
+                    if (e.getCKR() != CKR.OBJECT_HANDLE_INVALID && e.getCKR() != CKR.KEY_HANDLE_INVALID) throw e;
+                }
+                hsmInfo.removeResidentKey(credentialId);
+            }
+            long[] found = findResidentKeys(session, keyId);
+            if (found.length == 0) {
+                log.debug("The private key of the credential {} is not stored in the HSM, the wrapped key is used.", credentialId);
+                long unwrapped = loadPrivateKey(hsmInfo, session, wrappedPrivateKey, wrapKeyVersion, ecdsa ? CKK.EC : CKK.RSA);
+                return sign(session, mechanism, unwrapped, data);
+            }
+            hsmInfo.putResidentKey(credentialId, found[0]);
+            return sign(session, mechanism, found[0], data);
+        });
+
+        if (ecdsa) DEREncodeECDSASignatureValues(signatures);
+        return signatures;
+    }
 
-            default -> throw new Exception("The signature algorithm is not supported.");
-        };
+    /**
+     * Function that re-wraps a private key with another version of the wrap key.
+     * The private key is unwrapped in the HSM as a session object, destroyed as soon as it is wrapped again.
+     */
+    @Override
+    public byte[] rewrapPrivateKey(byte[] wrappedPrivateKey, String keyAlgorithm, int fromVersion, int toVersion)
+          throws Exception {
+        awaitBootstrap();
+        long keyType = keyAlgorithm.equals("EC") ? CKK.EC : CKK.RSA;
+        return withSession((hsmInfo, session) -> {
+            long fromSecretKey = residentSecretKey(hsmInfo, session, fromVersion);
+            long toSecretKey = residentSecretKey(hsmInfo, session, toVersion);
+            long privateKey = unwrapPrivateKey(session, fromSecretKey, wrappedPrivateKey, keyType);
+            try {
+                return this.binding.wrapKey(session, WRAP_MECHANISM, toSecretKey, privateKey);
+            } finally {
+                this.binding.destroyObject(session, privateKey);
+            }
+        });
     }
 
-    private byte[] DEREncodeECDSASignatureValue(byte[] signature) throws Exception{
-        int len = signature.length / 2;
-        byte[] r = Arrays.copyOfRange(signature, 0, len);
-        BigInteger rInt = new BigInteger(1, r);
-        byte[] s = Arrays.copyOfRange(signature, len, signature.length);
-        BigInteger sInt = new BigInteger(1, s);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DERSequenceGenerator seq = new DERSequenceGenerator(baos);
-        seq.addObject(new org.bouncycastle.asn1.ASN1Integer(rInt));
-        seq.addObject(new org.bouncycastle.asn1.ASN1Integer(sInt));
-        seq.close();
-        return baos.toByteArray();
+    private static void DEREncodeECDSASignatureValues(List<byte[]> signatures) {
+        for (int i = 0; i < signatures.size(); i++) {
+            signatures.set(i, SignatureEncoding.ecdsaSignatureToDER(signatures.get(i)));
+        }
     }
 }
\ No newline at end of file
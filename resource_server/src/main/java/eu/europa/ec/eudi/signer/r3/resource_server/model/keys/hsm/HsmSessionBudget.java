@@ -0,0 +1,134 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.HsmReplica;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.HsmReplicaRepository;
+import java.time.Instant;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shares the sessions of the HSM between the replicas of the resource server. Each replica keeps a heartbeat in the
+ * hsm_replicas table, counts the replicas with a recent heartbeat and limits the session pool of each slot to its
+ * share of the sessions the HSM allows, so that scaling out doesn't exceed the session limit of the partition.
+ * The HSM executor runs as many operations at the same time as the sessions of the share.
+ * The replicas that stop remove their row, and the rows of the replicas that crashed expire after the lease time.
+ */
+@Component
+@ConditionalOnProperty(prefix = "keys", name = "provider", havingValue = "hsm", matchIfMissing = true)
+public class HsmSessionBudget implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(HsmSessionBudget.class);
+
+    private final String replicaId = UUID.randomUUID().toString();
+    private final HsmReplicaRepository replicaRepository;
+    private final HsmService hsmService;
+    private final HsmExecutor hsmExecutor;
+    private final HsmConfig.SessionBudget budgetProperties;
+    private final int minSessions;
+    private Thread heartbeatThread;
+    private volatile boolean running = false;
+
+    public HsmSessionBudget(@Autowired HsmReplicaRepository replicaRepository, @Autowired HsmService hsmService,
+                            @Autowired HsmExecutor hsmExecutor, @Autowired HsmConfig hsmProperties) {
+        this.replicaRepository = replicaRepository;
+        this.hsmService = hsmService;
+        this.hsmExecutor = hsmExecutor;
+        this.budgetProperties = hsmProperties.getSessionBudget();
+        this.minSessions = hsmProperties.getSessionPool().getMinSessions();
+    }
+
+    /**
+     * Function that renews the heartbeat of this replica and adjusts the session limit to the replicas alive.
+     *
+     * @return the session limit applied to each slot
+     */
+    public int heartbeat() {
+        Instant now = Instant.now();
+        Instant expiry = now.minusSeconds(this.budgetProperties.getLeaseSeconds());
+        this.replicaRepository.save(new HsmReplica(this.replicaId, now));
+        this.replicaRepository.deleteExpired(expiry);
+
+        long replicas = Math.max(1, this.replicaRepository.countByHeartbeatAfter(expiry));
+        int share = (int) (this.budgetProperties.getTotalSessions() / replicas);
+        if (share < this.minSessions) {
+            logger.warn("The {} replicas need more than the {} HSM sessions allowed to keep {} sessions each.",
+                  replicas, this.budgetProperties.getTotalSessions(), this.minSessions);
+        }
+        int applied = this.hsmService.setSessionLimit(share);
+        this.hsmExecutor.setConcurrencyLimit(this.hsmService.getSessionLimit());
+        return applied;
+    }
+
+    @Override
+    public void start() {
+        this.running = true;
+        if (this.budgetProperties.getTotalSessions() <= 0) {
+            return;
+        }
+        // the first share is applied before the replica receives requests
+        try {
+            heartbeat();
+        } catch (Exception e) {
+            logger.error("Failed to register the replica in the HSM session budget: {}", e.getMessage());
+        }
+        this.heartbeatThread = new Thread(() -> {
+            while (this.running) {
+                try {
+                    Thread.sleep(this.budgetProperties.getHeartbeatIntervalSeconds() * 1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    heartbeat();
+                } catch (Exception e) {
+                    logger.error("Failed to renew the heartbeat of the replica: {}", e.getMessage());
+                }
+            }
+        }, "hsm-session-budget");
+        this.heartbeatThread.setDaemon(true);
+        this.heartbeatThread.start();
+    }
+
+    @Override
+    public void stop() {
+        this.running = false;
+        if (this.heartbeatThread != null) {
+            this.heartbeatThread.interrupt();
+            // the other replicas take over the sessions of this one at their next heartbeat
+            try {
+                this.replicaRepository.deleteById(this.replicaId);
+            } catch (Exception e) {
+                logger.warn("Failed to remove the replica from the HSM session budget: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The set of HSM slots used by the service, each one with its own session pool.
+ * Operations on a credential are routed to the slot chosen by a stable hash of the credential's wrapped key,
+ * so the key stays cached in the sessions of that slot. When that slot has no free session, or after it fails,
+ * the operation is sent to the least loaded of the other slots.
+ */
+public class HsmSlots {
+
+    private final List<HsmInformation> slots;
+
+    public HsmSlots(List<HsmInformation> slots) {
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("At least one HSM slot is required.");
+        }
+        this.slots = List.copyOf(slots);
+    }
+
+    /**
+     * Opens the minimum number of sessions of all the slots, warming the slots in parallel.
+     */
+    public void warmUp(Executor executor) throws Exception {
+        List<CompletableFuture<Void>> warmUps = new ArrayList<>();
+        for (HsmInformation slot : this.slots) {
+            warmUps.add(CompletableFuture.runAsync(() -> {
+                try {
+                    slot.warmUp();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(warmUps.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    public void close() {
+        this.slots.forEach(HsmInformation::close);
+    }
+
+    public List<HsmInformation> getSlots() {
+        return this.slots;
+    }
+
+    public double getLoad() {
+        return this.slots.stream().mapToDouble(HsmInformation::getLoad).average().orElse(0);
+    }
+
+    public int getMaxSessions() {
+        return this.slots.stream().mapToInt(HsmInformation::getMaxSessions).sum();
+    }
+
+    public int getSessionLimit() {
+        return this.slots.stream().mapToInt(HsmInformation::getSessionLimit).sum();
+    }
+
+    public int size() {
+        return this.slots.size();
+    }
+
+    /**
+     * Returns the slot assigned to the routing key, which doesn't change while the list of slots is the same.
+     */
+    public HsmInformation assigned(byte[] routingKey) {
+        return this.slots.get(Math.floorMod(Arrays.hashCode(routingKey), this.slots.size()));
+    }
+
+    /**
+     * Selects the slot where an operation should be executed.
+     * @param routingKey the value that identifies the credential used in the operation, or null if the
+     *                   operation doesn't use a stored key
+     * @param excluded the slots that already failed the operation
+     * @return the slot assigned to the routing key if it has a free session, or else the least loaded slot
+     */
+    public HsmInformation select(byte[] routingKey, Collection<HsmInformation> excluded) {
+        if (routingKey != null) {
+            HsmInformation preferred = assigned(routingKey);
+            if (!excluded.contains(preferred) && preferred.hasAvailableSession()) {
+                return preferred;
+            }
+        }
+        return this.slots.stream()
+              .filter(slot -> !excluded.contains(slot))
+              .min(Comparator.comparingDouble(HsmInformation::getLoad))
+              .orElseThrow(() -> new IllegalStateException("No HSM slot available."));
+    }
+}
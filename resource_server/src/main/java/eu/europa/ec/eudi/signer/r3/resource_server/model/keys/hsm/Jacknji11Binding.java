@@ -0,0 +1,116 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import org.pkcs11.jacknji11.CE;
+import org.pkcs11.jacknji11.CKA;
+import org.pkcs11.jacknji11.CKM;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * The PKCS#11 binding implemented with jacknji11. The library is loaded from JACKNJI11_PKCS11_LIB_PATH.
+ */
+public class Jacknji11Binding implements Pkcs11Binding {
+
+    @Override
+    public void initialize() {
+        CE.Initialize();
+    }
+
+    @Override
+    public void finalizeLibrary() {
+        CE.Finalize();
+    }
+
+    @Override
+    public long openSession(long slot) {
+        return CE.OpenSession(slot);
+    }
+
+    @Override
+    public void closeSession(long session) {
+        CE.CloseSession(session);
+    }
+
+    @Override
+    public void loginUser(long session, byte[] pin) {
+        CE.LoginUser(session, pin);
+    }
+
+    @Override
+    public long getSessionSlot(long session) {
+        return CE.GetSessionInfo(session).slotID;
+    }
+
+    @Override
+    public long[] getMechanismList(long slot) {
+        return CE.GetMechanismList(slot);
+    }
+
+    @Override
+    public long getMechanismFlags(long slot, long mechanism) {
+        return CE.GetMechanismInfo(slot, mechanism).flags;
+    }
+
+    @Override
+    public long createObject(long session, CKA... template) {
+        return CE.CreateObject(session, template);
+    }
+
+    @Override
+    public void destroyObject(long session, long object) {
+        CE.DestroyObject(session, object);
+    }
+
+    @Override
+    public long[] findObjects(long session, CKA... template) {
+        return CE.FindObjects(session, template);
+    }
+
+    @Override
+    public long generateKey(long session, CKM mechanism, CKA... template) {
+        return CE.GenerateKey(session, mechanism, template);
+    }
+
+    @Override
+    public void generateKeyPair(long session, CKM mechanism, CKA[] publicKeyTemplate, CKA[] privateKeyTemplate,
+                                LongRef publicKey, LongRef privateKey) {
+        CE.GenerateKeyPair(session, mechanism, publicKeyTemplate, privateKeyTemplate, publicKey, privateKey);
+    }
+
+    @Override
+    public byte[] wrapKey(long session, CKM mechanism, long wrappingKey, long key) {
+        return CE.WrapKey(session, mechanism, wrappingKey, key);
+    }
+
+    @Override
+    public long unwrapKey(long session, CKM mechanism, long unwrappingKey, byte[] wrappedKey, CKA... template) {
+        return CE.UnwrapKey(session, mechanism, unwrappingKey, wrappedKey, template);
+    }
+
+    @Override
+    public byte[] getAttributeValue(long session, long object, long attribute) {
+        return CE.GetAttributeValue(session, object, attribute).getValue();
+    }
+
+    @Override
+    public byte[] sign(long session, CKM mechanism, long key, byte[] data) {
+        CE.SignInit(session, mechanism, key);
+        return CE.Sign(session, data);
+    }
+}
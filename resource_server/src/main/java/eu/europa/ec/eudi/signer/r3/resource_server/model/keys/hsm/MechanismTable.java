@@ -0,0 +1,148 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.SignatureEncoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.pkcs11.jacknji11.CKM;
+import org.pkcs11.jacknji11.CKRException;
+import org.pkcs11.jacknji11.CK_MECHANISM_INFO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The mechanism used to sign with each signature algorithm, chosen from the mechanisms reported by the HSM with
+ * C_GetMechanismList and C_GetMechanismInfo when it starts.
+ * For the algorithms with a hash, the data is hashed in the JVM and signed with the raw mechanism (CKM_ECDSA, or
+ * CKM_RSA_PKCS over the DigestInfo) when every slot supports it, so only the hash crosses the PKCS#11 boundary.
+ * The combined hash-and-sign mechanism (CKM_ECDSA_SHA256...) is used when the raw mechanism is not supported.
+ */
+public class MechanismTable {
+
+    private static final Logger log = LoggerFactory.getLogger(MechanismTable.class);
+
+    /**
+     * How the data is signed with a signature algorithm.
+     * @param mechanism       the PKCS#11 mechanism
+     * @param digest          the name of the hash computed in the JVM before signing, or null to sign the data as given
+     * @param digestInfoOid   the OID of the hash in the DigestInfo it is encoded in before a raw RSA signature, or null
+     */
+    public record SignPath(CKM mechanism, String digest, String digestInfoOid) {
+
+        /**
+         * Function that returns the values to pass to the mechanism for each of the given data values.
+         */
+        public List<byte[]> prepare(List<byte[]> data) throws Exception {
+            if (this.digest == null) return data;
+            MessageDigest messageDigest = MessageDigest.getInstance(this.digest);
+            List<byte[]> prepared = new ArrayList<>(data.size());
+            for (byte[] value : data) {
+                byte[] hash = messageDigest.digest(value);
+                prepared.add(this.digestInfoOid == null ? hash : SignatureEncoding.digestInfo(hash, this.digestInfoOid));
+            }
+            return prepared;
+        }
+    }
+
+    // the signature algorithms with a hash: the raw mechanism, the combined mechanism, the hash and its OID (for RSA)
+    private record HashAndSign(String algorithm, long raw, long combined, String digest, ASN1ObjectIdentifier digestOid) {}
+
+    private static final List<HashAndSign> HASH_AND_SIGN = List.of(
+          new HashAndSign("SHA256WITHRSA", CKM.RSA_PKCS, CKM.SHA256_RSA_PKCS, "SHA-256", NISTObjectIdentifiers.id_sha256),
+          new HashAndSign("SHA384WITHRSA", CKM.RSA_PKCS, CKM.SHA384_RSA_PKCS, "SHA-384", NISTObjectIdentifiers.id_sha384),
+          new HashAndSign("SHA512WITHRSA", CKM.RSA_PKCS, CKM.SHA512_RSA_PKCS, "SHA-512", NISTObjectIdentifiers.id_sha512),
+          new HashAndSign("SHA256WITHECDSA", CKM.ECDSA, CKM.ECDSA_SHA256, "SHA-256", null),
+          new HashAndSign("SHA384WITHECDSA", CKM.ECDSA, CKM.ECDSA_SHA384, "SHA-384", null),
+          new HashAndSign("SHA512WITHECDSA", CKM.ECDSA, CKM.ECDSA_SHA512, "SHA-512", null)
+    );
+
+    private final Map<String, SignPath> signPaths;
+
+    private MechanismTable(Map<String, SignPath> signPaths) {
+        this.signPaths = signPaths;
+    }
+
+    /**
+     * Function that queries the signature mechanisms of the given slots and chooses the mechanism of each algorithm,
+     * among the ones supported by all the slots. If the HSM doesn't report its mechanisms, the mechanisms used before
+     * the discovery are assumed: the raw mechanisms for RSA and ECDSA, and the combined ones for the other algorithms.
+     */
+    public static MechanismTable discover(Pkcs11Binding binding, List<Long> slots) {
+        Set<Long> supported = null;
+        try {
+            for (long slot : slots) {
+                Set<Long> slotMechanisms = new HashSet<>();
+                for (long mechanism : binding.getMechanismList(slot)) {
+                    if ((binding.getMechanismFlags(slot, mechanism) & CK_MECHANISM_INFO.CKF_SIGN) != 0) {
+                        slotMechanisms.add(mechanism);
+                    }
+                }
+                if (supported == null) supported = slotMechanisms;
+                else supported.retainAll(slotMechanisms);
+            }
+        } catch (CKRException e) {
+            log.warn("Failed to query the mechanisms of the HSM, using the default mechanisms: {}", e.getMessage());
+            supported = null;
+        }
+        return build(supported);
+    }
+
+    // supported is null when the mechanisms are unknown
+    private static MechanismTable build(Set<Long> supported) {
+        Map<String, SignPath> signPaths = new HashMap<>();
+        if (supported == null || supported.contains(CKM.RSA_PKCS)) {
+            signPaths.put("RSA", new SignPath(new CKM(CKM.RSA_PKCS), null, null));
+        }
+        if (supported == null || supported.contains(CKM.ECDSA)) {
+            signPaths.put("ECDSA", new SignPath(new CKM(CKM.ECDSA), null, null));
+        }
+        for (HashAndSign algorithm : HASH_AND_SIGN) {
+            SignPath signPath;
+            if (supported != null && supported.contains(algorithm.raw())) {
+                // hashing in the JVM is faster than sending the whole data to the HSM to be hashed there
+                String digestInfoOid = algorithm.digestOid() == null ? null : algorithm.digestOid().getId();
+                signPath = new SignPath(new CKM(algorithm.raw()), algorithm.digest(), digestInfoOid);
+            } else if (supported == null || supported.contains(algorithm.combined())) {
+                signPath = new SignPath(new CKM(algorithm.combined()), null, null);
+            } else {
+                continue;
+            }
+            signPaths.put(algorithm.algorithm(), signPath);
+            log.info("Signing with {} using the mechanism {}{}.", algorithm.algorithm(), CKM.L2S(signPath.mechanism().mechanism),
+                  signPath.digest() == null ? "" : ", hashing with " + signPath.digest() + " in the JVM");
+        }
+        return new MechanismTable(Map.copyOf(signPaths));
+    }
+
+    /**
+     * Function that returns how to sign with the given signature algorithm.
+     */
+    public SignPath get(String signatureAlgorithm) throws Exception {
+        SignPath signPath = this.signPaths.get(signatureAlgorithm);
+        if (signPath == null) throw new Exception("The signature algorithm is not supported.");
+        return signPath;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import org.pkcs11.jacknji11.CKA;
+import org.pkcs11.jacknji11.CKM;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * The PKCS#11 functions used by the service, so that the native binding used to call the HSM can be replaced.
+ * The implementations report the errors of the HSM with a CKRException holding the PKCS#11 return value.
+ * The binding is chosen with the property hsm.binding:
+ * <ul>
+ *     <li>jacknji11 (default): the jacknji11 library, which calls the HSM through JNA;</li>
+ *     <li>panama: calls the HSM through the java.lang.foreign API, requires a Java 22 runtime and a build with
+ *     the jdk22 profile.</li>
+ * </ul>
+ */
+public interface Pkcs11Binding {
+
+    void initialize();
+
+    void finalizeLibrary();
+
+    long openSession(long slot);
+
+    void closeSession(long session);
+
+    void loginUser(long session, byte[] pin);
+
+    long getSessionSlot(long session);
+
+    /**
+     * The mechanisms supported by the token in the slot.
+     */
+    long[] getMechanismList(long slot);
+
+    /**
+     * The flags of a mechanism supported by the token in the slot, as in CK_MECHANISM_INFO (CKF_SIGN, CKF_HW...).
+     */
+    long getMechanismFlags(long slot, long mechanism);
+
+    long createObject(long session, CKA... template);
+
+    void destroyObject(long session, long object);
+
+    long[] findObjects(long session, CKA... template);
+
+    long generateKey(long session, CKM mechanism, CKA... template);
+
+    void generateKeyPair(long session, CKM mechanism, CKA[] publicKeyTemplate, CKA[] privateKeyTemplate,
+                         LongRef publicKey, LongRef privateKey);
+
+    byte[] wrapKey(long session, CKM mechanism, long wrappingKey, long key);
+
+    long unwrapKey(long session, CKM mechanism, long unwrappingKey, byte[] wrappedKey, CKA... template);
+
+    byte[] getAttributeValue(long session, long object, long attribute);
+
+    /**
+     * Initializes the signature operation and signs the data, in a single call.
+     */
+    byte[] sign(long session, CKM mechanism, long key, byte[] data);
+
+    /**
+     * Function that creates the binding with the given name.
+     * @param name the value of the property hsm.binding
+     */
+    static Pkcs11Binding forName(String name) throws Exception {
+        return switch (name) {
+            case "jacknji11" -> new Jacknji11Binding();
+            case "panama" -> {
+                try {
+                    Class<?> bindingClass = Class.forName(Pkcs11Binding.class.getPackageName() + ".PanamaBinding");
+                    yield (Pkcs11Binding) bindingClass.getDeclaredConstructor().newInstance();
+                } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+                    throw new Exception("The panama PKCS#11 binding requires a build with the jdk22 profile and a Java 22 runtime.");
+                }
+            }
+            default -> throw new Exception("Unknown PKCS#11 binding: " + name);
+        };
+    }
+}
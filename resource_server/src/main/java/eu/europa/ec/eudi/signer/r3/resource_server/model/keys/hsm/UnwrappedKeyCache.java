@@ -0,0 +1,134 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pkcs11.jacknji11.CKRException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the handles of the private keys unwrapped in the HSM.
+ * The unwrapped keys are session objects, so the handles are kept per session and are dropped when the
+ * session is closed. Each session keeps at most a fixed number of keys, and the least recently used key
+ * object is destroyed in the HSM when it is evicted.
+ */
+public class UnwrappedKeyCache {
+
+    private static final Logger log = LoggerFactory.getLogger(UnwrappedKeyCache.class);
+    private final Pkcs11Binding binding;
+    private final int maxKeysPerSession;
+    private final Map<Long, SessionKeys> keysBySession = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public UnwrappedKeyCache(Pkcs11Binding binding, int maxKeysPerSession) {
+        if (maxKeysPerSession < 1) {
+            throw new IllegalArgumentException("The unwrapped key cache must hold at least one key per session.");
+        }
+        this.binding = binding;
+        this.maxKeysPerSession = maxKeysPerSession;
+    }
+
+    /**
+     * Function that computes the identifier of a wrapped private key, used as the key of the cache.
+     * @param wrappedPrivateKey the wrapped private key bytes
+     * @return the hex encoded SHA-256 digest of the wrapped key
+     */
+    public static String keyIdentifier(byte[] wrappedPrivateKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(wrappedPrivateKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Function that returns the handle of an unwrapped key in the given session, if present.
+     * @return the handle of the key object or null if the key was not unwrapped in the session
+     */
+    public Long get(long session, String keyIdentifier) {
+        SessionKeys keys = this.keysBySession.get(session);
+        Long handle = null;
+        if (keys != null) {
+            synchronized (keys) {
+                handle = keys.get(keyIdentifier);
+            }
+        }
+        if (handle == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return handle;
+    }
+
+    public void put(long session, String keyIdentifier, long handle) {
+        SessionKeys keys = this.keysBySession.computeIfAbsent(session, SessionKeys::new);
+        synchronized (keys) {
+            keys.put(keyIdentifier, handle);
+        }
+    }
+
+    /**
+     * Removes the keys of a session from the cache, without destroying them.
+     * Must be called when the session is closed, as the HSM destroys the session objects itself.
+     */
+    public void invalidateSession(long session) {
+        this.keysBySession.remove(session);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private class SessionKeys extends LinkedHashMap<String, Long> {
+        private final long session;
+
+        SessionKeys(long session) {
+            super(16, 0.75f, true);
+            this.session = session;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= maxKeysPerSession) return false;
+            evictions.incrementAndGet();
+            try {
+                binding.destroyObject(session, eldest.getValue());
+            } catch (CKRException e) {
+                log.warn("Failed to destroy the evicted key object {} of the session {}: {}",
+                      eldest.getValue(), session, e.getMessage());
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.web.actuator;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.CredentialsService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint, served only in the management port, to move the private key of a credential between the
+ * wrapped and the resident storage. GET /actuator/keystorage/{credentialId} returns the storage of the key, and
+ * POST /actuator/keystorage/{credentialId} with the body {"keyStorage": "resident"} or {"keyStorage": "wrapped"}
+ * moves it.
+ */
+@Component
+@Endpoint(id = "keystorage")
+public class KeyStorageEndpoint {
+
+    private final CredentialsService credentialsService;
+
+    public KeyStorageEndpoint(@Autowired CredentialsService credentialsService) {
+        this.credentialsService = credentialsService;
+    }
+
+    @ReadOperation
+    public Map<String, Object> keyStorage(@Selector String credentialId) throws Exception {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("credentialID", credentialId);
+        status.put("keyStorage", this.credentialsService.getKeyStorage(credentialId));
+        return status;
+    }
+
+    @WriteOperation
+    public Map<String, Object> migrate(@Selector String credentialId, String keyStorage) throws Exception {
+        this.credentialsService.setKeyStorage(credentialId, keyStorage);
+        return keyStorage(credentialId);
+    }
+}
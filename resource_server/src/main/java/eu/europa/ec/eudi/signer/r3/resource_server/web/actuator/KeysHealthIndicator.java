@@ -0,0 +1,59 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.web.actuator;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports if the key operations are ready: with the HSM provider, when the PKCS#11 library is initialized, the
+ * minimum number of sessions of each slot is open and the wrap key is loaded. It is part of the readiness group,
+ * so the instance only receives requests after the initialization, while the liveness probe is served from the start.
+ */
+@Component
+public class KeysHealthIndicator implements HealthIndicator {
+
+    private final KeyOperations keyOperations;
+
+    public KeysHealthIndicator(@Autowired KeyOperations keyOperations) {
+        this.keyOperations = keyOperations;
+    }
+
+    @Override
+    public Health health() {
+        CompletableFuture<Void> ready = this.keyOperations.whenReady();
+        if (!ready.isDone()) {
+            return Health.outOfService().withDetail("reason", "initializing").build();
+        }
+        try {
+            ready.join();
+        } catch (CompletionException e) {
+            return Health.down(e.getCause() != null ? e.getCause() : e).build();
+        }
+        return Health.up()
+              .withDetail("wrapKeyVersion", this.keyOperations.getWrapKeyVersion())
+              .withDetail("maxSessions", this.keyOperations.getMaxSessions())
+              .withDetail("load", this.keyOperations.getLoad())
+              .build();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.web.actuator;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.WrapKeyRewrapJob;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint, served only in the management port, to rotate the wrap key and follow the re-wrap of the credentials.
+ * GET /actuator/wrapkeys returns the newest version and the credentials remaining to re-wrap, and
+ * POST /actuator/wrapkeys generates a new version of the wrap key.
+ */
+@Component
+@Endpoint(id = "wrapkeys")
+public class WrapKeysEndpoint {
+
+    private final KeyOperations keyOperations;
+    private final WrapKeyRewrapJob rewrapJob;
+
+    public WrapKeysEndpoint(@Autowired KeyOperations keyOperations, @Autowired WrapKeyRewrapJob rewrapJob) {
+        this.keyOperations = keyOperations;
+        this.rewrapJob = rewrapJob;
+    }
+
+    @ReadOperation
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("version", this.keyOperations.getWrapKeyVersion());
+        status.put("remaining", this.rewrapJob.getRemaining());
+        return status;
+    }
+
+    @WriteOperation
+    public Map<String, Object> rotate() throws Exception {
+        this.rewrapJob.rotate();
+        return status();
+    }
+}
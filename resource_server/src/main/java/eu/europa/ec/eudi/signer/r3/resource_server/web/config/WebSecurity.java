@@ -16,6 +16,10 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.web.config;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.Customizer;
@@ -29,15 +33,24 @@ import org.springframework.security.web.SecurityFilterChain;
 public class WebSecurity {
 
     @Bean
-    SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
+    SecurityFilterChain securityFilterChain(HttpSecurity http, @Value("${management.server.port:-1}") int managementPort)
+          throws Exception {
         http
               .csrf(AbstractHttpConfigurer::disable)
               .authorizeHttpRequests(authorize ->
                     authorize
+                          // only the actuator endpoints are served in the management port: the probes are open,
+                          // the other endpoints (including the wrapkeys and keystorage writes) only to local connections
+                          .requestMatchers(request -> request.getLocalPort() == managementPort
+                                && request.getRequestURI().startsWith("/actuator/health")).permitAll()
+                          .requestMatchers(request -> request.getLocalPort() == managementPort
+                                && isLoopback(request.getRemoteAddr())).permitAll()
+                          .requestMatchers(request -> request.getLocalPort() == managementPort).denyAll()
                           .requestMatchers("/swagger-ui/**").permitAll()
                           .requestMatchers("/v3/api-docs/**").permitAll()
                           .requestMatchers("/csc/v2/info").permitAll()
                           .requestMatchers("/csc/v2/signatures/signHash").hasAuthority("SCOPE_credential")
+                          .requestMatchers("/csc/v2/signatures/getSignatures").hasAuthority("SCOPE_credential")
                           .requestMatchers("/csc/v2/credentials/info").hasAnyAuthority("SCOPE_credential", "SCOPE_service")
                           .requestMatchers("/csc/v2/credentials/list").hasAuthority("SCOPE_service")
                           .anyRequest().denyAll()
@@ -48,4 +61,12 @@ public class WebSecurity {
         return http.build();
     }
 
+    private static boolean isLoopback(String remoteAddress) {
+        try {
+            return remoteAddress != null && InetAddress.getByName(remoteAddress).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
 }
@@ -16,19 +16,33 @@
 
 package eu.europa.ec.eudi.signer.r3.resource_server.web.controllers;
 
+import eu.europa.ec.eudi.signer.r3.resource_server.config.InfoConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.exception.ConflictException;
+import eu.europa.ec.eudi.signer.r3.resource_server.exception.TooManyRequestsException;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.SignatureJobService;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.SignatureResponseCache;
 import eu.europa.ec.eudi.signer.r3.resource_server.model.SignaturesService;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmQuotaExceededException;
+import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.SignaturesGetSignaturesRequest;
+import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.SignaturesSignHashBinaryRequest;
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.SignaturesSignHashRequest;
 import eu.europa.ec.eudi.signer.r3.resource_server.web.dto.SignaturesSignHashResponse;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.jwt.Jwt;
@@ -43,10 +57,20 @@ import org.springframework.web.server.ResponseStatusException;
 public class SignaturesController {
 
     private final SignaturesService signaturesService;
+    private final SignatureJobService signatureJobService;
+    private final InfoConfig infoProperties;
+    private final SignatureResponseCache responseCache;
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
     private static final Logger logger = LoggerFactory.getLogger(SignaturesController.class);
 
-    public SignaturesController(@Autowired SignaturesService signaturesService) {
+    public SignaturesController(@Autowired SignaturesService signaturesService,
+                                @Autowired SignatureJobService signatureJobService,
+                                @Autowired InfoConfig infoProperties,
+                                @Autowired SignatureResponseCache responseCache) {
         this.signaturesService = signaturesService;
+        this.signatureJobService = signatureJobService;
+        this.infoProperties = infoProperties;
+        this.responseCache = responseCache;
     }
 
     private void auxDebugLogs(Map<String, Object> claims){
@@ -57,26 +81,32 @@ public class SignaturesController {
         logger.debug("Access Token Claims: {}", stringBuilder.toString());
     }
 
-    /***
-     * Endpoint where a request to calculate the digital signature of a hash can be requested
-     * @param signHashRequest the body from the Http Request
-     * @return a json response with the signature values
+    /**
+     * The values of the signature request authorized by the access token.
      */
-    @PostMapping(value = "/signHash", consumes = "application/json", produces = "application/json")
-    public SignaturesSignHashResponse signHash(@Valid @RequestBody SignaturesSignHashRequest signHashRequest) {
+    private record AuthorizedSignature(String tokenKey, Instant tokenExpiresAt, String clientId, String userHash,
+                                       String credentialID, int numSignatures, String hashAlgorithmOID,
+                                       List<byte[]> hashes) {}
+
+    // the OAuth client the access token was issued to, in the claim client_id or else in the audience
+    private static String getClientId(Jwt jwt){
+        Object clientId = jwt.getClaims().get("client_id");
+        if(clientId != null) return clientId.toString();
+        List<String> audience = jwt.getAudience();
+        return audience == null || audience.isEmpty() ? "unknown" : audience.get(0);
+    }
+
+    private AuthorizedSignature getAuthorizedSignature(){
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        Object principal = authentication.getPrincipal();
-        Map<String, Object> claims = ((Jwt) principal).getClaims();
+        Jwt jwt = (Jwt) authentication.getPrincipal();
+        Map<String, Object> claims = jwt.getClaims();
         if(logger.isDebugEnabled()) auxDebugLogs(claims);
 
-        String userHash = claims.get("sub").toString();
-        logger.debug("Request received at /csc/v2/credentials/list with the body {} from the user {}",
-              signHashRequest.toString(), userHash);
-
-        if(userHash == null){
+        if(claims.get("sub") == null){
             logger.error("invalid_request: Invalid user sub in the Authorization Header.");
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: Invalid or missing user identifier.");
         }
+        String userHash = claims.get("sub").toString();
 
         if(!claims.containsKey("credentialID") || !claims.containsKey("numSignatures") ||
               !claims.containsKey("hashAlgorithmOID") || !claims.containsKey("hashes")){
@@ -92,53 +122,327 @@ public class SignaturesController {
         logger.debug("hashAlgorithmOIDAuthorized: {}", hashAlgorithmOIDAuthorized);
         String hashesString = claims.get("hashes").toString();
         logger.debug("hashesString: {}", hashesString);
-        String[] hashesAuthorizedArray = hashesString.split(",");
-        Arrays.sort(hashesAuthorizedArray);
-        List<String> hashesAuthorized = new ArrayList<>(Arrays.asList(hashesAuthorizedArray));
+        List<byte[]> hashesAuthorized = new ArrayList<>();
+        try {
+            for (String hash : hashesString.split(",")) {
+                hashesAuthorized.add(SignaturesService.decodeHash(hash));
+            }
+        }
+        catch (IllegalArgumentException e){
+            logger.error("Invalid hashes claim in the Authorization Header.");
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the authorization header " +
+                  "doesn't authorize the signature request.");
+        }
+        String tokenKey;
+        try {
+            tokenKey = SignatureResponseCache.tokenKey(jwt.getId(), jwt.getTokenValue());
+        }
+        catch (Exception e){
+            logger.error(e.getMessage());
+            throw new ResponseStatusException(HttpStatusCode.valueOf(500), "invalid_request");
+        }
+        return new AuthorizedSignature(tokenKey, jwt.getExpiresAt(), getClientId(jwt), userHash, credentialIDAuthorized,
+              numSignaturesAuthorized, hashAlgorithmOIDAuthorized, hashesAuthorized);
+    }
+
+    private void validateSignatureRequest(AuthorizedSignature authorized, String credentialID,
+                                          String hashAlgorithmOID, List<byte[]> hashesRequested){
+        if(!signaturesService.validateSignatureRequest(authorized.userHash(), credentialID, authorized.credentialID(),
+              hashesRequested.size(), authorized.numSignatures(), hashAlgorithmOID, authorized.hashAlgorithmOID(),
+              hashesRequested, authorized.hashes())){
+            logger.error("The Authorization Header doesn't authorize the current Signature Request.");
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the authorization header " +
+                  "doesn't authorize the signature request.");
+        }
+        logger.info("Validated that the Authorization Header authorizes the current Signature Request.");
+    }
+
+    /***
+     * Endpoint where a request to calculate the digital signature of a hash can be requested
+     * @param signHashRequest the body from the Http Request
+     * @return a json response with the signature values
+     */
+    @PostMapping(value = "/signHash", consumes = "application/json", produces = "application/json")
+    public SignaturesSignHashResponse signHash(@Valid @RequestBody SignaturesSignHashRequest signHashRequest) {
+        AuthorizedSignature authorized = getAuthorizedSignature();
+        String userHash = authorized.userHash();
+        logger.debug("Request received at /csc/v2/signatures/signHash with the body {} from the user {}",
+              signHashRequest.toString(), userHash);
 
         try {
-            List<String> hashesRequestedEncoded = signHashRequest.getHashes();
-            Collections.sort(hashesRequestedEncoded);
-            List<String> hashesRequested = new ArrayList<>();
-            for(String s: hashesRequestedEncoded){
-                logger.debug(s);
-                String urlDecodedHash = URLDecoder.decode(s, StandardCharsets.UTF_8);
-                hashesRequested.add(urlDecodedHash);
-            }
-
-            if(!signaturesService.validateSignatureRequest(userHash, signHashRequest.getCredentialID(),
-                  credentialIDAuthorized, signHashRequest.getHashes().size(), numSignaturesAuthorized,
-                  signHashRequest.getHashAlgorithmOID(), hashAlgorithmOIDAuthorized, hashesRequested, hashesAuthorized)){
-                logger.error("The Authorization Header doesn't authorize the current Signature Request.");
-                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the authorization header " +
-                      "doesn't authorize the signature request.");
-            }
-            logger.info("Validated that the Authorization Header authorizes the current Signature Request.");
-
-            if(Objects.equals(signHashRequest.getOperationMode(), "A")){
-                logger.error("Currently asynchronous responses are not supported");
+            // each hash is decoded once, and the same values are compared with the authorized ones and signed
+            List<byte[]> hashesRequested = new ArrayList<>(signHashRequest.getHashes().size());
+            for(String s: signHashRequest.getHashes()){
+                hashesRequested.add(SignaturesService.decodeHash(s));
+            }
+            validateSignatureRequest(authorized, signHashRequest.getCredentialID(), signHashRequest.getHashAlgorithmOID(),
+                  hashesRequested);
+
+            String operationMode = signHashRequest.getOperationMode();
+            if(!Objects.equals(operationMode, "A") && !Objects.equals(operationMode, "S")){
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the operation mode in the " +
+                      "request is invalid.");
+            }
+            if(Objects.equals(operationMode, "A") && !this.infoProperties.getAsynchronousOperationMode()){
+                logger.error("The asynchronous operation mode is disabled.");
                 throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "not_implemented: asynchronous responses " +
                       "are not supported.");
             }
-            else if(Objects.equals(signHashRequest.getOperationMode(), "S")){
-                logger.info("Starting synchronous signature flow...");
-                SignaturesSignHashResponse signaturesSignHashResponse = new SignaturesSignHashResponse();
-                List<String> signatures = signaturesService.signHash(userHash, signHashRequest.getCredentialID(),
-                      signHashRequest.getHashes(), signHashRequest.getHashAlgorithmOID(), signHashRequest.getSignAlgo(),
-                      signHashRequest.getSignAlgoParams());
+
+            // a retry of the request with the same access token receives the response of the first one
+            SignatureResponseCache.Ticket ticket = this.responseCache.begin(authorized.tokenKey(), authorized.tokenExpiresAt(),
+                  SignatureResponseCache.fingerprint(operationMode, signHashRequest.getCredentialID(),
+                        signHashRequest.getHashAlgorithmOID(), signHashRequest.getSignAlgo(),
+                        signHashRequest.getSignAlgoParams(), hashesRequested));
+            SignatureResponseCache.Response signHashResponse = null;
+            if(!ticket.first()){
+                logger.info("The signature request was already received with the same access token, returning its response.");
+                signHashResponse = this.responseCache.await(ticket);
+                if(signHashResponse.signaturesDiscarded()){
+                    logger.info("The signature values of the first request were not kept, signing again.");
+                    signHashResponse = null;
+                }
+            }
+            if(signHashResponse == null){
+                try {
+                    if(Objects.equals(operationMode, "A")){
+                        logger.info("Starting asynchronous signature flow...");
+                        String responseID = signatureJobService.submit(authorized.clientId(), userHash,
+                              signHashRequest.getCredentialID(), hashesRequested, signHashRequest.getHashAlgorithmOID(),
+                              signHashRequest.getSignAlgo(), signHashRequest.getSignAlgoParams(),
+                              signHashRequest.getValidity_period());
+                        signHashResponse = new SignatureResponseCache.Response(null, responseID);
+                    }
+                    else {
+                        logger.info("Starting synchronous signature flow...");
+                        List<byte[]> signatures = new ArrayList<>(hashesRequested.size());
+                        signaturesService.signHashValues(authorized.clientId(), userHash, signHashRequest.getCredentialID(),
+                              hashesRequested, signHashRequest.getHashAlgorithmOID(), signHashRequest.getSignAlgo(),
+                              signHashRequest.getSignAlgoParams(), signatures::addAll);
+                        signHashResponse = new SignatureResponseCache.Response(signatures, null);
+                    }
+                }
+                catch (Exception e){
+                    if(ticket.first()) this.responseCache.fail(authorized.tokenKey(), ticket, e);
+                    throw e;
+                }
+                if(ticket.first()) this.responseCache.complete(authorized.tokenKey(), ticket, signHashResponse);
+            }
+
+            SignaturesSignHashResponse signaturesSignHashResponse = new SignaturesSignHashResponse();
+            if(signHashResponse.responseID() != null){
+                signaturesSignHashResponse.setResponseID(signHashResponse.responseID());
+                logger.info("Set the responseID in the Response.");
+            }
+            else {
+                List<String> signatures = new ArrayList<>(signHashResponse.signatures().size());
+                for (byte[] signature : signHashResponse.signatures()) {
+                    signatures.add(Base64.getEncoder().encodeToString(signature));
+                }
                 signaturesSignHashResponse.setSignatures(signatures);
                 logger.info("Set the Signatures Values in the Response.");
-                return signaturesSignHashResponse;
             }
-            else throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the operation mode in the " +
-                      "request is invalid.");
+            return signaturesSignHashResponse;
         }
         catch (ResponseStatusException ex){
             throw ex;
         }
+        catch (SignatureResponseCache.TokenReusedException e){
+            logger.error(e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the access token was already " +
+                  "used for a different signature request.");
+        }
+        catch (SignatureResponseCache.RequestInProgressException e){
+            logger.error(e.getMessage());
+            throw new ConflictException("temporarily_unavailable: the signature request is still being processed, " +
+                  "try again later.", e.getRetryAfterSeconds());
+        }
+        catch (IllegalArgumentException e){
+            logger.error("Invalid hash value in the request: {}", e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: invalid hash value.");
+        }
+        catch (HsmQuotaExceededException e){
+            logger.error("The signature request exceeds the share of the client: {}", e.getMessage());
+            throw new TooManyRequestsException("temporarily_unavailable: too many signature requests of the client " +
+                  "are waiting, try again later.", e.getRetryAfterSeconds());
+        }
+        catch (RejectedExecutionException | TimeoutException e){
+            logger.error("The signature request could not be completed in time: {}", e.getMessage());
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "temporarily_unavailable: the signing " +
+                  "service is busy, try again later.");
+        }
+        catch (Exception e){
+            logger.error(e.getMessage());
+            throw new ResponseStatusException(HttpStatusCode.valueOf(500), "invalid_request");
+        }
+    }
+
+    /***
+     * Endpoint where a request to calculate the digital signature of a hash can be requested, in the application/cbor
+     * representation: the hash values and the signature values are CBOR byte strings instead of Base64 strings.
+     * The response is a map with the array "signatures", of indefinite length, to which the signature values are
+     * written as they are signed. If the request fails after the first signature values were written, the array is
+     * not terminated, and the client must treat the truncated response as a failure.
+     * @param signHashRequest the body from the Http Request
+     * @param response the Http Response, to which the signature values are streamed
+     */
+    @PostMapping(value = "/signHash", consumes = "application/cbor", produces = "application/cbor")
+    public void signHashBinary(@Valid @RequestBody SignaturesSignHashBinaryRequest signHashRequest,
+                               HttpServletResponse response) {
+        AuthorizedSignature authorized = getAuthorizedSignature();
+        String userHash = authorized.userHash();
+        logger.debug("Request received at /csc/v2/signatures/signHash with the body {} from the user {}",
+              signHashRequest.toString(), userHash);
+
+        validateSignatureRequest(authorized, signHashRequest.getCredentialID(), signHashRequest.getHashAlgorithmOID(),
+              signHashRequest.getHashes());
+
+        CBORGenerator[] generator = new CBORGenerator[1];
+        SignaturesService.SignatureConsumer writer = chunk -> {
+            if (generator[0] == null) {
+                // the response is only started when the first signature values are available,
+                // so that the errors before can still be returned with their status
+                response.setContentType("application/cbor");
+                generator[0] = CBOR_FACTORY.createGenerator(response.getOutputStream());
+                generator[0].writeStartObject();
+                generator[0].writeFieldName("signatures");
+                generator[0].writeStartArray();
+            }
+            for (byte[] signature : chunk) {
+                generator[0].writeBinary(signature);
+            }
+            generator[0].flush();
+        };
+        try {
+            // a retry of the request with the same access token receives the response of the first one
+            SignatureResponseCache.Ticket ticket = this.responseCache.begin(authorized.tokenKey(), authorized.tokenExpiresAt(),
+                  SignatureResponseCache.fingerprint("S", signHashRequest.getCredentialID(),
+                        signHashRequest.getHashAlgorithmOID(), signHashRequest.getSignAlgo(),
+                        signHashRequest.getSignAlgoParams(), signHashRequest.getHashes()));
+            List<byte[]> replayed = null;
+            if (!ticket.first()) {
+                logger.info("The signature request was already received with the same access token, returning its response.");
+                replayed = this.responseCache.await(ticket).signatures();
+                if (replayed == null) {
+                    logger.info("The signature values of the first request were not kept, signing again.");
+                }
+            }
+            if (replayed != null) {
+                writer.accept(replayed);
+            }
+            else {
+                logger.info("Starting synchronous signature flow...");
+                // the signatures are only collected when they are kept for the retries, otherwise they are just streamed
+                boolean keep = ticket.first() && this.responseCache.keepsSignatures(signHashRequest.getHashes().size());
+                List<byte[]> signatures = keep ? new ArrayList<>(signHashRequest.getHashes().size()) : null;
+                // when the client goes away, the signing goes on so that its retry receives the signatures
+                Exception[] writeError = new Exception[1];
+                try {
+                    signaturesService.signHashValues(authorized.clientId(), userHash, signHashRequest.getCredentialID(),
+                          signHashRequest.getHashes(), signHashRequest.getHashAlgorithmOID(), signHashRequest.getSignAlgo(),
+                          signHashRequest.getSignAlgoParams(), chunk -> {
+                              if (keep) signatures.addAll(chunk);
+                              if (writeError[0] != null) return;
+                              try {
+                                  writer.accept(chunk);
+                              } catch (Exception e) {
+                                  // the retry signs again when the signatures are not kept
+                                  if (!keep) throw e;
+                                  writeError[0] = e;
+                              }
+                          });
+                }
+                catch (Exception e) {
+                    if (ticket.first()) this.responseCache.fail(authorized.tokenKey(), ticket, e);
+                    throw e;
+                }
+                if (ticket.first()) {
+                    this.responseCache.complete(authorized.tokenKey(), ticket, new SignatureResponseCache.Response(signatures, null));
+                }
+                if (writeError[0] != null) throw writeError[0];
+            }
+            if (generator[0] == null) {
+                // no signature value was written, the response is started with an empty array
+                writer.accept(List.of());
+            }
+            generator[0].writeEndArray();
+            generator[0].writeEndObject();
+            generator[0].close();
+            logger.info("Streamed the Signatures Values in the Response.");
+        }
         catch (Exception e){
+            if (generator[0] != null) {
+                logger.error("The signature request failed after part of the response was sent: {}", e.getMessage());
+                throw new IllegalStateException("The signature request failed after part of the response was sent.", e);
+            }
+            if (e instanceof SignatureResponseCache.TokenReusedException) {
+                logger.error(e.getMessage());
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: the access token was already " +
+                      "used for a different signature request.");
+            }
+            if (e instanceof SignatureResponseCache.RequestInProgressException inProgress) {
+                logger.error(e.getMessage());
+                throw new ConflictException("temporarily_unavailable: the signature request is still being processed, " +
+                      "try again later.", inProgress.getRetryAfterSeconds());
+            }
+            if (e instanceof HsmQuotaExceededException quotaExceeded) {
+                logger.error("The signature request exceeds the share of the client: {}", e.getMessage());
+                throw new TooManyRequestsException("temporarily_unavailable: too many signature requests of the client " +
+                      "are waiting, try again later.", quotaExceeded.getRetryAfterSeconds());
+            }
+            if (e instanceof RejectedExecutionException || e instanceof TimeoutException) {
+                logger.error("The signature request could not be completed in time: {}", e.getMessage());
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "temporarily_unavailable: the signing " +
+                      "service is busy, try again later.");
+            }
             logger.error(e.getMessage());
             throw new ResponseStatusException(HttpStatusCode.valueOf(500), "invalid_request");
         }
     }
+
+    /***
+     * Endpoint where the signature values of a request in the asynchronous operation mode can be obtained
+     * @param getSignaturesRequest the body from the Http Request, with the responseID returned by signHash
+     * @return a json response with the signature values, or the status 202 with the responseID if the signature
+     * values are not available yet
+     */
+    @PostMapping(value = "/getSignatures", consumes = "application/json", produces = "application/json")
+    public ResponseEntity<SignaturesSignHashResponse> getSignatures(
+          @Valid @RequestBody SignaturesGetSignaturesRequest getSignaturesRequest) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Map<String, Object> claims = ((Jwt) authentication.getPrincipal()).getClaims();
+        if(logger.isDebugEnabled()) auxDebugLogs(claims);
+
+        if(claims.get("sub") == null || !claims.containsKey("credentialID")){
+            logger.error("Missing required claims from Authentication Header.");
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing required claims from Authentication Header.");
+        }
+        String userHash = claims.get("sub").toString();
+        logger.debug("Request received at /csc/v2/signatures/getSignatures with the body {} from the user {}",
+              getSignaturesRequest.toString(), userHash);
+
+        SignatureJob job = signatureJobService.get(userHash, claims.get("credentialID").toString(),
+              getSignaturesRequest.getResponseID()).orElseThrow(() -> {
+                  logger.error("No asynchronous signature request was found with the responseID given.");
+                  return new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid_request: invalid responseID.");
+              });
+
+        SignaturesSignHashResponse signaturesSignHashResponse = new SignaturesSignHashResponse();
+        signaturesSignHashResponse.setResponseID(job.getId());
+        switch (job.getStatus()) {
+            case SignatureJob.DONE -> {
+                signaturesSignHashResponse.setSignatures(job.getSignatures().stream()
+                      .map(signature -> Base64.getEncoder().encodeToString(signature)).toList());
+                logger.info("Set the Signatures Values of the asynchronous request in the Response.");
+                return ResponseEntity.ok(signaturesSignHashResponse);
+            }
+            case SignatureJob.FAILED -> {
+                logger.error("The asynchronous signature request failed: {}", job.getError());
+                throw new ResponseStatusException(HttpStatusCode.valueOf(500), "invalid_request");
+            }
+            default -> {
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body(signaturesSignHashResponse);
+            }
+        }
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package eu.europa.ec.eudi.signer.r3.resource_server.web.dto;
+
+import jakarta.validation.constraints.NotBlank;
+
+public class SignaturesGetSignaturesRequest {
+    // the responseID returned by signatures/signHash in the asynchronous operation mode
+    @NotBlank(message = "Missing (or invalid type) string parameter responseID")
+    private String responseID;
+
+    public String getResponseID() {
+        return responseID;
+    }
+
+    public void setResponseID(String responseID) {
+        this.responseID = responseID;
+    }
+
+    @Override
+    public String toString() {
+        return "SignaturesGetSignaturesRequest{" +
+              "responseID='" + responseID + '\'' +
+              '}';
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.web.dto;
+
+import java.util.List;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Size;
+
+/**
+ * The signHash request in the application/cbor representation, where the hash values are CBOR byte strings
+ * instead of URL-encoded Base64 strings. Only the synchronous operation mode is available in this representation.
+ */
+public class SignaturesSignHashBinaryRequest {
+    @NotBlank(message = "Missing (or invalid type) string parameter credentialID")
+    @Pattern(regexp = "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$",
+          message = "Invalid parameter credentialID")
+    private String credentialID;
+
+    // the signature activation data returned by the Credential Authorization methods
+    private String SAD;
+
+    // one or more raw message digests to be signed
+    @NotEmpty(message = "Empty hash array")
+    private List<@Size(min = 1, max = 64, message = "Invalid hash value length") byte[]> hashes;
+
+    // the OID of the algorithm used to calculate the hash value.
+    @Pattern(regexp = "^\\d+\\.\\d+\\.\\d+(\\.\\d+)*+$", message = "Invalid parameter hashAlgorithmOID")
+    private String hashAlgorithmOID;
+
+    // the OID of the algorithm to use for signing
+    @NotBlank
+    @Pattern(regexp = "^\\d+\\.\\d+\\.\\d+(\\.\\d+)*+$", message = "Sign algorithm OID must be in numeric OID format")
+    private String signAlgo;
+
+    // the Base64-encoded DER-encoded ASN.1 signature parameters, if required by the signature algorithm
+    private String signAlgoParams;
+
+    // only S
+    @Pattern(regexp = "^S$", message = "Operation mode must be 'S' in the application/cbor representation")
+    private String operationMode;
+
+    public String getCredentialID() {
+        return credentialID;
+    }
+
+    public void setCredentialID(String credentialID) {
+        this.credentialID = credentialID;
+    }
+
+    public String getSAD() {
+        return SAD;
+    }
+
+    public void setSAD(String SAD) {
+        this.SAD = SAD;
+    }
+
+    public List<byte[]> getHashes() {
+        return hashes;
+    }
+
+    public void setHashes(List<byte[]> hashes) {
+        this.hashes = hashes;
+    }
+
+    public String getHashAlgorithmOID() {
+        return hashAlgorithmOID;
+    }
+
+    public void setHashAlgorithmOID(String hashAlgorithmOID) {
+        this.hashAlgorithmOID = hashAlgorithmOID;
+    }
+
+    public String getSignAlgo() {
+        return signAlgo;
+    }
+
+    public void setSignAlgo(String signAlgo) {
+        this.signAlgo = signAlgo;
+    }
+
+    public String getSignAlgoParams() {
+        return signAlgoParams;
+    }
+
+    public void setSignAlgoParams(String signAlgoParams) {
+        this.signAlgoParams = signAlgoParams;
+    }
+
+    public String getOperationMode() {
+        return operationMode;
+    }
+
+    public void setOperationMode(String operationMode) {
+        this.operationMode = operationMode;
+    }
+
+    @Override
+    public String toString() {
+        return "SignaturesSignHashBinaryRequest{" +
+              "credentialID='" + credentialID + '\'' +
+              ", SAD='" + SAD + '\'' +
+              ", hashes=" + (hashes == null ? null : hashes.size() + " values") +
+              ", hashAlgorithmOID='" + hashAlgorithmOID + '\'' +
+              ", signAlgo='" + signAlgo + '\'' +
+              ", signAlgoParams='" + signAlgoParams + '\'' +
+              ", operationMode='" + operationMode + '\'' +
+              '}';
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.pkcs11.jacknji11.CKA;
+import org.pkcs11.jacknji11.CKM;
+import org.pkcs11.jacknji11.CKRException;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * The PKCS#11 binding implemented with the java.lang.foreign API (Java 22).
+ * The functions of the library in JACKNJI11_PKCS11_LIB_PATH are called directly, without JNA. The templates,
+ * mechanisms and output values are written in a native buffer owned by each thread and reused by every call,
+ * so a call doesn't allocate native memory.
+ * Only platforms where CK_ULONG is 64 bits (Linux and macOS on 64-bit processors) are supported.
+ */
+public class PanamaBinding implements Pkcs11Binding {
+
+    private static final long CKR_OK = 0x0;
+    private static final long CKR_BUFFER_TOO_SMALL = 0x150;
+    private static final long CKF_OS_LOCKING_OK = 0x2;
+    private static final long CKF_RW_SERIAL_SESSION = 0x2 | 0x4;
+    private static final long CKU_USER = 1;
+    // CK_ATTRIBUTE and CK_MECHANISM: a CK_ULONG, a pointer and a CK_ULONG
+    private static final long STRUCT_SIZE = 24;
+    private static final long INITIALIZE_ARGS_SIZE = 48;
+    private static final long SESSION_INFO_SIZE = 32;
+    private static final long MECHANISM_INFO_SIZE = 24;
+    private static final int FIND_OBJECTS_BATCH = 64;
+    private static final int OUTPUT_SIZE = 4096;
+
+    private final MethodHandle initialize;
+    private final MethodHandle finalizeLibrary;
+    private final MethodHandle openSession;
+    private final MethodHandle closeSession;
+    private final MethodHandle login;
+    private final MethodHandle getSessionInfo;
+    private final MethodHandle getMechanismList;
+    private final MethodHandle getMechanismInfo;
+    private final MethodHandle createObject;
+    private final MethodHandle destroyObject;
+    private final MethodHandle findObjectsInit;
+    private final MethodHandle findObjects;
+    private final MethodHandle findObjectsFinal;
+    private final MethodHandle generateKey;
+    private final MethodHandle generateKeyPair;
+    private final MethodHandle wrapKey;
+    private final MethodHandle unwrapKey;
+    private final MethodHandle getAttributeValue;
+    private final MethodHandle signInit;
+    private final MethodHandle sign;
+    private final ThreadLocal<NativeBuffer> buffers = ThreadLocal.withInitial(NativeBuffer::new);
+
+    public PanamaBinding() {
+        Linker linker = Linker.nativeLinker();
+        if (linker.canonicalLayouts().get("long").byteSize() != 8) {
+            throw new IllegalStateException("The panama PKCS#11 binding requires a platform where CK_ULONG is 64 bits.");
+        }
+        String libraryPath = System.getenv("JACKNJI11_PKCS11_LIB_PATH");
+        if (libraryPath == null || libraryPath.isEmpty()) {
+            throw new IllegalStateException("The environment variable JACKNJI11_PKCS11_LIB_PATH is not defined.");
+        }
+        SymbolLookup library = SymbolLookup.libraryLookup(Path.of(libraryPath), Arena.global());
+
+        this.initialize = downcall(linker, library, "C_Initialize", ADDRESS);
+        this.finalizeLibrary = downcall(linker, library, "C_Finalize", ADDRESS);
+        this.openSession = downcall(linker, library, "C_OpenSession", JAVA_LONG, JAVA_LONG, ADDRESS, ADDRESS, ADDRESS);
+        this.closeSession = downcall(linker, library, "C_CloseSession", JAVA_LONG);
+        this.login = downcall(linker, library, "C_Login", JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_LONG);
+        this.getSessionInfo = downcall(linker, library, "C_GetSessionInfo", JAVA_LONG, ADDRESS);
+        this.getMechanismList = downcall(linker, library, "C_GetMechanismList", JAVA_LONG, ADDRESS, ADDRESS);
+        this.getMechanismInfo = downcall(linker, library, "C_GetMechanismInfo", JAVA_LONG, JAVA_LONG, ADDRESS);
+        this.createObject = downcall(linker, library, "C_CreateObject", JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS);
+        this.destroyObject = downcall(linker, library, "C_DestroyObject", JAVA_LONG, JAVA_LONG);
+        this.findObjectsInit = downcall(linker, library, "C_FindObjectsInit", JAVA_LONG, ADDRESS, JAVA_LONG);
+        this.findObjects = downcall(linker, library, "C_FindObjects", JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS);
+        this.findObjectsFinal = downcall(linker, library, "C_FindObjectsFinal", JAVA_LONG);
+        this.generateKey = downcall(linker, library, "C_GenerateKey", JAVA_LONG, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS);
+        this.generateKeyPair = downcall(linker, library, "C_GenerateKeyPair",
+              JAVA_LONG, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS, ADDRESS);
+        this.wrapKey = downcall(linker, library, "C_WrapKey", JAVA_LONG, ADDRESS, JAVA_LONG, JAVA_LONG, ADDRESS, ADDRESS);
+        this.unwrapKey = downcall(linker, library, "C_UnwrapKey",
+              JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS);
+        this.getAttributeValue = downcall(linker, library, "C_GetAttributeValue", JAVA_LONG, JAVA_LONG, ADDRESS, JAVA_LONG);
+        this.signInit = downcall(linker, library, "C_SignInit", JAVA_LONG, ADDRESS, JAVA_LONG);
+        this.sign = downcall(linker, library, "C_Sign", JAVA_LONG, ADDRESS, JAVA_LONG, ADDRESS, ADDRESS);
+    }
+
+    private static MethodHandle downcall(Linker linker, SymbolLookup library, String name, MemoryLayout... arguments) {
+        MemorySegment function = library.find(name)
+              .orElseThrow(() -> new IllegalStateException("The PKCS#11 library doesn't export " + name + "."));
+        return linker.downcallHandle(function, FunctionDescriptor.of(JAVA_LONG, arguments));
+    }
+
+    @FunctionalInterface
+    private interface NativeCall {
+        long invoke() throws Throwable;
+    }
+
+    private static long call(NativeCall nativeCall) {
+        try {
+            return nativeCall.invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void check(long rv) {
+        if (rv != CKR_OK) {
+            throw new CKRException(rv);
+        }
+    }
+
+    @Override
+    public void initialize() {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment args = buffer.allocate(INITIALIZE_ARGS_SIZE);
+        args.fill((byte) 0);
+        args.set(JAVA_LONG, 32, CKF_OS_LOCKING_OK);
+        check(call(() -> (long) this.initialize.invokeExact(args)));
+    }
+
+    @Override
+    public void finalizeLibrary() {
+        check(call(() -> (long) this.finalizeLibrary.invokeExact(MemorySegment.NULL)));
+    }
+
+    @Override
+    public long openSession(long slot) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment session = buffer.allocate(8);
+        check(call(() -> (long) this.openSession.invokeExact(slot, CKF_RW_SERIAL_SESSION, MemorySegment.NULL,
+              MemorySegment.NULL, session)));
+        return session.get(JAVA_LONG, 0);
+    }
+
+    @Override
+    public void closeSession(long session) {
+        check(call(() -> (long) this.closeSession.invokeExact(session)));
+    }
+
+    @Override
+    public void loginUser(long session, byte[] pin) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment pinSegment = buffer.copy(pin);
+        check(call(() -> (long) this.login.invokeExact(session, CKU_USER, pinSegment, (long) pin.length)));
+    }
+
+    @Override
+    public long getSessionSlot(long session) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment info = buffer.allocate(SESSION_INFO_SIZE);
+        check(call(() -> (long) this.getSessionInfo.invokeExact(session, info)));
+        return info.get(JAVA_LONG, 0);
+    }
+
+    @Override
+    public long[] getMechanismList(long slot) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment count = buffer.allocate(8);
+        // the first call returns the number of mechanisms
+        check(call(() -> (long) this.getMechanismList.invokeExact(slot, MemorySegment.NULL, count)));
+        MemorySegment mechanisms = buffer.allocate(8 * Math.max(1, count.get(JAVA_LONG, 0)));
+        check(call(() -> (long) this.getMechanismList.invokeExact(slot, mechanisms, count)));
+        return mechanisms.asSlice(0, 8 * count.get(JAVA_LONG, 0)).toArray(JAVA_LONG);
+    }
+
+    @Override
+    public long getMechanismFlags(long slot, long mechanism) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        // CK_MECHANISM_INFO: ulMinKeySize, ulMaxKeySize and flags
+        MemorySegment info = buffer.allocate(MECHANISM_INFO_SIZE);
+        check(call(() -> (long) this.getMechanismInfo.invokeExact(slot, mechanism, info)));
+        return info.get(JAVA_LONG, 16);
+    }
+
+    @Override
+    public long createObject(long session, CKA... template) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment attributes = buffer.template(template);
+        MemorySegment object = buffer.allocate(8);
+        check(call(() -> (long) this.createObject.invokeExact(session, attributes, (long) template.length, object)));
+        return object.get(JAVA_LONG, 0);
+    }
+
+    @Override
+    public void destroyObject(long session, long object) {
+        check(call(() -> (long) this.destroyObject.invokeExact(session, object)));
+    }
+
+    @Override
+    public long[] findObjects(long session, CKA... template) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment attributes = buffer.template(template);
+        check(call(() -> (long) this.findObjectsInit.invokeExact(session, attributes, (long) template.length)));
+        try {
+            MemorySegment objects = buffer.allocate(8L * FIND_OBJECTS_BATCH);
+            MemorySegment count = buffer.allocate(8);
+            long[] found = new long[0];
+            while (true) {
+                check(call(() -> (long) this.findObjects.invokeExact(session, objects, (long) FIND_OBJECTS_BATCH, count)));
+                int batch = (int) count.get(JAVA_LONG, 0);
+                if (batch == 0) {
+                    return found;
+                }
+                int previous = found.length;
+                found = Arrays.copyOf(found, previous + batch);
+                MemorySegment.copy(objects, JAVA_LONG, 0, found, previous, batch);
+            }
+        } finally {
+            check(call(() -> (long) this.findObjectsFinal.invokeExact(session)));
+        }
+    }
+
+    @Override
+    public long generateKey(long session, CKM mechanism, CKA... template) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment mechanismSegment = buffer.mechanism(mechanism);
+        MemorySegment attributes = buffer.template(template);
+        MemorySegment key = buffer.allocate(8);
+        check(call(() -> (long) this.generateKey.invokeExact(session, mechanismSegment, attributes,
+              (long) template.length, key)));
+        return key.get(JAVA_LONG, 0);
+    }
+
+    @Override
+    public void generateKeyPair(long session, CKM mechanism, CKA[] publicKeyTemplate, CKA[] privateKeyTemplate,
+                                LongRef publicKey, LongRef privateKey) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment mechanismSegment = buffer.mechanism(mechanism);
+        MemorySegment publicAttributes = buffer.template(publicKeyTemplate);
+        MemorySegment privateAttributes = buffer.template(privateKeyTemplate);
+        MemorySegment keys = buffer.allocate(16);
+        check(call(() -> (long) this.generateKeyPair.invokeExact(session, mechanismSegment,
+              publicAttributes, (long) publicKeyTemplate.length, privateAttributes, (long) privateKeyTemplate.length,
+              keys.asSlice(0, 8), keys.asSlice(8, 8))));
+        publicKey.value = keys.get(JAVA_LONG, 0);
+        privateKey.value = keys.get(JAVA_LONG, 8);
+    }
+
+    @Override
+    public byte[] wrapKey(long session, CKM mechanism, long wrappingKey, long key) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment mechanismSegment = buffer.mechanism(mechanism);
+        MemorySegment length = buffer.allocate(8);
+        MemorySegment output = buffer.allocate(OUTPUT_SIZE);
+        length.set(JAVA_LONG, 0, OUTPUT_SIZE);
+        long rv = call(() -> (long) this.wrapKey.invokeExact(session, mechanismSegment, wrappingKey, key, output, length));
+        if (rv == CKR_BUFFER_TOO_SMALL) {
+            MemorySegment larger = buffer.allocate(length.get(JAVA_LONG, 0));
+            rv = call(() -> (long) this.wrapKey.invokeExact(session, mechanismSegment, wrappingKey, key, larger, length));
+            check(rv);
+            return larger.asSlice(0, length.get(JAVA_LONG, 0)).toArray(JAVA_BYTE);
+        }
+        check(rv);
+        return output.asSlice(0, length.get(JAVA_LONG, 0)).toArray(JAVA_BYTE);
+    }
+
+    @Override
+    public long unwrapKey(long session, CKM mechanism, long unwrappingKey, byte[] wrappedKey, CKA... template) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment mechanismSegment = buffer.mechanism(mechanism);
+        MemorySegment wrapped = buffer.copy(wrappedKey);
+        MemorySegment attributes = buffer.template(template);
+        MemorySegment key = buffer.allocate(8);
+        check(call(() -> (long) this.unwrapKey.invokeExact(session, mechanismSegment, unwrappingKey, wrapped,
+              (long) wrappedKey.length, attributes, (long) template.length, key)));
+        return key.get(JAVA_LONG, 0);
+    }
+
+    @Override
+    public byte[] getAttributeValue(long session, long object, long attribute) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment attributeSegment = buffer.allocate(STRUCT_SIZE);
+        attributeSegment.set(JAVA_LONG, 0, attribute);
+        attributeSegment.set(ADDRESS, 8, MemorySegment.NULL);
+        attributeSegment.set(JAVA_LONG, 16, 0L);
+        // the first call returns the length of the value
+        check(call(() -> (long) this.getAttributeValue.invokeExact(session, object, attributeSegment, 1L)));
+        long length = attributeSegment.get(JAVA_LONG, 16);
+        MemorySegment value = buffer.allocate(length);
+        attributeSegment.set(ADDRESS, 8, value);
+        check(call(() -> (long) this.getAttributeValue.invokeExact(session, object, attributeSegment, 1L)));
+        return value.asSlice(0, attributeSegment.get(JAVA_LONG, 16)).toArray(JAVA_BYTE);
+    }
+
+    @Override
+    public byte[] sign(long session, CKM mechanism, long key, byte[] data) {
+        NativeBuffer buffer = this.buffers.get().reset();
+        MemorySegment mechanismSegment = buffer.mechanism(mechanism);
+        MemorySegment dataSegment = buffer.copy(data);
+        MemorySegment length = buffer.allocate(8);
+        MemorySegment output = buffer.allocate(OUTPUT_SIZE);
+        length.set(JAVA_LONG, 0, OUTPUT_SIZE);
+        check(call(() -> (long) this.signInit.invokeExact(session, mechanismSegment, key)));
+        long rv = call(() -> (long) this.sign.invokeExact(session, dataSegment, (long) data.length, output, length));
+        if (rv == CKR_BUFFER_TOO_SMALL) {
+            // the signature operation stays active after this error
+            MemorySegment larger = buffer.allocate(length.get(JAVA_LONG, 0));
+            rv = call(() -> (long) this.sign.invokeExact(session, dataSegment, (long) data.length, larger, length));
+            check(rv);
+            return larger.asSlice(0, length.get(JAVA_LONG, 0)).toArray(JAVA_BYTE);
+        }
+        check(rv);
+        return output.asSlice(0, length.get(JAVA_LONG, 0)).toArray(JAVA_BYTE);
+    }
+
+    /**
+     * Native memory used by the calls of a thread. The memory is reused by each call, and only grows when a
+     * call needs more than its current size.
+     */
+    private static final class NativeBuffer {
+        private MemorySegment segment = Arena.ofAuto().allocate(2 * OUTPUT_SIZE, 8);
+        private long offset;
+
+        NativeBuffer reset() {
+            this.offset = 0;
+            return this;
+        }
+
+        MemorySegment allocate(long size) {
+            long start = (this.offset + 7) & ~7L;
+            if (start + size > this.segment.byteSize()) {
+                // the segments already returned keep the previous memory alive until the end of the call
+                this.segment = Arena.ofAuto().allocate(Math.max(2 * this.segment.byteSize(), size), 8);
+                start = 0;
+            }
+            this.offset = start + size;
+            return this.segment.asSlice(start, size);
+        }
+
+        MemorySegment copy(byte[] bytes) {
+            MemorySegment copy = allocate(bytes.length);
+            MemorySegment.copy(bytes, 0, copy, JAVA_BYTE, 0, bytes.length);
+            return copy;
+        }
+
+        MemorySegment template(CKA[] template) {
+            MemorySegment attributes = allocate(STRUCT_SIZE * template.length);
+            for (int i = 0; i < template.length; i++) {
+                byte[] value = template[i].pValue;
+                long base = STRUCT_SIZE * i;
+                attributes.set(JAVA_LONG, base, template[i].type);
+                attributes.set(ADDRESS, base + 8, value == null ? MemorySegment.NULL : copy(value));
+                attributes.set(JAVA_LONG, base + 16, value == null ? 0 : value.length);
+            }
+            return attributes;
+        }
+
+        MemorySegment mechanism(CKM mechanism) {
+            MemorySegment mechanismSegment = allocate(STRUCT_SIZE);
+            byte[] parameter = mechanism.bParameter;
+            mechanismSegment.set(JAVA_LONG, 0, mechanism.mechanism);
+            mechanismSegment.set(ADDRESS, 8, parameter == null ? MemorySegment.NULL : copy(parameter));
+            mechanismSegment.set(JAVA_LONG, 16, parameter == null ? 0 : parameter.length);
+            return mechanismSegment;
+        }
+    }
+}
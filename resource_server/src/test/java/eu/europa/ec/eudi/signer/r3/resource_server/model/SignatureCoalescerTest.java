@@ -0,0 +1,201 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.KeyOperations;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm.HsmExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the coalescing of the signature requests with a signer that returns the values it receives.
+ */
+class SignatureCoalescerTest {
+
+    private static final HsmExecutor.Tenant TENANT = new HsmExecutor.Tenant("client", "user");
+    private static final String KEY = "credential/ECDSA";
+
+    private HsmExecutor hsmExecutor;
+    private SignaturesConfig signaturesConfig;
+    private SignatureCoalescer coalescer;
+    // the values of each batch signed
+    private final List<List<byte[]>> batches = new CopyOnWriteArrayList<>();
+    private final SignatureCoalescer.BatchSigner signer = values -> {
+        this.batches.add(values);
+        return values;
+    };
+
+    @BeforeEach
+    void setUp() {
+        KeyOperations keyOperations = mock(KeyOperations.class);
+        when(keyOperations.getMaxSessions()).thenReturn(2);
+        this.hsmExecutor = new HsmExecutor(keyOperations, new HsmConfig(), new SimpleMeterRegistry());
+        this.signaturesConfig = new SignaturesConfig();
+        this.signaturesConfig.getCoalescing().setEnabled(true);
+        this.signaturesConfig.getCoalescing().setWindowMillis(50);
+        this.signaturesConfig.getCoalescing().setMaxBatchSize(4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (this.coalescer != null) this.coalescer.shutdown();
+        this.hsmExecutor.shutdown();
+    }
+
+    private SignatureCoalescer newCoalescer() {
+        this.coalescer = new SignatureCoalescer(this.hsmExecutor, this.signaturesConfig, new SimpleMeterRegistry());
+        return this.coalescer;
+    }
+
+    private static List<byte[]> values(int... values) {
+        return Arrays.stream(values).mapToObj(value -> new byte[]{(byte) value}).toList();
+    }
+
+    private static List<byte[]> get(CompletableFuture<List<byte[]>> result) throws Exception {
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void assertValues(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    void onlyTheRequestsSmallerThanABatchAreAccepted() {
+        assertTrue(newCoalescer().accepts(3));
+        assertFalse(this.coalescer.accepts(4));
+        this.coalescer.shutdown();
+
+        this.signaturesConfig.getCoalescing().setEnabled(false);
+        assertFalse(newCoalescer().accepts(1));
+    }
+
+    @Test
+    void requestsWithinTheWindowAreSignedTogether() throws Exception {
+        newCoalescer();
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1), this.signer, this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(2, 3), this.signer, this.hsmExecutor.newDeadline());
+
+        assertValues(values(1), get(first));
+        assertValues(values(2, 3), get(second));
+        assertEquals(1, this.batches.size());
+        assertValues(values(1, 2, 3), this.batches.get(0));
+    }
+
+    @Test
+    void requestsOfOtherCredentialsOrClientsAreNotSignedTogether() throws Exception {
+        newCoalescer();
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1), this.signer, this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> otherKey = this.coalescer.submit("other/ECDSA", TENANT, values(2), this.signer,
+              this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> otherClient = this.coalescer.submit(KEY, new HsmExecutor.Tenant("other", "user"),
+              values(3), this.signer, this.hsmExecutor.newDeadline());
+
+        assertValues(values(1), get(first));
+        assertValues(values(2), get(otherKey));
+        assertValues(values(3), get(otherClient));
+        assertEquals(3, this.batches.size());
+    }
+
+    @Test
+    void requestThatDoesNotFitStartsANewBatch() throws Exception {
+        newCoalescer();
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1, 2, 3), this.signer,
+              this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(4, 5), this.signer,
+              this.hsmExecutor.newDeadline());
+
+        assertValues(values(1, 2, 3), get(first));
+        assertValues(values(4, 5), get(second));
+        assertEquals(2, this.batches.size());
+    }
+
+    @Test
+    void fullBatchIsSignedWithoutWaitingForTheWindow() throws Exception {
+        this.signaturesConfig.getCoalescing().setWindowMillis(60_000);
+        newCoalescer();
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1, 2), this.signer,
+              this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(3, 4), this.signer,
+              this.hsmExecutor.newDeadline());
+
+        assertValues(values(1, 2), get(first));
+        assertValues(values(3, 4), get(second));
+        assertEquals(1, this.batches.size());
+    }
+
+    @Test
+    void batchIsStartedUntilTheLatestDeadlineOfItsRequests() throws Exception {
+        newCoalescer();
+        long expired = System.nanoTime() - 1;
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1), this.signer, expired);
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(2), this.signer,
+              this.hsmExecutor.newDeadline());
+
+        assertValues(values(1), get(first));
+        assertValues(values(2), get(second));
+    }
+
+    @Test
+    void expiredBatchFailsAllItsRequests() throws Exception {
+        newCoalescer();
+        long expired = System.nanoTime() - 1;
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1), this.signer, expired);
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(2), this.signer, expired);
+
+        assertSame(TimeoutException.class, assertThrows(ExecutionException.class, () -> get(first)).getCause().getClass());
+        assertSame(TimeoutException.class, assertThrows(ExecutionException.class, () -> get(second)).getCause().getClass());
+        assertTrue(this.batches.isEmpty());
+    }
+
+    @Test
+    void failedBatchFailsAllItsRequests() throws Exception {
+        newCoalescer();
+        Exception error = new Exception("The HSM failed.");
+        SignatureCoalescer.BatchSigner failing = values -> {
+            throw error;
+        };
+        CompletableFuture<List<byte[]>> first = this.coalescer.submit(KEY, TENANT, values(1), failing, this.hsmExecutor.newDeadline());
+        CompletableFuture<List<byte[]>> second = this.coalescer.submit(KEY, TENANT, values(2), failing, this.hsmExecutor.newDeadline());
+
+        assertSame(error, assertThrows(ExecutionException.class, () -> get(first)).getCause());
+        assertSame(error, assertThrows(ExecutionException.class, () -> get(second)).getCause());
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.SignaturesConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureJob;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SignatureReplay;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SignatureReplayRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the replay of the signature requests by access token, with a repository stub instead of the database.
+ */
+class SignatureResponseCacheTest {
+
+    private static final String TOKEN = "jti:token";
+    private static final byte[] FINGERPRINT = {1, 2, 3};
+    private static final byte[] OTHER_FINGERPRINT = {4, 5, 6};
+    private static final Instant EXPIRES_AT = Instant.parse("2026-01-01T00:00:00Z");
+
+    private SignatureReplayRepository replayRepository;
+    private SignaturesConfig signaturesConfig;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        this.replayRepository = mock(SignatureReplayRepository.class);
+        this.signaturesConfig = new SignaturesConfig();
+        this.signaturesConfig.getReplay().setEnabled(true);
+        this.signaturesConfig.getReplay().setMaxSignatures(2);
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    private SignatureResponseCache newCache() {
+        return new SignatureResponseCache(this.replayRepository, this.signaturesConfig, new HsmConfig(), this.meterRegistry);
+    }
+
+    private double count(String result) {
+        return this.meterRegistry.get("signatures.replay.requests").tag("result", result).counter().count();
+    }
+
+    // the row of a request signed by another instance
+    private static SignatureReplay recorded(byte[] fingerprint, List<byte[]> signatures, String responseID) {
+        SignatureReplay replay = mock(SignatureReplay.class);
+        when(replay.getFingerprint()).thenReturn(fingerprint);
+        when(replay.isDone()).thenReturn(true);
+        when(replay.getSignatures()).thenReturn(signatures == null ? null : SignatureJob.encodeValues(signatures));
+        when(replay.getResponseID()).thenReturn(responseID);
+        return replay;
+    }
+
+    @Test
+    void firstRequestIsRecordedUntilTheTokenExpires() throws Exception {
+        when(this.replayRepository.insert(TOKEN, FINGERPRINT, EXPIRES_AT.plusSeconds(60))).thenReturn(1);
+        SignatureResponseCache cache = newCache();
+
+        SignatureResponseCache.Ticket ticket = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        assertTrue(ticket.first());
+        assertFalse(ticket.response().isDone());
+        verify(this.replayRepository).insert(TOKEN, FINGERPRINT, EXPIRES_AT.plusSeconds(60));
+        assertEquals(1, count("first"));
+    }
+
+    @Test
+    void retryInTheSameInstanceWaitsForTheFirstRequest() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(1);
+        SignatureResponseCache cache = newCache();
+        SignatureResponseCache.Ticket first = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT.clone());
+        assertFalse(retry.first());
+        assertSame(first.response(), retry.response());
+
+        List<byte[]> signatures = List.of(new byte[]{7}, new byte[]{8});
+        cache.complete(TOKEN, first, new SignatureResponseCache.Response(signatures, null));
+        assertSame(signatures, cache.await(retry).signatures());
+        verify(this.replayRepository).complete(eq(TOKEN), eq(SignatureJob.encodeValues(signatures)), isNull());
+        assertEquals(1, count("replayed"));
+    }
+
+    @Test
+    void retryOfARequestSignedByAnotherInstanceReceivesTheRecordedResponse() throws Exception {
+        List<byte[]> signatures = List.of(new byte[]{7}, new byte[]{8, 9});
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0);
+        SignatureReplay recorded = recorded(FINGERPRINT, signatures, null);
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.of(recorded));
+        SignatureResponseCache cache = newCache();
+
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        assertFalse(retry.first());
+        List<byte[]> replayed = cache.await(retry).signatures();
+        assertEquals(2, replayed.size());
+        assertArrayEquals(signatures.get(0), replayed.get(0));
+        assertArrayEquals(signatures.get(1), replayed.get(1));
+        assertEquals(1, count("replayed"));
+    }
+
+    @Test
+    void tokenUsedForADifferentRequestIsRejected() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(1);
+        SignatureResponseCache cache = newCache();
+        cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        assertThrows(SignatureResponseCache.TokenReusedException.class,
+              () -> cache.begin(TOKEN, EXPIRES_AT, OTHER_FINGERPRINT));
+        assertEquals(1, count("rejected"));
+    }
+
+    @Test
+    void tokenUsedInAnotherInstanceForADifferentRequestIsRejected() {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0);
+        SignatureReplay recorded = recorded(FINGERPRINT, null, "response");
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.of(recorded));
+        SignatureResponseCache cache = newCache();
+
+        assertThrows(SignatureResponseCache.TokenReusedException.class,
+              () -> cache.begin(TOKEN, EXPIRES_AT, OTHER_FINGERPRINT));
+        assertEquals(1, count("rejected"));
+    }
+
+    @Test
+    void failedRequestCanBeRetried() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(1);
+        SignatureResponseCache cache = newCache();
+        SignatureResponseCache.Ticket first = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+        SignatureResponseCache.Ticket waiting = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        IllegalStateException error = new IllegalStateException("HSM unavailable");
+        cache.fail(TOKEN, first, error);
+        verify(this.replayRepository).release(TOKEN);
+        assertSame(error, assertThrows(IllegalStateException.class, () -> cache.await(waiting)));
+
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+        assertTrue(retry.first());
+        assertEquals(2, count("first"));
+    }
+
+    @Test
+    void requestReleasedByAnotherInstanceIsRecordedAgain() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0, 1);
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.empty());
+        SignatureResponseCache cache = newCache();
+
+        SignatureResponseCache.Ticket ticket = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        assertTrue(ticket.first());
+        verify(this.replayRepository, times(2)).insert(TOKEN, FINGERPRINT, EXPIRES_AT.plusSeconds(60));
+        // the token is still single use, and the retries wait for the response
+        assertThrows(SignatureResponseCache.TokenReusedException.class,
+              () -> cache.begin(TOKEN, EXPIRES_AT, OTHER_FINGERPRINT));
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+        assertSame(ticket.response(), retry.response());
+        cache.complete(TOKEN, ticket, new SignatureResponseCache.Response(List.of(new byte[]{1}), null));
+        verify(this.replayRepository).complete(eq(TOKEN), any(), isNull());
+    }
+
+    @Test
+    void retryOfARequestInProgressInAnotherInstanceWaitsForItsResponse() throws Exception {
+        List<byte[]> signatures = List.of(new byte[]{7});
+        SignatureReplay recorded = recorded(FINGERPRINT, signatures, null);
+        when(recorded.isDone()).thenReturn(false, false, true);
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0);
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.of(recorded));
+        SignatureResponseCache cache = newCache();
+
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        assertFalse(retry.first());
+        SignatureResponseCache.Response response = cache.await(retry);
+        assertFalse(response.signaturesDiscarded());
+        assertArrayEquals(signatures.get(0), response.signatures().get(0));
+        verify(this.replayRepository, times(3)).findById(TOKEN);
+    }
+
+    @Test
+    void retryOfARequestInProgressInAnotherInstanceIsAnsweredLater() {
+        HsmConfig hsmConfig = new HsmConfig();
+        hsmConfig.getExecutor().setRequestTimeoutMillis(300);
+        SignatureReplay recorded = recorded(FINGERPRINT, null, null);
+        when(recorded.isDone()).thenReturn(false);
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0);
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.of(recorded));
+        SignatureResponseCache cache = new SignatureResponseCache(this.replayRepository, this.signaturesConfig, hsmConfig,
+              this.meterRegistry);
+
+        SignatureResponseCache.RequestInProgressException e = assertThrows(
+              SignatureResponseCache.RequestInProgressException.class, () -> cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT));
+        assertEquals(1, e.getRetryAfterSeconds());
+        assertEquals(0, count("replayed"));
+    }
+
+    @Test
+    void signaturesOfLargeResponsesAreNotKept() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(1);
+        SignatureResponseCache cache = newCache();
+        SignatureResponseCache.Ticket first = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+        SignatureResponseCache.Ticket retry = cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT);
+
+        cache.complete(TOKEN, first,
+              new SignatureResponseCache.Response(List.of(new byte[]{1}, new byte[]{2}, new byte[]{3}), null));
+
+        assertFalse(cache.keepsSignatures(3));
+        assertTrue(cache.await(retry).signaturesDiscarded());
+        verify(this.replayRepository).complete(TOKEN, null, null);
+    }
+
+    @Test
+    void asynchronousResponseIsReplayed() throws Exception {
+        when(this.replayRepository.insert(anyString(), any(), any())).thenReturn(0);
+        SignatureReplay recorded = recorded(FINGERPRINT, null, "response");
+        when(this.replayRepository.findById(TOKEN)).thenReturn(Optional.of(recorded));
+        SignatureResponseCache cache = newCache();
+
+        SignatureResponseCache.Response response = cache.await(cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT));
+        assertEquals("response", response.responseID());
+        assertNull(response.signatures());
+        assertFalse(response.signaturesDiscarded());
+    }
+
+    @Test
+    void disabledCacheSignsEveryRequest() throws Exception {
+        this.signaturesConfig.getReplay().setEnabled(false);
+        SignatureResponseCache cache = newCache();
+
+        assertTrue(cache.begin(TOKEN, EXPIRES_AT, FINGERPRINT).first());
+        SignatureResponseCache.Ticket ticket = cache.begin(TOKEN, EXPIRES_AT, OTHER_FINGERPRINT);
+        assertTrue(ticket.first());
+        cache.complete(TOKEN, ticket, new SignatureResponseCache.Response(List.of(new byte[]{1}), null));
+        verifyNoInteractions(this.replayRepository);
+    }
+
+    @Test
+    void tokenKeyPrefersTheJti() throws Exception {
+        assertEquals("jti:abc", SignatureResponseCache.tokenKey("abc", "token"));
+        assertTrue(SignatureResponseCache.tokenKey(null, "token").startsWith("sha256:"));
+        assertEquals(SignatureResponseCache.tokenKey("", "token"), SignatureResponseCache.tokenKey(null, "token"));
+    }
+
+    @Test
+    void fingerprintSeparatesTheValues() throws Exception {
+        byte[] split = SignatureResponseCache.fingerprint("S", "credential", "oid", "algo", null,
+              List.of(new byte[]{1}, new byte[]{2, 3}));
+        byte[] joined = SignatureResponseCache.fingerprint("S", "credential", "oid", "algo", null,
+              List.of(new byte[]{1, 2}, new byte[]{3}));
+        assertFalse(Arrays.equals(split, joined));
+    }
+}
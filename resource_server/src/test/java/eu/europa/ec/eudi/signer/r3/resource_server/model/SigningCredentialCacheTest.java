@@ -0,0 +1,145 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.CredentialsConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SigningCredentialCacheTest {
+
+    private CredentialsRepository credentialsRepository;
+    private CredentialsConfig credentialsConfig;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        this.credentialsRepository = mock(CredentialsRepository.class);
+        when(this.credentialsRepository.findById("a")).thenReturn(Optional.of(credential("a")));
+        when(this.credentialsRepository.findById("b")).thenReturn(Optional.of(credential("b")));
+        when(this.credentialsRepository.findById("missing")).thenReturn(Optional.empty());
+        this.credentialsConfig = new CredentialsConfig();
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    private static Credentials credential(String id) {
+        Credentials credential = new Credentials();
+        credential.setId(id);
+        credential.setUserID("user-" + id);
+        credential.setPrivateKey(Base64.getEncoder().encodeToString(id.getBytes()));
+        credential.setWrapKeyVersion(2);
+        credential.setKeyStorage(Credentials.RESIDENT_KEY_STORAGE);
+        credential.setKeyAlgo(List.of("1.2.840.10045.2.1"));
+        credential.setKeyStatus("enabled");
+        return credential;
+    }
+
+    private SigningCredentialCache newCache() {
+        return new SigningCredentialCache(this.credentialsRepository, this.credentialsConfig, this.meterRegistry);
+    }
+
+    @Test
+    void credentialIsReadOnceWithinTheTtl() {
+        SigningCredentialCache cache = newCache();
+        SigningCredentialCache.SigningCredential credential = cache.get("a").orElseThrow();
+        cache.get("a");
+
+        verify(this.credentialsRepository, times(1)).findById("a");
+        assertEquals("user-a", credential.userID());
+        assertArrayEquals("a".getBytes(), credential.wrappedPrivateKey());
+        assertEquals(2, credential.wrapKeyVersion());
+        assertTrue(credential.residentKey());
+        assertEquals(1.0, this.meterRegistry.get("credentials.signing.cache.requests").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void credentialIsReadAgainAfterTheTtl() throws Exception {
+        this.credentialsConfig.setSigningCacheTtlSeconds(1);
+        SigningCredentialCache cache = newCache();
+        cache.get("a");
+        Thread.sleep(1100);
+        cache.get("a");
+
+        verify(this.credentialsRepository, times(2)).findById("a");
+        assertEquals(1000, cache.getTtlMillis());
+    }
+
+    @Test
+    void invalidatedCredentialIsReadAgain() {
+        SigningCredentialCache cache = newCache();
+        cache.get("a");
+        cache.get("b");
+        cache.invalidate("a");
+        cache.get("a");
+        cache.get("b");
+
+        verify(this.credentialsRepository, times(2)).findById("a");
+        verify(this.credentialsRepository, times(1)).findById("b");
+    }
+
+    @Test
+    void credentialReadBeforeAnInvalidationIsNotCached() {
+        SigningCredentialCache cache = newCache();
+        // the credential is changed by this instance while it is being read
+        when(this.credentialsRepository.findById("a")).thenAnswer(invocation -> {
+            cache.invalidate("a");
+            return Optional.of(credential("a"));
+        });
+        cache.get("a");
+        cache.get("a");
+
+        verify(this.credentialsRepository, times(2)).findById("a");
+    }
+
+    @Test
+    void missingCredentialIsNotCached() {
+        SigningCredentialCache cache = newCache();
+        assertTrue(cache.get("missing").isEmpty());
+        assertTrue(cache.get("missing").isEmpty());
+
+        verify(this.credentialsRepository, times(2)).findById("missing");
+    }
+
+    @Test
+    void leastRecentlyUsedCredentialIsEvicted() {
+        this.credentialsConfig.setSigningCacheSize(1);
+        SigningCredentialCache cache = newCache();
+        cache.get("a");
+        cache.get("b");
+        cache.get("b");
+        cache.get("a");
+
+        verify(this.credentialsRepository, times(2)).findById("a");
+        verify(this.credentialsRepository, times(1)).findById("b");
+        assertEquals(1.0, this.meterRegistry.get("credentials.signing.cache.size").gauge().value());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.KeyPairPoolRefillRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.KeyPairPoolRepository;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the refill of the pool of key pairs by several replicas, with the key pairs generated in software and the
+ * tables of the pool and of the lease kept in memory.
+ */
+class KeyPairPoolTest {
+
+    private final AtomicLong pooled = new AtomicLong();
+    private final List<KeyPairPool> replicas = new ArrayList<>();
+    private KeyPairPoolRepository keyPairPoolRepository;
+    private KeyPairPoolRefillRepository refillRepository;
+    private KeyOperations keyOperations;
+    private HsmConfig hsmConfig;
+    // the lease of the refill of the P-256 pool
+    private String owner;
+    private Instant leaseUntil = Instant.EPOCH;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.keyPairPoolRepository = mock(KeyPairPoolRepository.class);
+        when(this.keyPairPoolRepository.countByAlgorithm(KeyPairPool.P256)).thenAnswer(invocation -> this.pooled.get());
+        when(this.keyPairPoolRepository.save(any())).thenAnswer(invocation -> {
+            this.pooled.incrementAndGet();
+            return invocation.getArgument(0);
+        });
+
+        this.refillRepository = mock(KeyPairPoolRefillRepository.class);
+        when(this.refillRepository.acquire(eq(KeyPairPool.P256), anyString(), any(), any())).thenAnswer(invocation -> {
+            synchronized (this) {
+                String replica = invocation.getArgument(1);
+                if (!replica.equals(this.owner) && !this.leaseUntil.isBefore(invocation.getArgument(3))) return 0;
+                this.owner = replica;
+                this.leaseUntil = invocation.getArgument(2);
+                return 1;
+            }
+        });
+        when(this.refillRepository.release(eq(KeyPairPool.P256), anyString(), any())).thenAnswer(invocation -> {
+            synchronized (this) {
+                if (!invocation.getArgument(1).equals(this.owner)) return 0;
+                this.leaseUntil = invocation.getArgument(2);
+                return 1;
+            }
+        });
+
+        SecretKeyRepository secretKeyRepository = mock(SecretKeyRepository.class);
+        when(secretKeyRepository.findAll()).thenReturn(List.of());
+        AuthConfig authConfig = new AuthConfig();
+        authConfig.setDbEncryptionPassphrase("passphrase");
+        authConfig.setDbEncryptionSalt(Base64.getEncoder().encodeToString(new byte[16]));
+        this.keyOperations = new SoftwareKeyOperations(secretKeyRepository, authConfig);
+
+        // the background refill of the replicas has nothing to do, the tests refill the pool themselves
+        this.hsmConfig = new HsmConfig();
+        this.hsmConfig.getKeyPairPool().setP256Size(0);
+        this.hsmConfig.getKeyPairPool().setRsa2048Size(0);
+        this.hsmConfig.getKeyPairPool().setRefillIntervalSeconds(3600);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.replicas.forEach(KeyPairPool::stop);
+    }
+
+    private KeyPairPool newReplica() {
+        KeyPairPool pool = new KeyPairPool(this.keyPairPoolRepository, this.refillRepository, this.keyOperations,
+              this.hsmConfig);
+        pool.start();
+        this.replicas.add(pool);
+        return pool;
+    }
+
+    @Test
+    void missingKeyPairsAreAdded() throws Exception {
+        this.pooled.set(1);
+        KeyPairPool pool = newReplica();
+
+        assertEquals(3, pool.refill(KeyPairPool.P256, 4));
+        assertEquals(4, this.pooled.get());
+        assertEquals(0, pool.refill(KeyPairPool.P256, 4));
+    }
+
+    @Test
+    void poolRefilledByAnotherReplicaIsLeftToIt() throws Exception {
+        KeyPairPool pool = newReplica();
+        this.owner = "other";
+        this.leaseUntil = Instant.now().plusSeconds(60);
+
+        assertEquals(0, pool.refill(KeyPairPool.P256, 4));
+        verify(this.keyPairPoolRepository, never()).save(any());
+    }
+
+    @Test
+    void leaseOfAReplicaThatStoppedIsTakenOver() throws Exception {
+        KeyPairPool pool = newReplica();
+        this.owner = "stopped";
+        this.leaseUntil = Instant.now().minusSeconds(1);
+
+        assertEquals(4, pool.refill(KeyPairPool.P256, 4));
+    }
+
+    @Test
+    void replicasRefillingTogetherDontOverfillThePool() throws Exception {
+        List<KeyPairPool> pools = List.of(newReplica(), newReplica(), newReplica());
+        List<CompletableFuture<Integer>> refills = new ArrayList<>();
+        for (KeyPairPool pool : pools) {
+            refills.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pool.refill(KeyPairPool.P256, 6);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+
+        int added = 0;
+        for (CompletableFuture<Integer> refill : refills) {
+            added += refill.get();
+        }
+        assertEquals(6, added);
+        assertEquals(6, this.pooled.get());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Compares the encodings written by SignatureEncoding with the ones of BouncyCastle.
+ */
+class SignatureEncodingTest {
+
+    private static final Random RANDOM = new Random(42);
+
+    static Stream<Arguments> hashAlgorithms() {
+        return Stream.of(
+              Arguments.of("1.3.14.3.2.26", 20), // SHA-1
+              Arguments.of("2.16.840.1.101.3.4.2.4", 28), // SHA-224
+              Arguments.of("2.16.840.1.101.3.4.2.1", 32), // SHA-256
+              Arguments.of("2.16.840.1.101.3.4.2.2", 48), // SHA-384
+              Arguments.of("2.16.840.1.101.3.4.2.3", 64), // SHA-512
+              Arguments.of("2.16.840.1.101.3.4.2.5", 28), // SHA-512/224
+              Arguments.of("2.16.840.1.101.3.4.2.6", 32), // SHA-512/256
+              Arguments.of("2.16.840.1.101.3.4.2.7", 28), // SHA3-224
+              Arguments.of("2.16.840.1.101.3.4.2.8", 32), // SHA3-256
+              Arguments.of("2.16.840.1.101.3.4.2.9", 48), // SHA3-384
+              Arguments.of("2.16.840.1.101.3.4.2.10", 64) // SHA3-512
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("hashAlgorithms")
+    void digestInfoMatchesBouncyCastle(String oid, int hashLength) throws Exception {
+        byte[] hash = randomBytes(hashLength);
+        assertArrayEquals(encodeDigestInfo(hash, oid), SignatureEncoding.digestInfo(hash, oid));
+    }
+
+    @ParameterizedTest
+    @MethodSource("hashAlgorithms")
+    void digestInfoOfAHashWithAnotherLengthMatchesBouncyCastle(String oid, int hashLength) throws Exception {
+        byte[] hash = randomBytes(hashLength + 1);
+        assertArrayEquals(encodeDigestInfo(hash, oid), SignatureEncoding.digestInfo(hash, oid));
+    }
+
+    static Stream<Arguments> ecdsaSignatures() {
+        byte[] leadingZeros = randomBytes(64);
+        leadingZeros[0] = 0;
+        leadingZeros[1] = 0;
+        leadingZeros[32] = 0;
+        byte[] highBit = randomBytes(64);
+        highBit[0] |= (byte) 0x80;
+        highBit[32] |= (byte) 0x80;
+        byte[] zeroR = randomBytes(64);
+        Arrays.fill(zeroR, 0, 32, (byte) 0);
+        byte[] zeroS = randomBytes(64);
+        Arrays.fill(zeroS, 32, 64, (byte) 0);
+        // P-521: the halves have 66 bytes, so the SEQUENCE has a long form length
+        byte[] p521 = randomBytes(132);
+        p521[0] &= 0x01;
+        p521[66] &= 0x01;
+        byte[] p521HighBit = randomBytes(132);
+        p521HighBit[0] = (byte) 0xff;
+        p521HighBit[66] = (byte) 0xff;
+        return Stream.of(
+              Arguments.of("P-256", randomBytes(64)),
+              Arguments.of("leading zero bytes", leadingZeros),
+              Arguments.of("high bit set", highBit),
+              Arguments.of("zero r", zeroR),
+              Arguments.of("zero s", zeroS),
+              Arguments.of("all zero", new byte[64]),
+              Arguments.of("P-384", randomBytes(96)),
+              Arguments.of("P-521", p521),
+              Arguments.of("P-521 high bit set", p521HighBit)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ecdsaSignatures")
+    void ecdsaSignatureToDERMatchesBouncyCastle(String name, byte[] rs) throws Exception {
+        byte[] expected = encodeECDSASignature(rs);
+        assertEquals(expected.length, SignatureEncoding.ecdsaSignatureDERLength(rs));
+        assertArrayEquals(expected, SignatureEncoding.ecdsaSignatureToDER(rs));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("ecdsaSignatures")
+    void ecdsaSignatureToDERWritesAtTheOffset(String name, byte[] rs) throws Exception {
+        byte[] expected = encodeECDSASignature(rs);
+        byte[] out = new byte[expected.length + 5];
+        assertEquals(expected.length, SignatureEncoding.ecdsaSignatureToDER(rs, out, 3));
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 3, 3 + expected.length));
+        assertArrayEquals(new byte[2], Arrays.copyOfRange(out, 3 + expected.length, out.length));
+    }
+
+    @Test
+    void p521SignatureUsesTheLongFormLength() {
+        byte[] rs = randomBytes(132);
+        rs[0] = (byte) 0xff;
+        byte[] der = SignatureEncoding.ecdsaSignatureToDER(rs);
+        assertEquals((byte) 0x30, der[0]);
+        assertEquals((byte) 0x81, der[1]);
+        assertEquals(der.length - 3, der[2] & 0xff);
+    }
+
+    private static byte[] encodeDigestInfo(byte[] hash, String oid) throws Exception {
+        AlgorithmIdentifier algorithm = new AlgorithmIdentifier(new ASN1ObjectIdentifier(oid), DERNull.INSTANCE);
+        return new DigestInfo(algorithm, hash).getEncoded();
+    }
+
+    private static byte[] encodeECDSASignature(byte[] rs) throws Exception {
+        int half = rs.length / 2;
+        List<ASN1Integer> values = List.of(
+              new ASN1Integer(new BigInteger(1, Arrays.copyOfRange(rs, 0, half))),
+              new ASN1Integer(new BigInteger(1, Arrays.copyOfRange(rs, half, rs.length))));
+        return new DERSequence(values.toArray(new ASN1Integer[0])).getEncoded();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.AuthConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.SecretKey;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.SecretKeyRepository;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WrapKeyStoreTest {
+
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] OTHER_KEY = new byte[32];
+
+    static {
+        KEY[0] = 1;
+        OTHER_KEY[0] = 2;
+    }
+
+    private final List<SecretKey> rows = new ArrayList<>();
+    private SecretKeyRepository secretKeyRepository;
+    private AuthConfig authConfig;
+
+    @BeforeEach
+    void setUp() {
+        this.secretKeyRepository = mock(SecretKeyRepository.class);
+        when(this.secretKeyRepository.findAll()).thenReturn(this.rows);
+        when(this.secretKeyRepository.save(any())).thenAnswer(invocation -> {
+            this.rows.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        this.authConfig = new AuthConfig();
+        this.authConfig.setDbEncryptionPassphrase("passphrase");
+        this.authConfig.setDbEncryptionSalt(Base64.getEncoder().encodeToString(new byte[16]));
+    }
+
+    // the row saved by a replica that didn't see the rows of the others, as the replicas started together before the
+    // version existed
+    private void saveRow(byte[] wrapKey) throws Exception {
+        SecretKeyRepository emptyRepository = mock(SecretKeyRepository.class);
+        when(emptyRepository.findAll()).thenReturn(List.of());
+        when(emptyRepository.save(any())).thenAnswer(invocation -> this.secretKeyRepository.save(invocation.getArgument(0)));
+        new WrapKeyStore(emptyRepository, this.authConfig).add(wrapKey);
+    }
+
+    @Test
+    void versionsAreLoadedFromTheDatabase() throws Exception {
+        WrapKeyStore writer = new WrapKeyStore(this.secretKeyRepository, this.authConfig);
+        assertEquals(0, writer.add(KEY));
+        assertEquals(1, writer.add(OTHER_KEY));
+
+        WrapKeyStore store = new WrapKeyStore(this.secretKeyRepository, this.authConfig);
+        store.reload();
+        assertEquals(1, store.getCurrentVersion());
+        assertArrayEquals(KEY, store.get(0));
+        assertArrayEquals(OTHER_KEY, store.get(1));
+    }
+
+    @Test
+    void duplicateVersionsWithTheSameKeyAreLoaded() throws Exception {
+        saveRow(KEY);
+        saveRow(KEY);
+
+        WrapKeyStore store = new WrapKeyStore(this.secretKeyRepository, this.authConfig);
+        store.reload();
+        assertEquals(0, store.getCurrentVersion());
+        assertArrayEquals(KEY, store.get(0));
+    }
+
+    @Test
+    void duplicateVersionsWithDifferentKeysStopTheStartup() throws Exception {
+        saveRow(KEY);
+        saveRow(OTHER_KEY);
+
+        WrapKeyStore store = new WrapKeyStore(this.secretKeyRepository, this.authConfig);
+        IllegalStateException e = assertThrows(IllegalStateException.class, store::reload);
+        assertTrue(e.getMessage().contains("the same version 0"));
+    }
+
+    @Test
+    void duplicateVersionAddedLaterIsDetected() throws Exception {
+        saveRow(KEY);
+        WrapKeyStore store = new WrapKeyStore(this.secretKeyRepository, this.authConfig);
+        store.reload();
+
+        saveRow(OTHER_KEY);
+        assertThrows(IllegalStateException.class, store::reload);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FairQueueTest {
+
+    private HsmConfig.Fairness fairness;
+
+    @BeforeEach
+    void setUp() {
+        this.fairness = new HsmConfig.Fairness();
+    }
+
+    private void share(String clientId, int weight, int maxConcurrent) {
+        HsmConfig.Fairness.ClientShare share = new HsmConfig.Fairness.ClientShare();
+        share.setWeight(weight);
+        share.setMaxConcurrent(maxConcurrent);
+        this.fairness.getClients().put(clientId, share);
+    }
+
+    private static FairQueue.Operation operation(String clientId, String user) {
+        return new FairQueue.Operation(new HsmExecutor.Tenant(clientId, user), 1, () -> {}, System.nanoTime());
+    }
+
+    // takes the next operation in another thread, as a worker does
+    private static CompletableFuture<FairQueue.Operation> takeAsync(FairQueue queue) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    void clientsAreServedInProportionToTheirWeight() throws Exception {
+        share("bulk", 3, 0);
+        FairQueue queue = new FairQueue(this.fairness, 64, 64);
+        for (int i = 0; i < 12; i++) {
+            queue.offer(operation("bulk", "user"));
+            queue.offer(operation("single", "user"));
+        }
+
+        int bulk = 0;
+        for (int i = 0; i < 8; i++) {
+            if (queue.take().tenant().clientId().equals("bulk")) bulk++;
+        }
+        assertEquals(6, bulk);
+    }
+
+    @Test
+    void usersOfAClientAreServedInTurn() throws Exception {
+        FairQueue queue = new FairQueue(this.fairness, 64, 64);
+        queue.offer(operation("client", "a"));
+        queue.offer(operation("client", "a"));
+        queue.offer(operation("client", "a"));
+        queue.offer(operation("client", "b"));
+
+        assertEquals("a", queue.take().tenant().userHash());
+        assertEquals("b", queue.take().tenant().userHash());
+        assertEquals("a", queue.take().tenant().userHash());
+    }
+
+    @Test
+    void clientIsLimitedToItsShareOfTheQueue() {
+        FairQueue queue = new FairQueue(this.fairness, 8, 1);
+        queue.offer(operation("other", "user"));
+        for (int i = 0; i < 4; i++) {
+            queue.offer(operation("client", "user"));
+        }
+
+        HsmQuotaExceededException e = assertThrows(HsmQuotaExceededException.class,
+              () -> queue.offer(operation("client", "user")));
+        assertEquals(1, e.getRetryAfterSeconds());
+        queue.offer(operation("other", "user"));
+    }
+
+    @Test
+    void retryAfterIsTheTimeToRunTheOperationsOfTheClient() throws Exception {
+        FairQueue queue = new FairQueue(this.fairness, 8, 1);
+        queue.offer(operation("client", "user"));
+        queue.done(queue.take(), TimeUnit.SECONDS.toNanos(2));
+
+        queue.offer(operation("other", "user"));
+        for (int i = 0; i < 4; i++) {
+            queue.offer(operation("client", "user"));
+        }
+        // 5 operations of 2 seconds at half of the single worker
+        HsmQuotaExceededException e = assertThrows(HsmQuotaExceededException.class,
+              () -> queue.offer(operation("client", "user")));
+        assertEquals(20, e.getRetryAfterSeconds());
+    }
+
+    @Test
+    void retryAfterIsBounded() throws Exception {
+        FairQueue queue = new FairQueue(this.fairness, 8, 1);
+        queue.offer(operation("client", "user"));
+        queue.done(queue.take(), TimeUnit.SECONDS.toNanos(30));
+
+        queue.offer(operation("other", "user"));
+        for (int i = 0; i < 4; i++) {
+            queue.offer(operation("client", "user"));
+        }
+        HsmQuotaExceededException e = assertThrows(HsmQuotaExceededException.class,
+              () -> queue.offer(operation("client", "user")));
+        assertEquals(60, e.getRetryAfterSeconds());
+    }
+
+    @Test
+    void fullQueueRejectsTheOperations() {
+        FairQueue queue = new FairQueue(this.fairness, 2, 1);
+        queue.offer(operation("client", "user"));
+        queue.offer(operation("client", "user"));
+
+        assertThrows(RejectedExecutionException.class, () -> queue.offer(operation("other", "user")));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void clientLimitedInConcurrencyWaitsForItsOperations() throws Exception {
+        share("limited", 10, 1);
+        FairQueue queue = new FairQueue(this.fairness, 64, 4);
+        queue.offer(operation("limited", "user"));
+        queue.offer(operation("limited", "user"));
+        FairQueue.Operation first = queue.take();
+        queue.offer(operation("other", "user"));
+
+        assertEquals("other", queue.take().tenant().clientId());
+
+        CompletableFuture<FairQueue.Operation> next = takeAsync(queue);
+        Thread.sleep(100);
+        assertFalse(next.isDone());
+        queue.done(first, 1000);
+        assertEquals("limited", next.get(5, TimeUnit.SECONDS).tenant().clientId());
+    }
+
+    @Test
+    void operationsRunningAreLimitedToTheConcurrencyLimit() throws Exception {
+        FairQueue queue = new FairQueue(this.fairness, 64, 4);
+        queue.setLimit(1);
+        queue.offer(operation("client", "a"));
+        queue.offer(operation("client", "b"));
+        queue.offer(operation("client", "c"));
+        FairQueue.Operation first = queue.take();
+
+        CompletableFuture<FairQueue.Operation> second = takeAsync(queue);
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+        queue.setLimit(2);
+        second.get(5, TimeUnit.SECONDS);
+
+        CompletableFuture<FairQueue.Operation> third = takeAsync(queue);
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+        queue.done(first, 1000);
+        third.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void concurrencyLimitIsKeptBetweenOneAndTheWorkers() {
+        FairQueue queue = new FairQueue(this.fairness, 64, 4);
+        assertEquals(4, queue.getLimit());
+        queue.setLimit(0);
+        assertEquals(1, queue.getLimit());
+        queue.setLimit(10);
+        assertEquals(4, queue.getLimit());
+    }
+
+    @Test
+    void idleClientStartsWithoutCreditForItsIdleTime() throws Exception {
+        FairQueue queue = new FairQueue(this.fairness, 64, 64);
+        for (int i = 0; i < 16; i++) {
+            queue.offer(operation("busy", "user"));
+        }
+        for (int i = 0; i < 8; i++) {
+            queue.take();
+        }
+        for (int i = 0; i < 8; i++) {
+            queue.offer(operation("idle", "user"));
+        }
+
+        // the client becoming active is served in turn with the busy one, not until it caught up
+        int busy = 0;
+        for (int i = 0; i < 8; i++) {
+            if (queue.take().tenant().clientId().equals("busy")) busy++;
+        }
+        assertTrue(busy >= 3);
+    }
+}
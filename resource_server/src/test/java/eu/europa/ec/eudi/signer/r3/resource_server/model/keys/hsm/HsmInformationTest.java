@@ -0,0 +1,213 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.pkcs11.jacknji11.CKR;
+import org.pkcs11.jacknji11.CKRException;
+import org.pkcs11.jacknji11.LongRef;
+
+/**
+ * Tests the session pool of a slot with a mocked PKCS#11 binding, whose sessions are numbered from 1.
+ */
+class HsmInformationTest {
+
+    private static final long SLOT = 7;
+
+    private Pkcs11Binding binding;
+    private HsmConfig.SessionPool poolProperties;
+    private HsmInformation pool;
+
+    @BeforeEach
+    void setUp() {
+        this.binding = mock(Pkcs11Binding.class);
+        AtomicLong sessions = new AtomicLong();
+        when(this.binding.openSession(SLOT)).thenAnswer(invocation -> sessions.incrementAndGet());
+        when(this.binding.getSessionSlot(anyLong())).thenReturn(SLOT);
+        this.poolProperties = new HsmConfig.SessionPool();
+        this.poolProperties.setMinSessions(1);
+        this.poolProperties.setMaxSessions(4);
+        this.poolProperties.setBorrowTimeoutMillis(50);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (this.pool != null) this.pool.close();
+    }
+
+    private HsmInformation newPool() throws Exception {
+        this.pool = new HsmInformation(this.binding, SLOT, "1234".getBytes(), this.poolProperties, 4);
+        this.pool.warmUp();
+        return this.pool;
+    }
+
+    @Test
+    void warmUpOpensTheMinimumSessions() throws Exception {
+        this.poolProperties.setMinSessions(2);
+        newPool();
+        assertEquals(2, this.pool.getOpenSessions());
+        verify(this.binding, times(2)).loginUser(anyLong(), any());
+    }
+
+    @Test
+    void sessionAlreadyLoggedInIsUsed() throws Exception {
+        doThrow(new CKRException(CKR.USER_ALREADY_LOGGED_IN)).when(this.binding).loginUser(anyLong(), any());
+        newPool();
+        assertEquals(1, this.pool.getOpenSessions());
+        verify(this.binding, never()).closeSession(anyLong());
+    }
+
+    @Test
+    void mostRecentlyReleasedSessionIsReusedFirst() throws Exception {
+        newPool();
+        LongRef first = this.pool.getSession();
+        LongRef second = this.pool.getSession();
+        this.pool.releaseSession(first);
+        this.pool.releaseSession(second);
+
+        assertEquals(second.value(), this.pool.getSession().value());
+        assertEquals(2, this.pool.getOpenSessions());
+    }
+
+    @Test
+    void borrowFailsWhenAllTheSessionsAreInUse() throws Exception {
+        newPool();
+        for (int i = 0; i < 4; i++) this.pool.getSession();
+        assertFalse(this.pool.hasAvailableSession());
+        assertEquals(1.0, this.pool.getLoad());
+        assertThrows(Exception.class, () -> this.pool.getSession());
+    }
+
+    @Test
+    void sessionLimitIsKeptBetweenTheMinimumAndTheMaximum() throws Exception {
+        newPool();
+        assertEquals(4, this.pool.setSessionLimit(10));
+        assertEquals(1, this.pool.setSessionLimit(0));
+        assertEquals(1, this.pool.getSessionLimit());
+    }
+
+    @Test
+    void loweredLimitClosesTheIdleSessionsAndBlocksTheBorrowers() throws Exception {
+        newPool();
+        List<LongRef> borrowed = new ArrayList<>();
+        for (int i = 0; i < 4; i++) borrowed.add(this.pool.getSession());
+        borrowed.forEach(this.pool::releaseSession);
+
+        assertEquals(2, this.pool.setSessionLimit(2));
+        assertEquals(2, this.pool.getOpenSessions());
+        this.pool.getSession();
+        this.pool.getSession();
+        assertThrows(Exception.class, () -> this.pool.getSession());
+
+        this.pool.setSessionLimit(3);
+        this.pool.getSession();
+        assertEquals(3, this.pool.getActiveSessions());
+    }
+
+    @Test
+    void loweredLimitWaitsForTheSessionsInUse() throws Exception {
+        newPool();
+        List<LongRef> borrowed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) borrowed.add(this.pool.getSession());
+
+        this.pool.setSessionLimit(2);
+        this.pool.releaseSession(borrowed.get(0));
+        assertThrows(Exception.class, () -> this.pool.getSession());
+        this.pool.releaseSession(borrowed.get(1));
+        this.pool.getSession();
+    }
+
+    @Test
+    void brokenIdleSessionIsReplaced() throws Exception {
+        this.poolProperties.setValidationIntervalSeconds(0);
+        newPool();
+        LongRef broken = this.pool.getSession();
+        this.pool.releaseSession(broken);
+        when(this.binding.getSessionSlot(broken.value())).thenThrow(new CKRException(CKR.SESSION_HANDLE_INVALID));
+
+        LongRef session = this.pool.getSession();
+        assertNotEquals(broken.value(), session.value());
+        verify(this.binding).closeSession(broken.value());
+        assertEquals(1, this.pool.getOpenSessions());
+    }
+
+    @Test
+    void closingTheLastSessionOpensAReplacementFirst() throws Exception {
+        newPool();
+        LongRef session = this.pool.getSession();
+        this.pool.CloseSession(session);
+
+        verify(this.binding).closeSession(session.value());
+        assertEquals(1, this.pool.getOpenSessions());
+        assertTrue(this.pool.hasAvailableSession());
+    }
+
+    @Test
+    void idleSessionsAboveTheMinimumAreClosed() throws Exception {
+        this.poolProperties.setIdleTimeoutSeconds(0);
+        newPool();
+        List<LongRef> borrowed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) borrowed.add(this.pool.getSession());
+        borrowed.forEach(this.pool::releaseSession);
+        assertEquals(3, this.pool.getOpenSessions());
+
+        // the reaper runs every second
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.pool.getOpenSessions() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, this.pool.getOpenSessions());
+        verify(this.binding, times(2)).closeSession(anyLong());
+    }
+
+    @Test
+    void sessionFailuresAreRecognized() {
+        assertTrue(HsmInformation.isSessionFailure(new CKRException(CKR.SESSION_HANDLE_INVALID)));
+        assertTrue(HsmInformation.isSessionFailure(new CKRException(CKR.DEVICE_REMOVED)));
+        assertFalse(HsmInformation.isSessionFailure(new CKRException(CKR.KEY_HANDLE_INVALID)));
+    }
+
+    @Test
+    void poolRequiresAValidRange() {
+        this.poolProperties.setMinSessions(5);
+        assertThrows(IllegalArgumentException.class,
+              () -> new HsmInformation(this.binding, SLOT, new byte[0], this.poolProperties, 4));
+        verify(this.binding, never()).openSession(eq(SLOT));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import eu.europa.ec.eudi.signer.r3.resource_server.config.HsmConfig;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.entities.Credentials;
+import eu.europa.ec.eudi.signer.r3.resource_server.model.database.repositories.CredentialsRepository;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the reconciliation of the resident keys in the token with the credentials, with stubs of the HSM service and
+ * of the database.
+ */
+class HsmObjectReaperTest {
+
+    private static final long SLOT = 7;
+    private static final long OTHER_SLOT = 8;
+
+    private HsmService hsmService;
+    private CredentialsRepository credentialsRepository;
+    private HsmObjectReaper reaper;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.hsmService = mock(HsmService.class);
+        this.credentialsRepository = mock(CredentialsRepository.class);
+        when(this.hsmService.destroyResidentKey(any())).thenReturn(1);
+        this.reaper = new HsmObjectReaper(this.hsmService, this.credentialsRepository, new HsmConfig());
+    }
+
+    private void residentCredentials(String... credentialIds) {
+        when(this.credentialsRepository.findIdsByKeyStorage(Credentials.RESIDENT_KEY_STORAGE))
+              .thenReturn(List.of(credentialIds));
+    }
+
+    @Test
+    void keyOfAResidentCredentialIsKept() throws Exception {
+        residentCredentials("resident");
+        when(this.hsmService.listResidentKeys()).thenReturn(List.of(new HsmService.ResidentKey(SLOT, "resident", true)));
+
+        assertEquals(0, this.reaper.reconcileResidentKeys());
+        assertEquals(0, this.reaper.reconcileResidentKeys());
+        verify(this.hsmService, never()).destroyResidentKey(any());
+        verify(this.hsmService, never()).storeResidentKey(anyString(), any(), anyInt(), anyString());
+    }
+
+    @Test
+    void keyOfACredentialNoLongerResidentIsDestroyedWhenFoundTwice() throws Exception {
+        residentCredentials();
+        HsmService.ResidentKey stale = new HsmService.ResidentKey(SLOT, "wrapped", true);
+        when(this.hsmService.listResidentKeys()).thenReturn(List.of(stale));
+
+        assertEquals(0, this.reaper.reconcileResidentKeys());
+        verify(this.hsmService, never()).destroyResidentKey(any());
+        assertEquals(1, this.reaper.reconcileResidentKeys());
+        verify(this.hsmService).destroyResidentKey(stale);
+    }
+
+    @Test
+    void keyOfACredentialMovedToTheResidentStorageMeanwhileIsKept() throws Exception {
+        HsmService.ResidentKey stored = new HsmService.ResidentKey(SLOT, "moving", true);
+        when(this.hsmService.listResidentKeys()).thenReturn(List.of(stored));
+        residentCredentials();
+        this.reaper.reconcileResidentKeys();
+
+        residentCredentials("moving");
+        this.reaper.reconcileResidentKeys();
+        this.reaper.reconcileResidentKeys();
+        verify(this.hsmService, never()).destroyResidentKey(any());
+    }
+
+    @Test
+    void keyInASlotNoLongerAssignedIsDestroyedAndStoredInTheAssignedSlot() throws Exception {
+        residentCredentials("resident");
+        HsmService.ResidentKey moved = new HsmService.ResidentKey(OTHER_SLOT, "resident", false);
+        when(this.hsmService.listResidentKeys()).thenReturn(List.of(moved));
+        Credentials credential = new Credentials();
+        credential.setKeyStorage(Credentials.RESIDENT_KEY_STORAGE);
+        credential.setPrivateKey(Base64.getEncoder().encodeToString(new byte[]{1, 2, 3}));
+        credential.setWrapKeyVersion(2);
+        credential.setKeyAlgo(List.of("1.2.840.10045.2.1"));
+        when(this.credentialsRepository.findById("resident")).thenReturn(Optional.of(credential));
+
+        this.reaper.reconcileResidentKeys();
+        verify(this.hsmService).storeResidentKey(eq("resident"), eq(new byte[]{1, 2, 3}), eq(2), eq("EC"));
+        assertEquals(1, this.reaper.reconcileResidentKeys());
+        verify(this.hsmService).destroyResidentKey(moved);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright 2024 European Commission
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+      https://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package eu.europa.ec.eudi.signer.r3.resource_server.model.keys.hsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.pkcs11.jacknji11.CKR;
+import org.pkcs11.jacknji11.CKRException;
+
+class UnwrappedKeyCacheTest {
+
+    private Pkcs11Binding binding;
+    private UnwrappedKeyCache cache;
+
+    @BeforeEach
+    void setUp() {
+        this.binding = mock(Pkcs11Binding.class);
+        this.cache = new UnwrappedKeyCache(this.binding, 2);
+    }
+
+    @Test
+    void keysAreCachedPerSession() {
+        this.cache.put(1, "a", 10);
+        assertEquals(10L, this.cache.get(1, "a"));
+        assertNull(this.cache.get(2, "a"));
+        assertEquals(1, this.cache.getHits());
+        assertEquals(1, this.cache.getMisses());
+    }
+
+    @Test
+    void leastRecentlyUsedKeyIsDestroyedWhenEvicted() {
+        this.cache.put(1, "a", 10);
+        this.cache.put(1, "b", 11);
+        this.cache.get(1, "a");
+        this.cache.put(1, "c", 12);
+
+        verify(this.binding).destroyObject(1, 11);
+        assertNull(this.cache.get(1, "b"));
+        assertEquals(10L, this.cache.get(1, "a"));
+        assertEquals(12L, this.cache.get(1, "c"));
+        assertEquals(1, this.cache.getEvictions());
+    }
+
+    @Test
+    void evictionSurvivesAFailedDestroy() {
+        doThrow(new CKRException(CKR.OBJECT_HANDLE_INVALID)).when(this.binding).destroyObject(anyLong(), anyLong());
+        this.cache.put(1, "a", 10);
+        this.cache.put(1, "b", 11);
+        this.cache.put(1, "c", 12);
+
+        assertNull(this.cache.get(1, "a"));
+        assertEquals(12L, this.cache.get(1, "c"));
+    }
+
+    @Test
+    void invalidatedSessionDropsItsKeysWithoutDestroyingThem() {
+        this.cache.put(1, "a", 10);
+        this.cache.put(2, "a", 20);
+        this.cache.invalidateSession(1);
+
+        assertNull(this.cache.get(1, "a"));
+        assertEquals(20L, this.cache.get(2, "a"));
+        verify(this.binding, never()).destroyObject(anyLong(), anyLong());
+    }
+
+    @Test
+    void keyIdentifierDependsOnTheWrappedKey() {
+        assertEquals(UnwrappedKeyCache.keyIdentifier(new byte[]{1, 2}), UnwrappedKeyCache.keyIdentifier(new byte[]{1, 2}));
+        assertNotEquals(UnwrappedKeyCache.keyIdentifier(new byte[]{1, 2}), UnwrappedKeyCache.keyIdentifier(new byte[]{2, 1}));
+        assertEquals(64, UnwrappedKeyCache.keyIdentifier(new byte[0]).length());
+    }
+
+    @Test
+    void cacheHoldsAtLeastOneKey() {
+        assertThrows(IllegalArgumentException.class, () -> new UnwrappedKeyCache(this.binding, 0));
+    }
+}